@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yourmediashelf.fedora.cargo.FedoraHomeMojo;
+
+/**
+ * FedoraHomeMojo.applyFilters on generated install properties, where every
+ * value refers to one or more lookup (i.e. Maven project) properties.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ApplyFiltersBenchmark {
+
+    @Param({"100", "10000"})
+    public int size;
+
+    private byte[] source;
+
+    private Properties lookup;
+
+    @Setup
+    public void setup() throws IOException {
+        lookup = new Properties();
+        for (int i = 0; i < 50; i++) {
+            lookup.setProperty("project.property" + i, "value" + i);
+        }
+        lookup.setProperty("fedora.home", "/var/lib/fedora/home");
+        lookup.setProperty("fedora.port", "8080");
+
+        Properties props = new Properties();
+        for (int i = 0; i < size; i++) {
+            props.setProperty("option" + i, "${fedora.home}/dir" + i +
+                    ":${project.property" + (i % 50) + "}:${fedora.port}" +
+                    (i % 10 == 0 ? ":${unresolved" + i + "}" : ""));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        props.store(out, null);
+        source = out.toByteArray();
+    }
+
+    @Benchmark
+    public Properties applyFilters() throws IOException {
+        return FedoraHomeMojo.applyFilters(new ByteArrayInputStream(source),
+                lookup);
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Properties;
+
+import com.yourmediashelf.fedora.cargo.FedoraHome;
+import com.yourmediashelf.fedora.cargo.FedoraHomeMojo;
+import com.yourmediashelf.fedora.cargo.InstallOptions;
+
+/**
+ * Access to the plugin's test fixtures, which are packaged with the
+ * benchmarks.
+ */
+final class Fixtures {
+
+    static final String FEDORA_HOME = "fedora-home";
+
+    static final String FCFG =
+            FEDORA_HOME + "/server/fedora-internal-use/config/fedora-base.fcfg";
+
+    static final String INSTALL_PROPERTIES = "test-install.properties";
+
+    private Fixtures() {
+    }
+
+    static InputStream open(String resource) throws IOException {
+        InputStream in =
+                Fixtures.class.getClassLoader().getResourceAsStream(resource);
+        if (in == null) {
+            throw new IOException("No such fixture: " + resource);
+        }
+        return in;
+    }
+
+    static byte[] read(String resource) throws IOException {
+        try (InputStream in = open(resource)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Copies the fedora-home fixture, from the benchmark jar or the class
+     * path directory, to dest.
+     */
+    static void copyFedoraHome(final File dest) throws IOException {
+        URL url = Fixtures.class.getClassLoader().getResource(FEDORA_HOME);
+        if (url == null) {
+            throw new IOException("No such fixture: " + FEDORA_HOME);
+        }
+        URI uri;
+        try {
+            uri = url.toURI();
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+        if ("jar".equals(uri.getScheme())) {
+            try (FileSystem fs =
+                    FileSystems.newFileSystem(uri,
+                            Collections.<String, Object> emptyMap())) {
+                copyTree(fs.provider().getPath(uri), dest.toPath());
+            }
+        } else {
+            copyTree(Paths.get(uri), dest.toPath());
+        }
+    }
+
+    private static void copyTree(final Path source, final Path dest)
+            throws IOException {
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir,
+                    BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(resolve(dir));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file,
+                    BasicFileAttributes attrs) throws IOException {
+                Files.copy(file, resolve(file));
+                return FileVisitResult.CONTINUE;
+            }
+
+            // the source may be on a different file system
+            private Path resolve(Path p) {
+                return dest.resolve(source.relativize(p).toString());
+            }
+        });
+    }
+
+    /**
+     * @return the install options of FedoraHomeTest for a FEDORA_HOME at home
+     */
+    static InstallOptions installOptions(File home) throws Exception {
+        Properties lookup = new Properties();
+        lookup.setProperty("fedora.home", home.getAbsolutePath());
+        lookup.setProperty("fedora.port", "9090");
+        Properties props =
+                FedoraHomeMojo.applyFilters(open(INSTALL_PROPERTIES), lookup);
+        props.setProperty(InstallOptions.TEST_SPRING_CONFIGS, "true");
+        props.setProperty(InstallOptions.INSTALL_INCREMENTAL, "false");
+        return new InstallOptions(new HashMap<String, String>(FedoraHome
+                .loadMap(props)));
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Collection;
+import java.util.Iterator;
+
+import com.yourmediashelf.fedora.cargo.fcfg.DatastoreConfiguration;
+import com.yourmediashelf.fedora.cargo.fcfg.ModuleConfiguration;
+import com.yourmediashelf.fedora.cargo.fcfg.Parameter;
+import com.yourmediashelf.fedora.cargo.fcfg.ServerConfiguration;
+
+/**
+ * The PrintStream-based ServerConfiguration.serialize of fedora-cargo-plugin
+ * 0.3, kept as the baseline for {@link SerializerBenchmark}.
+ */
+public class LegacyServerConfigurationSerializer {
+
+    public static void serialize(ServerConfiguration config,
+            OutputStream xmlStream) throws IOException {
+        PrintStream out = new PrintStream(xmlStream);
+        out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        out.println("<server xmlns=\"http://www.fedora.info/definitions/1/0/config/\" class=\"" +
+                config.getClassName() + "\">");
+
+        // do server parameters first
+        serializeParameters(config.getParameters(Parameter.class), 2, out);
+        // next, modules
+        Iterator<ModuleConfiguration> mIter =
+                config.getModuleConfigurations().iterator();
+        while (mIter.hasNext()) {
+            ModuleConfiguration mc = mIter.next();
+            out.println("  <module role=\"" + mc.getRole() + "\" class=\"" +
+                    mc.getClassName() + "\">");
+            String comment = strip(mc.getComment());
+            if (comment != null) {
+                out.println("    <comment>" + comment + "</comment>");
+            }
+            serializeParameters(mc.getParameters(Parameter.class), 4, out);
+            out.println("  </module>");
+        }
+        // finally, datastores
+        Iterator<DatastoreConfiguration> dIter =
+                config.getDatastoreConfigurations().iterator();
+        while (dIter.hasNext()) {
+            DatastoreConfiguration dc = dIter.next();
+            out.println("  <datastore id=\"" + dc.getId() + "\">");
+            String comment = strip(dc.getComment());
+            if (comment != null) {
+                out.println("    <comment>" + comment + "</comment>");
+            }
+            serializeParameters(dc.getParameters(Parameter.class), 4, out);
+            out.println("  </datastore>");
+        }
+
+        out.println("</server>");
+        out.close();
+    }
+
+    private static void serializeParameters(Collection<Parameter> params,
+            int indentBy, PrintStream out) {
+        Iterator<Parameter> paramIter = params.iterator();
+        while (paramIter.hasNext()) {
+            out.println(getParamXMLString(paramIter.next(), indentBy));
+        }
+    }
+
+    private static String spaces(int num) {
+        StringBuffer out = new StringBuffer();
+        for (int i = 0; i < num; i++) {
+            out.append(' ');
+        }
+        return out.toString();
+    }
+
+    private static String getParamXMLString(Parameter p, int indentBy) {
+        StringBuffer out = new StringBuffer();
+        out.append(spaces(indentBy) + "<param name=\"" + p.getName() +
+                "\" value=\"" + enc(p.getValue()) + "\"");
+        if (p.getIsFilePath() != false) {
+            out.append(" isFilePath=\"true\"");
+        }
+        if (p.getProfileValues() != null) {
+            Iterator<String> iter = p.getProfileValues().keySet().iterator();
+            while (iter.hasNext()) {
+                String profileName = iter.next();
+                String profileVal = p.getProfileValues().get(profileName);
+                out.append(" " + profileName + "value=\"" + enc(profileVal) +
+                        "\"");
+            }
+        }
+        String comment = strip(p.getComment());
+        if (comment != null) {
+            out.append(">\n" + spaces(indentBy + 2) + "<comment>" +
+                    enc(comment) + "</comment>\n" + spaces(indentBy) +
+                    "</param>");
+        } else {
+            out.append("/>");
+        }
+        return out.toString();
+    }
+
+    private static String enc(String in) {
+        StringBuffer out = new StringBuffer();
+        for (int i = 0; i < in.length(); i++) {
+            char c = in.charAt(i);
+            if (c == '<') {
+                out.append("&lt;");
+            } else if (c == '>') {
+                out.append("&gt;");
+            } else if (c == '\'') {
+                out.append("&apos;");
+            } else if (c == '\"') {
+                out.append("&quot;");
+            } else if (c == '&') {
+                out.append("&amp;");
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    // strip leading and trailing whitespace and \n, return null if
+    // resulting string is empty in incoming string is null.
+    private static String strip(String in) {
+        if (in == null) {
+            return null;
+        }
+        String out = stripTrailing(stripLeading(in));
+        if (out.length() == 0) {
+            return null;
+        } else {
+            return out;
+        }
+    }
+
+    private static String stripLeading(String in) {
+        StringBuffer out = new StringBuffer();
+        boolean foundNonWhitespace = false;
+        for (int i = 0; i < in.length(); i++) {
+            char c = in.charAt(i);
+            if (foundNonWhitespace) {
+                out.append(c);
+            } else {
+                if (c != ' ' && c != '\t' && c != '\n') {
+                    foundNonWhitespace = true;
+                    out.append(c);
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    private static String stripTrailing(String in) {
+        StringBuffer out = new StringBuffer();
+        boolean foundNonWhitespace = false;
+        for (int i = in.length() - 1; i >= 0; i--) {
+            char c = in.charAt(i);
+            if (foundNonWhitespace) {
+                out.insert(0, c);
+            } else {
+                if (c != ' ' && c != '\t' && c != '\n') {
+                    foundNonWhitespace = true;
+                    out.insert(0, c);
+                }
+            }
+        }
+        return out.toString();
+    }
+}
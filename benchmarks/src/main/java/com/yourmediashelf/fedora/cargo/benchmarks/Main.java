@@ -0,0 +1,39 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the JMH command line, writing results as JSON (to jmh-result.json,
+ * unless -rff is given) unless another result format is requested with -rf.
+ */
+public class Main {
+
+    public static void main(String[] args) throws Exception {
+        List<String> argv = new ArrayList<String>(Arrays.asList(args));
+        if (!argv.contains("-rf")) {
+            argv.add("-rf");
+            argv.add("json");
+        }
+        org.openjdk.jmh.Main.main(argv.toArray(new String[argv.size()]));
+    }
+}
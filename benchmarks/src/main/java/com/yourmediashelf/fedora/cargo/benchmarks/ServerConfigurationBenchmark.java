@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yourmediashelf.fedora.cargo.fcfg.ServerConfiguration;
+import com.yourmediashelf.fedora.cargo.fcfg.ServerConfigurationParser;
+
+/**
+ * Parsing, copying and serializing fedora-base.fcfg, as done by
+ * FedoraHome when configuring fedora.fcfg.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServerConfigurationBenchmark {
+
+    private byte[] fcfg;
+
+    private ServerConfiguration config;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(
+            32 * 1024);
+
+    @Setup
+    public void setup() throws IOException {
+        fcfg = Fixtures.read(Fixtures.FCFG);
+        config = parse();
+    }
+
+    @Benchmark
+    public ServerConfiguration parse() throws IOException {
+        return new ServerConfigurationParser(new ByteArrayInputStream(fcfg))
+                .parse();
+    }
+
+    @Benchmark
+    public ServerConfiguration copy() throws IOException {
+        return config.copy();
+    }
+
+    @Benchmark
+    public int serialize() throws IOException {
+        out.reset();
+        config.serialize(out);
+        return out.size();
+    }
+
+    @Benchmark
+    public int parseAndSerialize() throws IOException {
+        out.reset();
+        parse().serialize(out);
+        return out.size();
+    }
+}
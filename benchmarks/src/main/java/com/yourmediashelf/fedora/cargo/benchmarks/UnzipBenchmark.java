@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo.benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.yourmediashelf.fedora.cargo.ArchiveExtractor;
+import com.yourmediashelf.fedora.cargo.FedoraCommonMojo;
+
+/**
+ * Extraction of a synthetic archive shaped like a Tomcat distribution: a few
+ * hundred small text files (configuration, JSPs, docs) and a few dozen jars.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UnzipBenchmark {
+
+    private File dir;
+
+    private File zip;
+
+    private File dest;
+
+    @Setup(Level.Trial)
+    public void createArchive() throws IOException {
+        dir = Files.createTempDirectory("unzip-benchmark").toFile();
+        zip = new File(dir, "tomcat.zip");
+        Random random = new Random(42);
+        try (ZipOutputStream out =
+                new ZipOutputStream(new FileOutputStream(zip))) {
+            for (int i = 0; i < 600; i++) {
+                String docs = "apache-tomcat/webapps/docs/d" + (i % 20) + "/";
+                writeEntry(out, docs + "f" + i + ".html", text(random,
+                        1024 + random.nextInt(32 * 1024)));
+            }
+            for (int i = 0; i < 30; i++) {
+                writeEntry(out, "apache-tomcat/lib/lib" + i + ".jar", binary(
+                        random, 64 * 1024 + random.nextInt(1024 * 1024)));
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void clean() throws IOException {
+        dest = new File(dir, "dest");
+        FileUtils.deleteDirectory(dest);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public File extract(Threads threads) throws IOException {
+        new ArchiveExtractor(threads.threads, null).extract(zip, dest);
+        return dest;
+    }
+
+    /**
+     * The static entry point, which extracts with one thread per available
+     * processor.
+     */
+    @Benchmark
+    public File unzip() throws IOException {
+        FedoraCommonMojo.unzip(zip, dest);
+        return dest;
+    }
+
+    @State(Scope.Benchmark)
+    public static class Threads {
+
+        /** extraction threads; 0 means one per available processor */
+        @Param({"1", "0"})
+        public int threads;
+    }
+
+    private static void writeEntry(ZipOutputStream out, String name,
+            byte[] content) throws IOException {
+        out.putNextEntry(new ZipEntry(name));
+        out.write(content);
+        out.closeEntry();
+    }
+
+    private static byte[] text(Random random, int size) {
+        String words = "<p>the quick brown fox jumps over the lazy dog</p>\n";
+        byte[] b = new byte[size];
+        for (int i = 0; i < size; i++) {
+            b[i] =
+                    (byte) (random.nextInt(16) == 0 ? 'a' + random.nextInt(26)
+                            : words.charAt(i % words.length()));
+        }
+        return b;
+    }
+
+    // jars are already compressed: mostly incompressible content
+    private static byte[] binary(Random random, int size) {
+        byte[] b = new byte[size];
+        random.nextBytes(b);
+        return b;
+    }
+}
@@ -0,0 +1,384 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.yourmediashelf.fedora.cargo;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Extracts zip archives using a pool of worker threads.
+ *
+ * <p>The directory structure of the archive is created up front, then the
+ * file entries are spread across the workers, balanced by uncompressed size.
+ * Each worker opens its own {@link ZipFile} so that reading and inflating
+ * happen in parallel, and writes through a {@link FileChannel} using a large
+ * direct buffer borrowed from a shared pool. (A heap buffer would be copied
+ * into a temporary direct buffer of the worker thread on every write, and
+ * workers only live as long as an extraction.)
+ */
+public class ArchiveExtractor {
+
+    public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Direct buffers are shared between extractions to avoid reallocating
+     * them.
+     */
+    private static final ConcurrentLinkedQueue<ByteBuffer> BUFFERS =
+            new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final int threads;
+
+    private final int bufferSize;
+
+    private final Log log;
+
+    /**
+     * @param threads the number of worker threads, or 0 to use the number of
+     * available processors.
+     * @param log the Log to report throughput to, may be null.
+     */
+    public ArchiveExtractor(int threads, Log log) {
+        this(threads, DEFAULT_BUFFER_SIZE, log);
+    }
+
+    public ArchiveExtractor(int threads, int bufferSize, Log log) {
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        this.threads = threads;
+        this.bufferSize = bufferSize;
+        this.log = log;
+    }
+
+    /**
+     * Extracts zipFile to the given destination directory.
+     *
+     * @param zipFile the archive to extract
+     * @param destDir the directory to extract to, created if necessary
+     * @return the statistics of the extraction
+     * @throws IOException
+     */
+    public Result extract(File zipFile, File destDir) throws IOException {
+        long start = System.currentTimeMillis();
+
+        List<FileEntry> files = new ArrayList<FileEntry>();
+        Set<String> dirs = new TreeSet<String>();
+        ZipFile zip = new ZipFile(zipFile);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = checkEntryName(entry.getName());
+                if (entry.isDirectory()) {
+                    // Otherwise, empty directories do not get created
+                    dirs.add(name);
+                } else {
+                    files.add(new FileEntry(entry, name));
+                    int idx = name.lastIndexOf('/');
+                    if (idx > 0) {
+                        dirs.add(name.substring(0, idx));
+                    }
+                }
+            }
+        } finally {
+            zip.close();
+        }
+
+        destDir.mkdirs();
+        for (String dir : dirs) {
+            File d = new File(destDir, dir);
+            if (!d.isDirectory() && !d.mkdirs()) {
+                throw new IOException("Unable to create directory " + d);
+            }
+        }
+
+        long bytes;
+        List<List<FileEntry>> partitions = partition(files);
+        if (partitions.size() == 1) {
+            bytes = new Worker(zipFile, destDir, partitions.get(0)).call();
+        } else {
+            bytes = extractConcurrently(zipFile, destDir, partitions);
+        }
+
+        Result result =
+                new Result(files.size() + dirs.size(), bytes, System
+                        .currentTimeMillis() -
+                        start);
+        if (log != null) {
+            log.info(String.format(
+                    "Extracted %d entries (%.1f MB) from %s in %d ms " +
+                            "(%.0f entries/s, %.1f MB/s, %d threads)", result
+                            .getEntries(), result.getBytes() / 1048576.0,
+                    zipFile.getName(), result.getMillis(), result
+                            .getEntriesPerSecond(), result
+                            .getMegabytesPerSecond(), partitions.size()));
+        }
+        return result;
+    }
+
+    private long extractConcurrently(File zipFile, File destDir,
+            List<List<FileEntry>> partitions) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(partitions.size());
+        try {
+            List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            for (List<FileEntry> partition : partitions) {
+                futures.add(executor.submit(new Worker(zipFile, destDir,
+                        partition)));
+            }
+            long bytes = 0;
+            for (Future<Long> future : futures) {
+                bytes += future.get();
+            }
+            return bytes;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while extracting " + zipFile);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Spreads the entries across at most {@code threads} partitions, assigning
+     * the largest entries first to the partition with the fewest bytes.
+     */
+    private List<List<FileEntry>> partition(List<FileEntry> files) {
+        int count = Math.max(1, Math.min(threads, files.size()));
+        List<List<FileEntry>> partitions =
+                new ArrayList<List<FileEntry>>(count);
+        long[] sizes = new long[count];
+        for (int i = 0; i < count; i++) {
+            partitions.add(new ArrayList<FileEntry>());
+        }
+
+        List<FileEntry> sorted = new ArrayList<FileEntry>(files);
+        Collections.sort(sorted, new Comparator<FileEntry>() {
+
+            public int compare(FileEntry a, FileEntry b) {
+                long sa = Math.max(a.getSize(), 0);
+                long sb = Math.max(b.getSize(), 0);
+                return sa < sb ? 1 : (sa == sb ? 0 : -1);
+            }
+        });
+        for (FileEntry entry : sorted) {
+            int lightest = 0;
+            for (int i = 1; i < count; i++) {
+                if (sizes[i] < sizes[lightest]) {
+                    lightest = i;
+                }
+            }
+            partitions.get(lightest).add(entry);
+            // count every entry as at least one block so that many small
+            // files are spread out as well
+            sizes[lightest] += Math.max(entry.getSize(), 0) + 4096;
+        }
+        return partitions;
+    }
+
+    /**
+     * Rejects entry names that would resolve outside of the destination
+     * directory.
+     */
+    private static String checkEntryName(String name) throws IOException {
+        String normalized = name.replace('\\', '/');
+        if (normalized.startsWith("/")) {
+            throw new IOException("Illegal zip entry: " + name);
+        }
+        for (String segment : normalized.split("/")) {
+            if (segment.equals("..")) {
+                throw new IOException("Illegal zip entry: " + name);
+            }
+        }
+        while (normalized.endsWith("/")) {
+            normalized = normalized.substring(0, normalized.length() - 1);
+        }
+        return normalized;
+    }
+
+    private ByteBuffer borrowBuffer() {
+        ByteBuffer buffer = BUFFERS.poll();
+        if (buffer == null || buffer.capacity() < bufferSize) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        return buffer;
+    }
+
+    private void releaseBuffer(ByteBuffer buffer) {
+        buffer.clear();
+        BUFFERS.offer(buffer);
+    }
+
+    /**
+     * A file entry of the archive, along with its checked and normalized
+     * name, which is the one it is extracted to.
+     */
+    private static class FileEntry {
+
+        private final ZipEntry entry;
+
+        private final String name;
+
+        FileEntry(ZipEntry entry, String name) {
+            this.entry = entry;
+            this.name = name;
+        }
+
+        long getSize() {
+            return entry.getSize();
+        }
+    }
+
+    private class Worker implements Callable<Long> {
+
+        private final File zipFile;
+
+        private final File destDir;
+
+        private final List<FileEntry> entries;
+
+        Worker(File zipFile, File destDir, List<FileEntry> entries) {
+            this.zipFile = zipFile;
+            this.destDir = destDir;
+            this.entries = entries;
+        }
+
+        public Long call() throws IOException {
+            long bytes = 0;
+            ByteBuffer buffer = borrowBuffer();
+            ZipFile zip = new ZipFile(zipFile);
+            try {
+                for (FileEntry entry : entries) {
+                    InputStream is = zip.getInputStream(entry.entry);
+                    try {
+                        File file = new File(destDir, entry.name);
+                        // replace, rather than truncate, an existing file:
+                        // it may be a link into the extraction cache
+                        Files.deleteIfExists(file.toPath());
+                        FileOutputStream fos = new FileOutputStream(file);
+                        try {
+                            FileChannel channel = fos.getChannel();
+                            ReadableByteChannel in = Channels.newChannel(is);
+                            boolean eof = false;
+                            while (!eof) {
+                                // fill the buffer, so that each write is large
+                                buffer.clear();
+                                while (buffer.hasRemaining()) {
+                                    if (in.read(buffer) == -1) {
+                                        eof = true;
+                                        break;
+                                    }
+                                }
+                                buffer.flip();
+                                bytes += buffer.remaining();
+                                while (buffer.hasRemaining()) {
+                                    channel.write(buffer);
+                                }
+                            }
+                        } finally {
+                            fos.close();
+                        }
+                    } finally {
+                        IOUtils.closeQuietly(is);
+                    }
+                }
+            } finally {
+                zip.close();
+                releaseBuffer(buffer);
+            }
+            return bytes;
+        }
+    }
+
+    /**
+     * Statistics of a single extraction.
+     */
+    public static class Result {
+
+        private final int entries;
+
+        private final long bytes;
+
+        private final long millis;
+
+        Result(int entries, long bytes, long millis) {
+            this.entries = entries;
+            this.bytes = bytes;
+            this.millis = millis;
+        }
+
+        /**
+         * @return the number of files and directories extracted
+         */
+        public int getEntries() {
+            return entries;
+        }
+
+        /**
+         * @return the number of (uncompressed) bytes written
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        public double getEntriesPerSecond() {
+            return entries * 1000.0 / Math.max(millis, 1);
+        }
+
+        public double getMegabytesPerSecond() {
+            return bytes / 1048576.0 * 1000.0 / Math.max(millis, 1);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Helpers for replacing files atomically: the new content is written to a
+ * temporary file next to the destination, which is then renamed over it.
+ * Readers never see a partial file, and a destination that is a link into
+ * a shared tree (e.g. the extraction cache) is replaced rather than written
+ * through.
+ */
+public final class AtomicFiles {
+
+    private AtomicFiles() {
+    }
+
+    /**
+     * @return a new, empty temporary file in the directory of dest, which
+     * is created if necessary
+     * @throws IOException
+     */
+    public static File newTempFile(File dest) throws IOException {
+        File dir = dest.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        return File.createTempFile("." + dest.getName() + "-", ".tmp", dir);
+    }
+
+    /**
+     * Renames tmp over dest, atomically where the file system allows it.
+     *
+     * @throws IOException
+     */
+    public static void replace(File tmp, File dest) throws IOException {
+        try {
+            Files.move(tmp.toPath(), dest.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), dest.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.yourmediashelf.fedora.cargo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+
+/**
+ * SHA-1 helpers used to key caches and fingerprints.
+ */
+public final class Checksums {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Checksums() {
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // every JRE is required to provide SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the hex-encoded SHA-1 of the file's content
+     * @throws IOException
+     */
+    public static String sha1(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return sha1(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * @return the hex-encoded SHA-1 of the stream's content. The stream
+     * remains open after this method returns.
+     * @throws IOException
+     */
+    public static String sha1(InputStream in) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            digest.update(buffer, 0, count);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @return the hex-encoded SHA-1 of the relative paths and content
+     * checksums of all files beneath dir (the SHA-1 of the empty string if
+     * dir does not exist)
+     * @throws IOException
+     */
+    public static String sha1Tree(File dir) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        if (dir.isDirectory()) {
+            List<File> files =
+                    new ArrayList<File>(FileUtils.listFiles(dir,
+                            TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE));
+            Collections.sort(files);
+            int base = dir.getAbsolutePath().length() + 1;
+            for (File f : files) {
+                sb.append(f.getAbsolutePath().substring(base).replace(
+                        File.separatorChar, '/'));
+                sb.append('=').append(sha1(f)).append('\n');
+            }
+        }
+        return sha1(sb.toString());
+    }
+
+    /**
+     * @return the hex-encoded SHA-1 of the UTF-8 encoding of s
+     */
+    public static String sha1(String s) {
+        MessageDigest digest = newDigest();
+        try {
+            digest.update(s.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return toHex(digest.digest());
+    }
+
+    public static String toHex(byte[] bytes) {
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            out[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(out);
+    }
+}
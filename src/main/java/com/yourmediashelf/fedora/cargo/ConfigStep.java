@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A single step of configuring FEDORA_HOME.
+ *
+ * <p>A step declares the files it reads but does not write (its inputs) and
+ * the files it writes (its outputs). Files that are rewritten in place are
+ * outputs only. Steps whose footprints overlap are never run concurrently.
+ */
+abstract class ConfigStep {
+
+    private final String _name;
+
+    ConfigStep(String name) {
+        _name = name;
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * @return the files read, but not written, by this step
+     */
+    public List<File> getInputs() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * @return the files written by this step
+     */
+    public abstract List<File> getOutputs();
+
+    /**
+     * @return the files and directories read or written by this step. A
+     * directory stands for everything beneath it. Defaults to the inputs and
+     * outputs; steps that write files not known in advance should return the
+     * directory instead.
+     */
+    public List<File> getFootprint() {
+        List<File> footprint = new ArrayList<File>(getInputs());
+        footprint.addAll(getOutputs());
+        return footprint;
+    }
+
+    /**
+     * @return anything other than the install options and input files that
+     * determines the outputs (e.g. values sized for the machine), to be
+     * included in the step's fingerprint
+     */
+    public String getSettings() {
+        return "";
+    }
+
+    public abstract void run() throws InstallationFailedException;
+
+    @Override
+    public String toString() {
+        return _name;
+    }
+}
@@ -0,0 +1,305 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * An on-disk registry of containers left running for reuse by later builds,
+ * keyed by HTTP port (only one container can listen on a given port).
+ *
+ * <p>Each entry records the container's home and configuration directories,
+ * the FEDORA_HOME it serves, its pid (where it can be determined) and a
+ * fingerprint of what it serves, so that a later build can attach to it only
+ * if it is still alive, healthy and serving the same WAR and FEDORA_HOME, and
+ * does not provision a FEDORA_HOME under it. Access to an entry is
+ * serialized across processes with a file lock per port.
+ */
+public class ContainerRegistry {
+
+    /** System property used to find the pid of a container we started */
+    public static final String INSTANCE_PROPERTY = "fedora.cargo.instance";
+
+    private static final long LOCK_POLL_MILLIS = 50;
+
+    private final File dir;
+
+    public ContainerRegistry(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Locks the entry for port, blocking until any other process (or thread)
+     * holding the lock releases it.
+     *
+     * @return the lock, to be released by the caller
+     * @throws IOException
+     */
+    public FileLock lock(int port) throws IOException {
+        dir.mkdirs();
+        RandomAccessFile file =
+                new RandomAccessFile(new File(dir, port + ".lock"), "rw");
+        try {
+            while (true) {
+                try {
+                    return file.getChannel().lock();
+                } catch (OverlappingFileLockException e) {
+                    // held by another thread of this JVM (e.g. a parallel
+                    // build), which file locks do not serialize against
+                    Thread.sleep(LOCK_POLL_MILLIS);
+                }
+            }
+        } catch (InterruptedException e) {
+            file.close();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while locking " +
+                    "the entry for port " + port);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Releases a lock returned by {@link #lock(int)}.
+     */
+    public static void release(FileLock lock) {
+        if (lock == null) {
+            return;
+        }
+        try {
+            lock.release();
+        } catch (IOException e) {
+            // closing the channel releases it anyway
+        } finally {
+            IOUtils.closeQuietly(lock.channel());
+        }
+    }
+
+    /**
+     * @return the entry for port, or null if there is none
+     * @throws IOException
+     */
+    public Entry get(int port) throws IOException {
+        File file = getEntryFile(port);
+        if (!file.isFile()) {
+            return null;
+        }
+        Properties props = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            props.load(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return new Entry(props);
+    }
+
+    public void put(Entry entry) throws IOException {
+        dir.mkdirs();
+        File file = getEntryFile(entry.getPort());
+        File tmp = new File(dir, file.getName() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            entry.props.store(out, "fedora-cargo-plugin container");
+        } finally {
+            out.close();
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public void remove(int port) {
+        FileUtils.deleteQuietly(getEntryFile(port));
+    }
+
+    /**
+     * @return the directory to use as the Cargo configuration home of the
+     * container on port
+     */
+    public File getConfigHome(int port) {
+        return new File(dir, port + "-conf");
+    }
+
+    private File getEntryFile(int port) {
+        return new File(dir, port + ".properties");
+    }
+
+    /**
+     * Finds the pid of the JVM whose command line contains
+     * -Dfedora.cargo.instance=instanceId. Only supported where /proc is
+     * available.
+     *
+     * @return the pid, or -1 if it could not be determined
+     */
+    public static long findPid(String instanceId) {
+        File[] procs = new File("/proc").listFiles();
+        if (procs == null) {
+            return -1;
+        }
+        String token = "-D" + INSTANCE_PROPERTY + "=" + instanceId;
+        for (File proc : procs) {
+            if (!proc.getName().matches("\\d+")) {
+                continue;
+            }
+            try {
+                byte[] cmdline =
+                        Files.readAllBytes(new File(proc, "cmdline").toPath());
+                for (String arg : new String(cmdline, "UTF-8").split("\0")) {
+                    if (arg.equals(token)) {
+                        return Long.parseLong(proc.getName());
+                    }
+                }
+            } catch (IOException e) {
+                // the process exited or is not ours to read
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return false if the process is known not to be running, true if it is
+     * or if that cannot be determined
+     */
+    public static boolean isAlive(long pid) {
+        if (pid < 0 || !new File("/proc").isDirectory()) {
+            return true;
+        }
+        return new File("/proc", Long.toString(pid)).exists();
+    }
+
+    /**
+     * @return true iff a GET of url succeeds within the timeout. An
+     * authentication challenge counts as success, since it means the
+     * application is up.
+     */
+    public static boolean isHealthy(String url, int timeoutMillis) {
+        HttpURLConnection conn = null;
+        try {
+            conn = (HttpURLConnection) new URL(url).openConnection();
+            conn.setConnectTimeout(timeoutMillis);
+            conn.setReadTimeout(timeoutMillis);
+            conn.setInstanceFollowRedirects(false);
+            int status = conn.getResponseCode();
+            return (status >= 200 && status < 400) ||
+                    status == HttpURLConnection.HTTP_UNAUTHORIZED;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    /**
+     * A registered container.
+     */
+    public static class Entry {
+
+        private final Properties props;
+
+        private Entry(Properties props) {
+            this.props = props;
+        }
+
+        public Entry(int port, String containerId, String home,
+                File configHome, File fedoraHome, String fingerprint,
+                String instanceId, long pid) {
+            props = new Properties();
+            props.setProperty("port", Integer.toString(port));
+            props.setProperty("containerId", containerId);
+            props.setProperty("home", home);
+            props.setProperty("configHome", configHome.getAbsolutePath());
+            if (fedoraHome != null) {
+                props.setProperty("fedoraHome", fedoraHome.getAbsolutePath());
+            }
+            props.setProperty("fingerprint", fingerprint);
+            props.setProperty("instanceId", instanceId);
+            props.setProperty("pid", Long.toString(pid));
+            props.setProperty("started", Long.toString(System
+                    .currentTimeMillis()));
+        }
+
+        public int getPort() {
+            return Integer.parseInt(props.getProperty("port"));
+        }
+
+        public String getContainerId() {
+            return props.getProperty("containerId");
+        }
+
+        public String getHome() {
+            return props.getProperty("home");
+        }
+
+        public File getConfigHome() {
+            return new File(props.getProperty("configHome"));
+        }
+
+        /**
+         * @return the FEDORA_HOME served, or null if it was not recorded
+         */
+        public File getFedoraHome() {
+            String fedoraHome = props.getProperty("fedoraHome");
+            return fedoraHome == null ? null : new File(fedoraHome);
+        }
+
+        public String getFingerprint() {
+            return props.getProperty("fingerprint", "");
+        }
+
+        public String getInstanceId() {
+            return props.getProperty("instanceId");
+        }
+
+        public long getPid() {
+            return Long.parseLong(props.getProperty("pid", "-1"));
+        }
+
+        @Override
+        public String toString() {
+            return getContainerId() + " on port " + getPort() + " (pid " +
+                    getPid() + ")";
+        }
+    }
+}
@@ -23,6 +23,8 @@ import java.io.InputStream;
 import java.net.URL;
 import java.util.Properties;
 
+import org.apache.commons.io.IOUtils;
+
 /**
  * Abstract class representing the contents of the software installer package.
  *
@@ -67,18 +69,22 @@ public abstract class Distribution {
 
     private static Properties PROPS;
     static {
-        // an up to date install.properties should be provided by the buildfile
+        // an up to date install.properties is provided by Fedora's installer;
+        // without it (e.g. in this plugin) the names below are null
         String path = "resources/install.properties";
         InputStream in =
                 OptionDefinition.class.getClassLoader().getResourceAsStream(
                         path);
         PROPS = new Properties();
-        try {
-            PROPS.load(in);
-        } catch (Exception e) {
-            System.err.println("ERROR: Unable to load required resource: " +
-                    path);
-            System.exit(1);
+        if (in != null) {
+            try {
+                PROPS.load(in);
+            } catch (IOException e) {
+                System.err.println("WARNING: Unable to load resource: " +
+                        path + ": " + e.getMessage());
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
         }
         TOMCAT = PROPS.getProperty("install.tomcat");
         JDBC_DERBY = PROPS.getProperty("install.jdbc.derby");
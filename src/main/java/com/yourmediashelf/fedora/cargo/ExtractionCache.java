@@ -0,0 +1,303 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.yourmediashelf.fedora.cargo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * A persistent cache of extracted archives, keyed by the archive's
+ * coordinates and the SHA-1 of its content.
+ *
+ * <p>On a cache hit, the extracted tree is materialized by hard-linking each
+ * file from the cache, falling back to a plain copy where links are not
+ * supported (e.g. across file systems). Files beneath one of the given copy
+ * prefixes are always copied, so that they may be rewritten in place without
+ * corrupting the cache. Linked files may only be replaced (see
+ * {@link AtomicFiles}), never written through; to catch writes that would,
+ * the files of an entry are made read-only once it is extracted.
+ *
+ * <p>Where hard links are not supported, the tree may instead be
+ * materialized as an overlay of symbolic links into the cache, so that only
+ * the copied prefixes and the files later replaced cost a real file.
+ */
+public class ExtractionCache {
+
+    private final File cacheDir;
+
+    private final ArchiveExtractor extractor;
+
+    private final Log log;
+
+    public ExtractionCache(File cacheDir, ArchiveExtractor extractor, Log log) {
+        this.cacheDir = cacheDir;
+        this.extractor = extractor;
+        this.log = log;
+    }
+
+    /**
+     * Get the extracted tree of the archive, extracting it into the cache if
+     * it is not already present.
+     *
+     * @param coords the coordinates of the archive (e.g. groupId:artifactId:...)
+     * @param archive the archive file
+     * @return the directory holding the extracted archive. This directory is
+     * shared and must not be modified.
+     * @throws IOException
+     */
+    public File get(String coords, File archive) throws IOException {
+        String key = Checksums.sha1(coords + "\n" + Checksums.sha1(archive));
+        File entry = new File(cacheDir, key);
+        if (entry.isDirectory()) {
+            info("Extraction cache hit for " + coords);
+            return entry;
+        }
+
+        info("Extraction cache miss for " + coords);
+        cacheDir.mkdirs();
+        File tmp = new File(cacheDir, key + ".tmp-" + System.nanoTime());
+        try {
+            extractor.extract(archive, tmp);
+            setReadOnly(tmp);
+            try {
+                Files.move(tmp.toPath(), entry.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), entry.toPath());
+            }
+        } catch (FileAlreadyExistsException e) {
+            // another build populated the entry concurrently
+        } catch (FileSystemException e) {
+            // likewise, but reported by rename(2) as "Directory not empty"
+            if (!entry.isDirectory()) {
+                throw e;
+            }
+        } finally {
+            FileUtils.deleteQuietly(tmp);
+        }
+        if (!entry.isDirectory()) {
+            throw new IOException("Unable to populate extraction cache " +
+                    entry);
+        }
+        return entry;
+    }
+
+    private static void setReadOnly(File dir) throws IOException {
+        Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file,
+                    BasicFileAttributes attrs) throws IOException {
+                if (!file.toFile().setWritable(false, false)) {
+                    throw new IOException("Unable to make " + file +
+                            " read-only");
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Materializes a cached tree at dest, linking every file.
+     *
+     * @see #materialize(File, File, Collection, boolean)
+     */
+    public void materialize(File source, File dest) throws IOException {
+        materialize(source, dest, Collections.<String> emptySet(), false);
+    }
+
+    /**
+     * Materializes a cached tree at dest, copying rather than symlinking
+     * where hard links are not supported.
+     *
+     * @see #materialize(File, File, Collection, boolean)
+     */
+    public void materialize(File source, File dest,
+            Collection<String> copyPrefixes) throws IOException {
+        materialize(source, dest, copyPrefixes, false);
+    }
+
+    /**
+     * Materializes a cached tree at dest. Existing files in dest are replaced.
+     *
+     * @param source a directory returned by {@link #get(String, File)}
+     * @param dest the destination directory
+     * @param copyPrefixes relative paths (using '/' as separator) beneath
+     * which files are copied rather than linked
+     * @param symlinks whether to fall back to symbolic links, rather than
+     * copies, where hard links are not supported. The materialized tree then
+     * depends on the cache entry remaining in place.
+     * @throws IOException
+     */
+    public void materialize(File source, File dest,
+            Collection<String> copyPrefixes, boolean symlinks)
+            throws IOException {
+        materialize(source, dest, copyPrefixes, symlinks,
+                Collections.<File> emptySet());
+    }
+
+    /**
+     * Materializes a cached tree at dest. Existing files in dest are replaced,
+     * except for those to be kept.
+     *
+     * @param kept files in dest that are left as they are if they exist, e.g.
+     * those already configured from the same cache entry
+     * @see #materialize(File, File, Collection, boolean)
+     */
+    public void materialize(File source, File dest,
+            Collection<String> copyPrefixes, boolean symlinks,
+            Collection<File> kept) throws IOException {
+        long start = System.currentTimeMillis();
+        Materializer m =
+                new Materializer(source.toPath(), dest.toPath(), copyPrefixes);
+        m.symlinkSupported = symlinks;
+        for (File f : kept) {
+            m.kept.add(f.toPath().toAbsolutePath().normalize());
+        }
+        Files.walkFileTree(source.toPath(), m);
+        info(String.format("Materialized %s from extraction cache in %d ms " +
+                "(%d linked, %d symlinked, %d copied, %d kept)", dest,
+                System.currentTimeMillis() - start, m.linked, m.symlinked,
+                m.copied, m.unchanged));
+    }
+
+    private void info(String msg) {
+        if (log != null) {
+            log.info(msg);
+        }
+    }
+
+    private static class Materializer extends SimpleFileVisitor<Path> {
+
+        private final Path source;
+
+        private final Path dest;
+
+        private final Collection<String> copyPrefixes;
+
+        private final Set<Path> kept = new HashSet<Path>();
+
+        private boolean linkSupported = true;
+
+        private boolean symlinkSupported;
+
+        private int linked;
+
+        private int symlinked;
+
+        private int copied;
+
+        private int unchanged;
+
+        Materializer(Path source, Path dest, Collection<String> copyPrefixes) {
+            this.source = source;
+            this.dest = dest;
+            this.copyPrefixes = copyPrefixes;
+        }
+
+        @Override
+        public FileVisitResult preVisitDirectory(Path dir,
+                BasicFileAttributes attrs) throws IOException {
+            Files.createDirectories(dest.resolve(source.relativize(dir)));
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                throws IOException {
+            Path relative = source.relativize(file);
+            Path target = dest.resolve(relative);
+            if (kept.contains(target.toAbsolutePath().normalize()) &&
+                    Files.isRegularFile(target)) {
+                unchanged++;
+                return FileVisitResult.CONTINUE;
+            }
+            boolean copy = isCopied(relative);
+            if (!copy && Files.exists(target) &&
+                    Files.isSameFile(file, target)) {
+                if (!Files.isSymbolicLink(target)) {
+                    linked++;
+                    return FileVisitResult.CONTINUE;
+                } else if (symlinkSupported) {
+                    symlinked++;
+                    return FileVisitResult.CONTINUE;
+                }
+            }
+            if (linkSupported && !copy) {
+                Files.deleteIfExists(target);
+                try {
+                    Files.createLink(target, file);
+                    linked++;
+                    return FileVisitResult.CONTINUE;
+                } catch (UnsupportedOperationException e) {
+                    linkSupported = false;
+                } catch (IOException e) {
+                    // e.g. the cache and dest are on different file systems
+                    linkSupported = false;
+                }
+            }
+            if (symlinkSupported && !copy) {
+                Files.deleteIfExists(target);
+                try {
+                    Files.createSymbolicLink(target, file.toAbsolutePath());
+                    symlinked++;
+                    return FileVisitResult.CONTINUE;
+                } catch (UnsupportedOperationException e) {
+                    symlinkSupported = false;
+                } catch (IOException e) {
+                    // e.g. Windows without the symlink privilege
+                    symlinkSupported = false;
+                }
+            }
+            Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.COPY_ATTRIBUTES);
+            // copies are meant to be written to, unlike the cache entry
+            target.toFile().setWritable(true);
+            copied++;
+            return FileVisitResult.CONTINUE;
+        }
+
+        private boolean isCopied(Path relative) {
+            String path = relative.toString().replace(File.separatorChar, '/');
+            for (String prefix : copyPrefixes) {
+                if (path.startsWith(prefix)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -20,12 +20,22 @@
 package com.yourmediashelf.fedora.cargo;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.channels.FileLock;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
+import org.apache.commons.io.FilenameUtils;
+import org.apache.maven.execution.MavenSession;
 import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.project.MavenProject;
 import org.codehaus.cargo.container.ContainerType;
 import org.codehaus.cargo.container.InstalledLocalContainer;
 import org.codehaus.cargo.container.LocalContainer;
@@ -33,7 +43,9 @@ import org.codehaus.cargo.container.configuration.ConfigurationType;
 import org.codehaus.cargo.container.configuration.LocalConfiguration;
 import org.codehaus.cargo.container.configuration.StandaloneLocalConfiguration;
 import org.codehaus.cargo.container.deployable.WAR;
+import org.codehaus.cargo.container.property.GeneralPropertySet;
 import org.codehaus.cargo.container.property.ServletPropertySet;
+import org.codehaus.cargo.container.tomcat.TomcatPropertySet;
 import org.codehaus.cargo.generic.DefaultContainerFactory;
 import org.codehaus.cargo.generic.configuration.ConfigurationFactory;
 import org.codehaus.cargo.generic.configuration.DefaultConfigurationFactory;
@@ -55,14 +67,18 @@ public abstract class FedoraCargoMojo extends FedoraCommonMojo {
             FedoraCargoMojo.class.getName() + "-Container";
 
     /**
-     * The {@code <groupId>:<artifactId>[:<extension>[:<classifier>]]:<version>} 
-     * of the war to resolve.
-     *
-     * @parameter alias="fedora.war" 
-     *            property="fedora.war" 
-     *            default-value="org.fcrepo:fcrepo-webapp-fedora:war:${fcrepo.version}"
+     * The suffix of the key (after {@link #CONTEXT_CONTAINER_KEY_PREFIX} and
+     * the container id) under which an asynchronous start is stored in the
+     * plugin context, for fedora-await to wait for.
      */
-    private String fedoraWar;
+    public static final String CONTEXT_START_KEY_SUFFIX = ".start";
+
+    /**
+     * The suffix of the key (after {@link #CONTEXT_CONTAINER_KEY_PREFIX} and
+     * the container id) under which the shutdown hook of an asynchronous
+     * start is stored in the plugin context, for fedora-stop to remove.
+     */
+    public static final String CONTEXT_STOP_HOOK_KEY_SUFFIX = ".stopHook";
 
     /**
      * System properties to pass through to the container.
@@ -88,32 +104,168 @@ public abstract class FedoraCargoMojo extends FedoraCommonMojo {
     private String containerLog;
 
     /**
-     * @parameter alias="container.artifact"
-     *            property="container.artifact" 
-     *            default-value="org.apache.tomcat:tomcat:zip:7.0.39"
+     * With container.reuse, whether fedora-stop leaves the container running
+     * (the default) rather than stopping it.
+     * @parameter alias="container.keepAlive"
+     *            property="container.keepAlive"
+     *            default-value="true"
      */
-    private String containerArtifact;
+    protected boolean containerKeepAlive;
 
-    public void execute() throws MojoExecutionException {
+    /**
+     * Maximum time, in milliseconds, to wait for Fedora to start.
+     * @parameter alias="container.timeout"
+     *            property="container.timeout"
+     *            default-value="120000"
+     */
+    private long containerTimeout;
 
+    /**
+     * Whether to wait for Fedora itself (its describe endpoint) to answer,
+     * rather than only for Cargo's ping of the deployed WAR.
+     * @parameter alias="container.awaitReadiness"
+     *            property="container.awaitReadiness"
+     *            default-value="true"
+     */
+    private boolean containerAwaitReadiness;
+
+    /**
+     * Whether to share the container with the other modules of the reactor
+     * build: the first module to run fedora-start boots Fedora, later
+     * modules attach to it, and it is stopped once every module binding
+     * fedora-start has run fedora-stop. Enable it in every such module
+     * (e.g. through a property of the parent POM), on the same fedora.port.
+     * @parameter alias="container.shared"
+     *            property="container.shared"
+     *            default-value="false"
+     */
+    private boolean containerShared;
+
+    /**
+     * The HTTP connector of Tomcat containers: nio or bio (Tomcat's default
+     * HTTP/1.1 connector).
+     * @parameter alias="container.connector.protocol"
+     *            property="container.connector.protocol"
+     *            default-value="nio"
+     */
+    private String connectorProtocol;
+
+    /**
+     * The maximum number of request threads of the HTTP connector of Tomcat
+     * containers, or 0 for 50 per processor (and at least 200).
+     * @parameter alias="container.connector.maxThreads"
+     *            property="container.connector.maxThreads"
+     *            default-value="0"
+     */
+    private int connectorMaxThreads;
+
+    /**
+     * The number of connections Tomcat queues while all request threads are
+     * busy, or 0 for as many as there are threads.
+     * @parameter alias="container.connector.acceptCount"
+     *            property="container.connector.acceptCount"
+     *            default-value="0"
+     */
+    private int connectorAcceptCount;
+
+    /**
+     * The number of requests served on a kept-alive connection before it is
+     * closed (-1 for no limit).
+     * @parameter alias="container.connector.maxKeepAliveRequests"
+     *            property="container.connector.maxKeepAliveRequests"
+     *            default-value="1000"
+     */
+    private int connectorMaxKeepAliveRequests;
+
+    /**
+     * Whether Tomcat compresses responses: off, on or force.
+     * @parameter alias="container.connector.compression"
+     *            property="container.connector.compression"
+     *            default-value="off"
+     */
+    private String connectorCompression;
+
+    /**
+     * The garbage collector of the container: G1, Parallel, ConcMarkSweep
+     * (or CMS) or Serial, or none to leave the choice to the JVM.
+     * @parameter alias="container.gc"
+     *            property="container.gc"
+     *            default-value="none"
+     */
+    private String containerGc;
+
+    /**
+     * Further JVM arguments of the container, appended to those derived from
+     * container.heap and container.gc.
+     * @parameter alias="container.jvmArgs"
+     *            property="container.jvmArgs"
+     */
+    private String containerJvmArgs;
+
+    /**
+     * @parameter default-value="${session}"
+     * @readonly
+     */
+    private MavenSession session;
+
+    /** the JVM flags selecting each container.gc */
+    private static final Map<String, String> GC_FLAGS =
+            new HashMap<String, String>();
+
+    static {
+        GC_FLAGS.put("G1", "-XX:+UseG1GC");
+        GC_FLAGS.put("Parallel", "-XX:+UseParallelGC");
+        GC_FLAGS.put("ConcMarkSweep", "-XX:+UseConcMarkSweepGC");
+        GC_FLAGS.put("CMS", "-XX:+UseConcMarkSweepGC");
+        GC_FLAGS.put("Serial", "-XX:+UseSerialGC");
+    }
+
+    /** the XPath by which Cargo locates Tomcat's HTTP connector */
+    private static final String HTTP_CONNECTOR =
+            "//Server/Service/Connector[not(@protocol) or " +
+                    "@protocol='HTTP/1.1' or " +
+                    "@protocol='org.apache.coyote.http11.Http11NioProtocol']";
+
+    /** the id passed to a container started for reuse, to find its pid */
+    private String instanceId;
+
+    public void execute() throws MojoExecutionException {
         doExecute();
     }
 
     protected abstract void doExecute() throws MojoExecutionException;
 
     protected LocalContainer getContainer() throws MojoExecutionException {
+        return getContainer(null, null);
+    }
+
+    /**
+     * @param instance the instance, or null for the single container
+     * @param home the container installation, or null to install it
+     */
+    private LocalContainer getContainer(FedoraInstance instance, String home)
+            throws MojoExecutionException {
         LocalContainer container = null;
         @SuppressWarnings("unchecked")
         Map<Object, Object> context = getPluginContext();
 
         String containerKey = CONTEXT_CONTAINER_KEY_PREFIX + "." + containerId;
+        if (instance != null) {
+            containerKey += "." + instance.getIndex();
+        }
 
         if (context != null) {
             container = (LocalContainer) context.get(containerKey);
         }
 
         if (container == null) {
-            container = createNewContainer();
+            if (instance == null) {
+                container = createNewContainer();
+            } else {
+                container =
+                        configureContainer(home == null ? installContainer()
+                                : home, getConfigHome(instance), instance);
+            }
         }
 
         if (context != null) {
@@ -125,20 +277,577 @@ public abstract class FedoraCargoMojo extends FedoraCommonMojo {
 
     private LocalContainer createNewContainer() throws MojoExecutionException {
         String home = installContainer();
-        return configureContainer(home);
+        File configHome = null;
+        if (containerReuse) {
+            configHome = getContainerRegistry().getConfigHome(getPort());
+        }
+        return configureContainer(home, configHome, null);
     }
 
-    protected String installContainer() throws MojoExecutionException {
-        File buildDir =
-                new File(mavenProject.getBuild().getDirectory(), "extracts");
-        ArtifactResult result = getArtifact(containerArtifact);
+    /**
+     * @return the Cargo configuration directory of an instance, which must
+     * not be shared with the other instances
+     */
+    private File getConfigHome(FedoraInstance instance) {
+        return new File(mavenProject.getBuild().getDirectory(), "cargo/" +
+                containerId + "-" + instance.getIndex());
+    }
+
+    /**
+     * Starts the container or, with container.reuse, attaches to a matching
+     * container left running by a previous build.
+     * 
+     * @throws MojoExecutionException
+     */
+    protected void startContainer() throws MojoExecutionException {
+        if (isMultiInstance()) {
+            startInstances();
+            return;
+        }
+        if (containerShared) {
+            startShared();
+            return;
+        }
+        startSingle();
+    }
+
+    private void startSingle() throws MojoExecutionException {
+        if (!containerReuse) {
+            start(getContainer(), getHealthUrl(), new File(containerLog), "");
+            return;
+        }
+
+        int port = getPort();
+        ContainerRegistry registry = getContainerRegistry();
+        FileLock lock = null;
         try {
-            unzip(result.getArtifact().getFile(), buildDir);
-        } catch (FileNotFoundException e) {
+            lock = registry.lock(port);
+            String fingerprint = getContainerFingerprint();
+            ContainerRegistry.Entry entry = registry.get(port);
+            if (entry != null) {
+                if (entry.getFingerprint().equals(fingerprint) &&
+                        ContainerRegistry.isAlive(entry.getPid()) &&
+                        ContainerRegistry.isHealthy(getHealthUrl(), 5000)) {
+                    getLog().info("Reusing running container " + entry);
+                    return;
+                }
+                stopStale(entry);
+                registry.remove(port);
+            }
+
+            LocalContainer container = getContainer();
+            start(container, getHealthUrl(), new File(containerLog), "");
+            long pid = ContainerRegistry.findPid(getInstanceId());
+            registry.put(new ContainerRegistry.Entry(port, containerId,
+                    ((InstalledLocalContainer) container).getHome(), registry
+                            .getConfigHome(port), fedoraHomeDir, fingerprint,
+                    getInstanceId(), pid));
+            getLog().info("Registered container for reuse on port " + port +
+                    " (pid " + pid + ")");
+        } catch (IOException e) {
             throw new MojoExecutionException(e.getMessage(), e);
+        } finally {
+            ContainerRegistry.release(lock);
+        }
+    }
+
+    /**
+     * Attaches to the container shared by the reactor, starting it if no
+     * other module has.
+     */
+    private void startShared() throws MojoExecutionException {
+        SharedContainer shared = getSharedContainer();
+        synchronized (shared) {
+            String fingerprint = getSharedFingerprint();
+            if (shared.isActive()) {
+                if (!fingerprint.equals(shared.getFingerprint())) {
+                    throw new MojoExecutionException("The shared container " +
+                            shared + " was started by " + shared.getOwner() +
+                            " with different settings; use the same " +
+                            "container, WAR and system properties in every " +
+                            "module, or disable container.shared");
+                }
+                getLog().info("Attaching to the shared container started by " +
+                        shared.getOwner());
+                shared.attached();
+                return;
+            }
+            startSingle();
+            int users = 0;
+            for (MavenProject project : session.getProjects()) {
+                users += countBindings(project, "fedora-start");
+            }
+            // a container kept alive for reuse must survive this build
+            shared.started(containerReuse && containerKeepAlive ? null
+                    : getContainer(), fingerprint, mavenProject.getId(), users);
+            getLog().info("Sharing the container with the reactor (" +
+                    Math.max(users, 1) + " module(s) bind fedora-start)");
+        }
+    }
+
+    /**
+     * Runs task with the container stopped (e.g. so that FEDORA_HOME is
+     * consistent on disk), then starts the same container again if it was
+     * running. With container.shared, a running shared container may only be
+     * stopped by the module that started it, as it serves that module's
+     * FEDORA_HOME, and only until another module attaches to it.
+     *
+     * @return false if the container may not be stopped, in which case task
+     * is not run
+     * @throws MojoExecutionException
+     */
+    protected boolean runStopped(Callable<Void> task)
+            throws MojoExecutionException {
+        if (containerShared) {
+            SharedContainer shared = getSharedContainer();
+            synchronized (shared) {
+                if (shared.isActive()) {
+                    LocalContainer container =
+                            shared.getStoppable(mavenProject.getId());
+                    if (container == null) {
+                        getLog().info("The shared container " + shared +
+                                " serves the FEDORA_HOME of " +
+                                shared.getOwner() + " and may be in use " +
+                                "by other modules; not stopping it");
+                        return false;
+                    }
+                    return runStopped(container, task);
+                }
+            }
+        }
+        return runStopped(getContainer(), task);
+    }
+
+    private boolean runStopped(LocalContainer container, Callable<Void> task)
+            throws MojoExecutionException {
+        boolean running = container.getState().isStarted();
+        if (running) {
+            container.stop();
+        }
+        try {
+            task.call();
+        } catch (MojoExecutionException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+        if (running) {
+            start(container, getHealthUrl(), new File(containerLog), "");
+        }
+        return true;
+    }
+
+    /**
+     * Starts a container per instance, concurrently. If any of them fails to
+     * start, those that did are stopped again.
+     */
+    private void startInstances() throws MojoExecutionException {
+        if (containerReuse) {
+            throw new MojoExecutionException(
+                    "container.reuse is not supported with fedora.instances");
+        }
+        final List<FedoraInstance> list = getInstances();
+        final Map<FedoraInstance, LocalContainer> containers =
+                getContainers(list);
+        try {
+            forEachInstance(list, new InstanceTask() {
+
+                public void run(FedoraInstance instance)
+                        throws MojoExecutionException {
+                    getLog().info("Starting " + instance);
+                    start(containers.get(instance), instance.getUrl() +
+                            "/describe", getContainerLog(instance), "Instance " +
+                            instance.getIndex() + ": ");
+                }
+            });
+        } catch (MojoExecutionException e) {
+            stopInstances(list, true);
+            throw e;
+        }
+    }
+
+    /**
+     * @return the container of each instance, installing the container
+     * (once) if any of them has not been created yet
+     */
+    private Map<FedoraInstance, LocalContainer> getContainers(
+            List<FedoraInstance> list) throws MojoExecutionException {
+        Map<FedoraInstance, LocalContainer> containers =
+                new HashMap<FedoraInstance, LocalContainer>();
+        String home = null;
+        for (FedoraInstance instance : list) {
+            LocalContainer container = getContainer(instance, home);
+            if (home == null) {
+                home = ((InstalledLocalContainer) container).getHome();
+            }
+            containers.put(instance, container);
+        }
+        return containers;
+    }
+
+    /**
+     * @param onlyStarted whether to skip containers not started by this
+     * build, rather than attempting to stop them regardless
+     */
+    private void stopInstances(List<FedoraInstance> list,
+            final boolean onlyStarted) throws MojoExecutionException {
+        final Map<FedoraInstance, LocalContainer> containers =
+                getContainers(list);
+        try {
+            forEachInstance(list, new InstanceTask() {
+
+                public void run(FedoraInstance instance)
+                        throws MojoExecutionException {
+                    LocalContainer container = containers.get(instance);
+                    if (!onlyStarted || container.getState().isStarted() ||
+                            container.getState().isStarting()) {
+                        container.stop();
+                    }
+                }
+            });
+        } finally {
+            for (FedoraInstance instance : list) {
+                PortAllocator.release(instance.getPort());
+                PortAllocator.release(instance.getShutdownPort());
+                PortAllocator.release(instance.getAjpPort());
+            }
+        }
+    }
+
+    /**
+     * Starts the container (as {@link #startContainer()} does) on a
+     * background thread, and returns immediately. {@link #awaitContainer()}
+     * waits for the start to complete.
+     *
+     * @throws MojoExecutionException
+     */
+    protected void startContainerAsync() throws MojoExecutionException {
+        @SuppressWarnings("unchecked")
+        Map<Object, Object> context = getPluginContext();
+        if (context == null) {
+            getLog().warn("No plugin context; starting synchronously");
+            startContainer();
+            return;
+        }
+        // create the container on this thread, so that any configuration
+        // error fails the goal right away
+        if (!isMultiInstance()) {
+            getContainer();
+        }
+
+        FutureTask<Void> start = new FutureTask<Void>(new Callable<Void>() {
+
+            public Void call() throws MojoExecutionException {
+                startContainer();
+                return null;
+            }
+        });
+        Thread thread = new Thread(start, "fedora-async-start");
+        thread.setDaemon(true);
+        context.put(getStartKey(), start);
+        if (!(containerReuse && containerKeepAlive)) {
+            // don't leave the container running if the build fails before
+            // fedora-await or fedora-stop
+            removeStopHook();
+            Thread hook = new Thread(new Runnable() {
+
+                public void run() {
+                    stopAbandoned();
+                }
+            }, "fedora-async-stop");
+            Runtime.getRuntime().addShutdownHook(hook);
+            context.put(getStopHookKey(), hook);
+        }
+        thread.start();
+        getLog().info("Starting the container in the background");
+    }
+
+    /**
+     * Waits for a start begun by {@link #startContainerAsync()}.
+     *
+     * @return false if there is no such start
+     * @throws MojoExecutionException if the start failed
+     */
+    protected boolean awaitContainer() throws MojoExecutionException {
+        @SuppressWarnings("unchecked")
+        Map<Object, Object> context = getPluginContext();
+        Object start = context == null ? null : context.remove(getStartKey());
+        if (!(start instanceof Future)) {
+            return false;
+        }
+        long begin = System.currentTimeMillis();
+        try {
+            ((Future<?>) start).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MojoExecutionException) {
+                throw (MojoExecutionException) e.getCause();
+            }
+            throw new MojoExecutionException(e.getCause().getMessage(), e
+                    .getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException(
+                    "Interrupted while waiting for the container", e);
+        }
+        getLog().info(
+                "Waited " + (System.currentTimeMillis() - begin) +
+                        " ms for the container");
+        return true;
+    }
+
+    /**
+     * Removes the shutdown hook registered by {@link #startContainerAsync()},
+     * once the container it would stop has been stopped. Otherwise every
+     * module of a reactor would keep a hook, and with it its mojo, until the
+     * JVM exits.
+     */
+    protected void removeStopHook() {
+        @SuppressWarnings("unchecked")
+        Map<Object, Object> context = getPluginContext();
+        Object hook = context == null ? null : context.remove(getStopHookKey());
+        if (hook instanceof Thread) {
+            try {
+                Runtime.getRuntime().removeShutdownHook((Thread) hook);
+            } catch (IllegalStateException e) {
+                // the JVM is shutting down already
+            }
+        }
+    }
+
+    private String getStartKey() {
+        return CONTEXT_CONTAINER_KEY_PREFIX + "." + containerId +
+                CONTEXT_START_KEY_SUFFIX;
+    }
+
+    private String getStopHookKey() {
+        return CONTEXT_CONTAINER_KEY_PREFIX + "." + containerId +
+                CONTEXT_STOP_HOOK_KEY_SUFFIX;
+    }
+
+    /**
+     * Stops the containers of this build that are still running at JVM exit.
+     */
+    private void stopAbandoned() {
+        @SuppressWarnings("unchecked")
+        Map<Object, Object> context = getPluginContext();
+        for (Object value : context.values()) {
+            if (value instanceof LocalContainer) {
+                LocalContainer container = (LocalContainer) value;
+                if (container.getState().isStarted() ||
+                        container.getState().isStarting()) {
+                    stopQuietly(container);
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts the container and waits until Fedora is serving, logging how
+     * long each phase of the startup took.
+     *
+     * @param healthUrl the URL that answers once Fedora is ready
+     * @param log the container's output file
+     * @param prefix the prefix of the messages logged
+     */
+    private void start(LocalContainer container, String healthUrl, File log,
+            String prefix) throws MojoExecutionException {
+        if (!containerAwaitReadiness) {
+            container.setTimeout(containerTimeout);
+            container.start();
+            return;
+        }
+
+        // the container only truncates its log once its JVM is up; until
+        // then, an old log would be taken for this start's output
+        long logOffset = 0;
+        if (container.isAppend()) {
+            logOffset = log.isFile() ? log.length() : 0;
+        } else if (log.isFile() && !log.delete()) {
+            getLog().warn("Unable to delete " + log);
+        }
+        // Cargo's own wait only pings the deployed WAR; wait for Fedora instead
+        container.setTimeout(0);
+        long start = System.currentTimeMillis();
+        container.start();
+        try {
+            ReadinessMonitor monitor =
+                    new ReadinessMonitor(healthUrl, log, logOffset,
+                            containerTimeout, getLog());
+            if (container instanceof InstalledLocalContainer) {
+                String id = ((InstalledLocalContainer) container)
+                        .getSystemProperties().get(
+                                ContainerRegistry.INSTANCE_PROPERTY);
+                if (id != null) {
+                    monitor.setLiveness(ReadinessMonitor.forInstance(id));
+                }
+            }
+            Map<String, Long> phases = monitor.await(start);
+            getLog().info(prefix + ReadinessMonitor.format(phases));
+        } catch (IOException e) {
+            stopQuietly(container);
+            throw new MojoExecutionException(e.getMessage() + " (see " +
+                    log + ")", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stopQuietly(container);
+            throw new MojoExecutionException(
+                    "Interrupted while waiting for Fedora", e);
+        }
+    }
+
+    private void stopQuietly(LocalContainer container) {
+        try {
+            container.stop();
+        } catch (Exception e) {
+            getLog().warn("Unable to stop container: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops the container, unless it is to be kept alive for reuse.
+     * 
+     * @throws MojoExecutionException
+     */
+    protected void stopContainer() throws MojoExecutionException {
+        if (isMultiInstance()) {
+            stopInstances(getInstances(), false);
+            return;
+        }
+        if (containerShared) {
+            stopShared();
+            return;
+        }
+        stopSingle(getContainer());
+    }
+
+    /**
+     * Releases the container shared by the reactor, stopping it if this is
+     * the last module to do so.
+     */
+    private void stopShared() throws MojoExecutionException {
+        SharedContainer shared = getSharedContainer();
+        synchronized (shared) {
+            if (!shared.isActive()) {
+                // this build never started it, e.g. the start failed
+                stopSingle(getContainer());
+                return;
+            }
+            int remaining = shared.release();
+            if (remaining > 0) {
+                getLog().info("Leaving the shared container running for " +
+                        remaining + " more module(s)");
+                return;
+            }
+            LocalContainer container = shared.getContainer();
+            stopSingle(container == null ? getContainer() : container);
+        }
+    }
+
+    private void stopSingle(LocalContainer container)
+            throws MojoExecutionException {
+        if (containerReuse && containerKeepAlive) {
+            getLog().info(
+                    "Leaving container running on port " + fedoraPort +
+                            " for reuse (container.keepAlive)");
+            return;
+        }
+        container.stop();
+        if (containerReuse) {
+            getContainerRegistry().remove(getPort());
+        }
+    }
+
+    /**
+     * Stops a registered container that may not be reused.
+     */
+    private void stopStale(ContainerRegistry.Entry entry) {
+        // without a pid, only a responding container is known to be running
+        if (!ContainerRegistry.isAlive(entry.getPid()) ||
+                (entry.getPid() < 0 && !ContainerRegistry.isHealthy(
+                        getHealthUrl(), 5000))) {
+            getLog().info("Discarding stale container " + entry);
+            return;
+        }
+        getLog().info("Stopping container " + entry +
+                ", which does not match this build");
+        try {
+            configureContainer(entry.getHome(), entry.getConfigHome(), null)
+                    .stop();
+        } catch (Exception e) {
+            getLog().warn("Unable to stop container " + entry + ": " +
+                    e.getMessage());
+        }
+    }
+
+    /**
+     * @return a fingerprint of everything that determines what a started
+     * container serves: the container and its settings, the WAR and the
+     * configuration in FEDORA_HOME
+     */
+    private String getContainerFingerprint() throws MojoExecutionException,
+            IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append(containerId).append('\n');
+        sb.append(containerArtifact).append('\n');
+        sb.append(fedoraPort).append('\n');
+        Map<String, String> sysProps =
+                new TreeMap<String, String>(getSystemProperties());
+        sysProps.remove(ContainerRegistry.INSTANCE_PROPERTY);
+        sb.append(sysProps).append('\n');
+        sb.append(getTuning()).append('\n');
+        sb.append(Checksums.sha1(getWarFile())).append('\n');
+        if (fedoraHomeDir != null) {
+            sb.append(Checksums.sha1Tree(new File(fedoraHomeDir,
+                    "server/config")));
+        }
+        return Checksums.sha1(sb.toString());
+    }
+
+    /**
+     * @return the shared container of this container id and port
+     */
+    private SharedContainer getSharedContainer() throws MojoExecutionException {
+        if (containerShared && isMultiInstance()) {
+            throw new MojoExecutionException(
+                    "container.shared is not supported with fedora.instances");
+        }
+        return SharedContainer.get(containerId + ":" + getPort());
+    }
+
+    /**
+     * @return a fingerprint of the settings that must agree between the
+     * modules sharing a container. FEDORA_HOME is each module's own, so it
+     * is left out: modules attaching use the first module's.
+     */
+    private String getSharedFingerprint() throws MojoExecutionException {
+        Map<String, String> sysProps =
+                new TreeMap<String, String>(getSystemProperties());
+        sysProps.remove("fedora.home");
+        sysProps.remove(ContainerRegistry.INSTANCE_PROPERTY);
+        try {
+            return Checksums.sha1(containerArtifact + "\n" + sysProps + "\n" +
+                    getTuning() + "\n" + Checksums.sha1(getWarFile()));
         } catch (IOException e) {
             throw new MojoExecutionException(e.getMessage(), e);
         }
+    }
+
+    private String getHealthUrl() {
+        return "http://localhost:" + fedoraPort + "/fedora/describe";
+    }
+
+    private String getInstanceId() {
+        if (instanceId == null) {
+            instanceId = UUID.randomUUID().toString();
+        }
+        return instanceId;
+    }
+
+    protected String installContainer() throws MojoExecutionException {
+        File buildDir =
+                new File(mavenProject.getBuild().getDirectory(), "extracts");
+        ArtifactResult result = getArtifact(containerArtifact);
+        extract(result.getArtifact(), buildDir);
 
         // Some potentially unwarranted assumptions to determine the 
         // install directory:
@@ -153,49 +862,200 @@ public abstract class FedoraCargoMojo extends FedoraCommonMojo {
         }
     }
 
-    private InstalledLocalContainer configureContainer(String home)
+    /**
+     * @param home the container installation
+     * @param configHome the Cargo configuration directory, or null for a
+     * temporary one
+     * @param instance the instance, or null for the single container
+     */
+    private InstalledLocalContainer configureContainer(String home,
+            File configHome, FedoraInstance instance)
             throws MojoExecutionException {
         getLog().info("Using container home: " + home);
 
         ConfigurationFactory configurationFactory =
                 new DefaultConfigurationFactory();
-        StandaloneLocalConfiguration configuration =
-                (StandaloneLocalConfiguration) configurationFactory
-                        .createConfiguration(
-                        containerId, ContainerType.INSTALLED,
-                        ConfigurationType.STANDALONE);
-        configuration.setProperty(ServletPropertySet.PORT, fedoraPort);
+        StandaloneLocalConfiguration configuration;
+        if (configHome == null) {
+            configuration =
+                    (StandaloneLocalConfiguration) configurationFactory
+                            .createConfiguration(containerId,
+                                    ContainerType.INSTALLED,
+                                    ConfigurationType.STANDALONE);
+        } else {
+            configuration =
+                    (StandaloneLocalConfiguration) configurationFactory
+                            .createConfiguration(containerId,
+                                    ContainerType.INSTALLED,
+                                    ConfigurationType.STANDALONE, configHome
+                                            .getAbsolutePath());
+        }
+        if (instance == null) {
+            configuration.setProperty(ServletPropertySet.PORT, fedoraPort);
+        } else {
+            configuration.setProperty(ServletPropertySet.PORT, Integer
+                    .toString(instance.getPort()));
+            // Cargo's Tomcat uses the RMI port as its shutdown port
+            configuration.setProperty(GeneralPropertySet.RMI_PORT, Integer
+                    .toString(instance.getShutdownPort()));
+            configuration.setProperty(TomcatPropertySet.AJP_PORT, Integer
+                    .toString(instance.getAjpPort()));
+        }
+        configuration.setProperty(GeneralPropertySet.JVMARGS, getJvmArgs());
+        if (containerId.startsWith("tomcat")) {
+            tuneConnector(configuration);
+        }
+        if (containerReuse && containerKeepAlive) {
+            // let the container outlive this build
+            configuration.setProperty(GeneralPropertySet.SPAWN_PROCESS,
+                    "true");
+        }
 
         DefaultContainerFactory cf = new DefaultContainerFactory();
         InstalledLocalContainer c =
                 (InstalledLocalContainer) cf.createContainer(containerId,
                         ContainerType.INSTALLED, configuration);
         c.setHome(home);
-        c.setOutput(containerLog);
-        c.setSystemProperties(getSystemProperties());
+        c.setOutput(getContainerLog(instance).getAbsolutePath());
+        c.setSystemProperties(getSystemProperties(instance));
 
         deploy(c.getConfiguration());
         return c;
     }
 
+    /**
+     * @return the JVM arguments of the container
+     */
+    private String getJvmArgs() throws MojoExecutionException {
+        StringBuilder args = new StringBuilder();
+        String heap = getContainerHeap();
+        // only commit the whole heap up front when asked to
+        if (isContainerHeapSet()) {
+            args.append("-Xms").append(heap).append(' ');
+        }
+        args.append("-Xmx").append(heap);
+        if (containerGc != null && !"none".equals(containerGc.trim())) {
+            String flag = GC_FLAGS.get(containerGc.trim());
+            if (flag == null) {
+                throw new MojoExecutionException("Unsupported container.gc: " +
+                        containerGc + " (expected G1, Parallel, " +
+                        "ConcMarkSweep, Serial or none)");
+            }
+            args.append(' ').append(flag);
+        }
+        if (containerJvmArgs != null && containerJvmArgs.trim().length() > 0) {
+            args.append(' ').append(containerJvmArgs.trim());
+        }
+        return args.toString();
+    }
+
+    /**
+     * Sets the protocol, threading, keep-alive and compression of Tomcat's
+     * HTTP connector in server.xml.
+     */
+    private void tuneConnector(StandaloneLocalConfiguration configuration)
+            throws MojoExecutionException {
+        String protocol;
+        if ("nio".equals(connectorProtocol)) {
+            protocol = "org.apache.coyote.http11.Http11NioProtocol";
+        } else if ("bio".equals(connectorProtocol)) {
+            protocol = "HTTP/1.1";
+        } else {
+            // Cargo locates the HTTP connector by these two protocols only,
+            // so it would no longer set the port of any other (e.g. NIO2)
+            throw new MojoExecutionException(
+                    "Unsupported container.connector.protocol: " +
+                            connectorProtocol + " (expected nio or bio)");
+        }
+        if (!connectorCompression.matches("off|on|force")) {
+            throw new MojoExecutionException(
+                    "Invalid container.connector.compression: " +
+                            connectorCompression);
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        int maxThreads =
+                connectorMaxThreads > 0 ? connectorMaxThreads : Math.max(200,
+                        cores * 50);
+        int acceptCount =
+                connectorAcceptCount > 0 ? connectorAcceptCount : maxThreads;
+
+        setConnectorAttribute(configuration, "maxThreads", maxThreads);
+        setConnectorAttribute(configuration, "minSpareThreads", Math.max(10,
+                cores * 2));
+        setConnectorAttribute(configuration, "acceptCount", acceptCount);
+        setConnectorAttribute(configuration, "maxKeepAliveRequests",
+                connectorMaxKeepAliveRequests);
+        setConnectorAttribute(configuration, "compression",
+                connectorCompression);
+        setConnectorAttribute(configuration, "protocol", protocol);
+    }
+
+    private static void setConnectorAttribute(
+            StandaloneLocalConfiguration configuration, String attribute,
+            Object value) {
+        configuration.addXmlReplacement("conf/server.xml", HTTP_CONNECTOR,
+                attribute, String.valueOf(value));
+    }
+
+    /**
+     * @return a summary of the container's tuning, for fingerprints
+     */
+    private String getTuning() throws MojoExecutionException {
+        return getJvmArgs() + " " + connectorProtocol + " " +
+                connectorMaxThreads + " " + connectorAcceptCount + " " +
+                connectorMaxKeepAliveRequests + " " + connectorCompression;
+    }
+
     //FIXME: this currently deploys fedoraWar unless the current artifact
     // is itself a war. We really should be more flexible here.
     private void deploy(LocalConfiguration cfg) throws MojoExecutionException {
-        WAR war = null;
+        File warFile = getWarFile();
         if (mavenProject.getPackaging().equalsIgnoreCase("war")) {
-            getLog().info("Deploying " + mavenProject.getArtifact().getFile()
-                                    .getAbsolutePath());
-            war = new WAR(mavenProject.getArtifact().getFile()
-                            .getAbsolutePath());
-        } else {
-            war =
-                    new WAR(getArtifact(fedoraWar).getArtifact().getFile()
-                            .getAbsolutePath());
+            getLog().info("Deploying " + warFile.getAbsolutePath());
         }
+        WAR war = new WAR(warFile.getAbsolutePath());
         war.setContext("fedora");
         cfg.addDeployable(war);
     }
 
+    protected File getWarFile() throws MojoExecutionException {
+        String coords = getWarCoords();
+        if (coords == null) {
+            return mavenProject.getArtifact().getFile();
+        } else {
+            return getArtifact(coords).getArtifact().getFile();
+        }
+    }
+
+    /**
+     * @return the container log of the instance (container.log suffixed with
+     * the instance number), or container.log itself
+     */
+    private File getContainerLog(FedoraInstance instance) {
+        if (instance == null) {
+            return new File(containerLog);
+        }
+        String ext = FilenameUtils.getExtension(containerLog);
+        return new File(FilenameUtils.removeExtension(containerLog) + "-" +
+                instance.getIndex() + (ext.length() == 0 ? "" : "." + ext));
+    }
+
+    /**
+     * @return the system properties of the instance, whose fedora.home is
+     * always its own
+     */
+    private Map<String, String> getSystemProperties(FedoraInstance instance) {
+        if (instance == null) {
+            return getSystemProperties();
+        }
+        Map<String, String> props =
+                new HashMap<String, String>(getSystemProperties());
+        props.put("fedora.home", instance.getHome().getAbsolutePath());
+        props.put(ContainerRegistry.INSTANCE_PROPERTY, getInstanceId() + "-" +
+                instance.getIndex());
+        return props;
+    }
+
     /**
      * Ensures that fedora.home is set as a system prop (if it was defined)
      * @return a Map of properties that includes the key "fedora.home" if it
@@ -210,6 +1070,9 @@ public abstract class FedoraCargoMojo extends FedoraCommonMojo {
             systemProperties
                     .put("fedora.home", fedoraHomeDir.getAbsolutePath());
         }
+        // identifies the container's JVM, to tell whether it is still alive
+        systemProperties.put(ContainerRegistry.INSTANCE_PROPERTY,
+                getInstanceId());
 
         return systemProperties;
     }
@@ -20,7 +20,6 @@
 package com.yourmediashelf.fedora.cargo;
 
 import org.apache.maven.plugin.MojoExecutionException;
-import org.codehaus.cargo.container.LocalContainer;
 
 
 /**
@@ -31,12 +30,29 @@ import org.codehaus.cargo.container.LocalContainer;
  */
 public class FedoraCargoStartMojo extends FedoraCargoMojo {
 
+    /**
+     * Whether to start the container in the background and return at once,
+     * so that Fedora boots while the rest of the build (e.g. compiling and
+     * packaging tests) proceeds. Bind this goal to an early phase (after
+     * fedora-home) and fedora-await to pre-integration-test.
+     * @parameter alias="container.async"
+     *            property="container.async"
+     *            default-value="false"
+     */
+    private boolean containerAsync;
+
     public void doExecute() throws MojoExecutionException {
 
         getLog().info("executing FedoraCargoStartMojo");
 
-        LocalContainer container = getContainer();
-        container.start();
+        // let the WAR resolve while the container is extracted
+        prefetch(containerArtifact, getWarCoords());
+
+        if (containerAsync) {
+            startContainerAsync();
+        } else {
+            startContainer();
+        }
     }
 
 }
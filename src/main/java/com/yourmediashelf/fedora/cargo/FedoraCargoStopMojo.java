@@ -20,7 +20,6 @@
 package com.yourmediashelf.fedora.cargo;
 
 import org.apache.maven.plugin.MojoExecutionException;
-import org.codehaus.cargo.container.LocalContainer;
 
 
 /**
@@ -35,7 +34,13 @@ public class FedoraCargoStopMojo extends FedoraCargoMojo {
 
         getLog().info("executing FedoraCargoStopMojo");
 
-        LocalContainer container = getContainer();
-        container.stop();
+        // don't race a start still in progress (e.g. without fedora-await)
+        try {
+            awaitContainer();
+        } catch (MojoExecutionException e) {
+            getLog().warn("Asynchronous start failed: " + e.getMessage());
+        }
+        stopContainer();
+        removeStopHook();
     }
 }
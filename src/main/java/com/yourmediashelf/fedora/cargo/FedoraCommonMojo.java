@@ -19,17 +19,33 @@
 
 package com.yourmediashelf.fedora.cargo;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.Enumeration;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.commons.io.IOUtils;
+
+import org.apache.maven.model.Plugin;
+import org.apache.maven.model.PluginExecution;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.project.MavenProject;
@@ -72,6 +88,114 @@ public abstract class FedoraCommonMojo extends AbstractMojo {
      */
     protected String fedoraPort;
 
+    /**
+     * The {@code <groupId>:<artifactId>[:<extension>[:<classifier>]]:<version>} 
+     * of the war to resolve.
+     *
+     * @parameter alias="fedora.war" 
+     *            property="fedora.war" 
+     *            default-value="org.fcrepo:fcrepo-webapp-fedora:war:${fcrepo.version}"
+     */
+    protected String fedoraWar;
+
+    /**
+     * @parameter alias="container.artifact"
+     *            property="container.artifact" 
+     *            default-value="org.apache.tomcat:tomcat:zip:7.0.39"
+     */
+    protected String containerArtifact;
+
+    /**
+     * Number of isolated Fedora instances to provision. With more than one,
+     * each instance gets its own FEDORA_HOME (fedora.home suffixed with
+     * "-&lt;n&gt;"), Cargo configuration and log, and automatically allocated
+     * HTTP, shutdown and AJP ports; fedora.port is then ignored. The
+     * instances are installed and started concurrently and exported as the
+     * properties described in {@link FedoraInstance}, along with
+     * fedora.instances.urls, a comma-separated list of their URLs.
+     * @parameter alias="fedora.instances"
+     *            property="fedora.instances"
+     *            default-value="1"
+     */
+    protected int instances;
+
+    /**
+     * Whether to leave the container running for, and attach to a container
+     * left running by, a previous build. A running container is only reused
+     * if it is healthy and serves the same WAR, FEDORA_HOME configuration and
+     * container settings. fedora-home leaves the FEDORA_HOME of such a
+     * container alone if it is up to date, and otherwise stops the container
+     * before provisioning it again.
+     * @parameter alias="container.reuse"
+     *            property="container.reuse"
+     *            default-value="false"
+     */
+    protected boolean containerReuse;
+
+    /**
+     * Location of the registry of reusable containers. Defaults to
+     * .cache/fedora-cargo-plugin/containers in the local repository.
+     * @parameter alias="container.registry"
+     *            property="container.registry"
+     */
+    private File containerRegistryDir;
+
+    /**
+     * The heap of each container (e.g. 1g). When given, it is used for both
+     * -Xms and -Xmx, so that the heap is committed up front. Otherwise only
+     * -Xmx is set, to a quarter of the physical memory, shared among the
+     * instances, between 256 MB and 2 GB.
+     * @parameter alias="container.heap"
+     *            property="container.heap"
+     */
+    protected String containerHeap;
+
+    /**
+     * Number of threads used to extract the container and FEDORA_HOME
+     * archives. Defaults to the number of available processors.
+     * @parameter alias="extract.threads"
+     *            property="extract.threads"
+     *            default-value="0"
+     */
+    protected int extractThreads;
+
+    /**
+     * Whether to keep extracted archives in a persistent cache and
+     * materialize them from there (using hard links where possible) instead
+     * of extracting them on every build.
+     * @parameter alias="extract.cache"
+     *            property="extract.cache"
+     *            default-value="true"
+     */
+    protected boolean extractCache;
+
+    /**
+     * Location of the extraction cache. Defaults to
+     * .cache/fedora-cargo-plugin/extracts in the local repository.
+     * @parameter alias="extract.cache.dir"
+     *            property="extract.cache.dir"
+     */
+    protected File extractCacheDir;
+
+    /**
+     * Location of FEDORA_HOME snapshots (see the fedora-snapshot goal).
+     * Defaults to .cache/fedora-cargo-plugin/snapshots in the local
+     * repository.
+     * @parameter alias="snapshot.dir"
+     *            property="snapshot.dir"
+     */
+    protected File snapshotDir;
+
+    /**
+     * The number of FEDORA_HOME snapshots to keep in snapshot.dir. Taking a
+     * snapshot deletes the least recently taken or restored ones beyond it;
+     * 0 keeps them all.
+     * @parameter alias="snapshot.retain"
+     *            property="snapshot.retain"
+     *            default-value="3"
+     */
+    protected int snapshotRetain;
+
     /**
     * The entry point to Aether, i.e. the component doing all the work.
     *
@@ -99,8 +223,236 @@ public abstract class FedoraCommonMojo extends AbstractMojo {
 
     private RemoteRepository thirdParty;
 
+    private Map<Object, Object> localContext;
+
+    /**
+     * The prefix of the keys under which artifacts being resolved in the
+     * background are stored in the plugin context, so that a later goal of
+     * the same build can pick them up.
+     */
+    private static final String CONTEXT_ARTIFACT_KEY_PREFIX =
+            FedoraCommonMojo.class.getName() + "-Artifact.";
+
+    private static final String PLUGIN_ARTIFACT_ID = "fedora-cargo-plugin";
+
+    private static final String INSTANCES_FILE = "fedora-instances.properties";
+
+    /**
+     * Work to be done for each of several instances.
+     */
+    protected interface InstanceTask {
+
+        void run(FedoraInstance instance) throws MojoExecutionException;
+    }
+
+    protected boolean isMultiInstance() {
+        return instances > 1;
+    }
+
+    /**
+     * Get the instances to provision. Their ports are allocated by the first
+     * goal to ask for them and then shared, through the project properties
+     * within a build and through a file next to fedora.home across builds
+     * (e.g. fedora-home and fedora-start run separately).
+     *
+     * @return the instances, in order
+     * @throws MojoExecutionException
+     */
+    protected List<FedoraInstance> getInstances() throws MojoExecutionException {
+        Properties projectProps = mavenProject.getProperties();
+        File file =
+                new File(fedoraHomeDir.getAbsoluteFile().getParentFile(),
+                        INSTANCES_FILE);
+        Properties known = projectProps;
+        if (FedoraInstance.fromProperties(known, 1) == null && file.isFile()) {
+            known = new Properties();
+            InputStream in = null;
+            try {
+                in = new FileInputStream(file);
+                known.load(in);
+            } catch (IOException e) {
+                getLog().warn("Unable to read " + file + ": " + e.getMessage());
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+
+        PortAllocator allocator = new PortAllocator(getCacheDir("ports"));
+        List<FedoraInstance> result = new ArrayList<FedoraInstance>();
+        try {
+            for (int i = 1; i <= instances; i++) {
+                File home = new File(fedoraHomeDir.getPath() + "-" + i);
+                FedoraInstance instance =
+                        FedoraInstance.fromProperties(known, i);
+                if (instance != null && !instance.getHome().equals(home)) {
+                    instance = null;
+                }
+                // ports allocated by an earlier build must be reserved again
+                if (instance != null && known != projectProps &&
+                        !allocator.reserveAll(instance.getPort(),
+                                instance.getShutdownPort(),
+                                instance.getAjpPort())) {
+                    getLog().warn("The ports of " + instance + " are in use;" +
+                            " allocating new ones. Its FEDORA_HOME should be" +
+                            " provisioned again.");
+                    instance = null;
+                }
+                if (instance == null) {
+                    instance =
+                            new FedoraInstance(i, home, allocator.allocate(),
+                                    allocator.allocate(), allocator.allocate());
+                }
+                result.add(instance);
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+
+        Properties exported = new Properties();
+        StringBuilder urls = new StringBuilder();
+        for (FedoraInstance instance : result) {
+            instance.toProperties(exported);
+            urls.append(urls.length() == 0 ? "" : ",").append(
+                    instance.getUrl());
+        }
+        exported.setProperty("fedora.instances.urls", urls.toString());
+        projectProps.putAll(exported);
+        file.getParentFile().mkdirs();
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            exported.store(out, "Fedora instances");
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        return result;
+    }
+
+    /**
+     * Runs task for each instance concurrently, waiting for all of them to
+     * finish.
+     *
+     * @throws MojoExecutionException the first failure, with any others
+     * suppressed
+     */
+    protected void forEachInstance(List<FedoraInstance> instances,
+            final InstanceTask task) throws MojoExecutionException {
+        ExecutorService executor =
+                Executors.newFixedThreadPool(instances.size(),
+                        new DaemonThreadFactory("fedora-instance-"));
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (final FedoraInstance instance : instances) {
+                futures.add(executor.submit(new Callable<Void>() {
+
+                    public Void call() throws MojoExecutionException {
+                        task.run(instance);
+                        return null;
+                    }
+                }));
+            }
+            MojoExecutionException failure = null;
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    MojoExecutionException cause =
+                            e.getCause() instanceof MojoExecutionException
+                                    ? (MojoExecutionException) e.getCause()
+                                    : new MojoExecutionException(e.getCause()
+                                            .getMessage(), e.getCause());
+                    if (failure == null) {
+                        failure = cause;
+                    } else {
+                        failure.addSuppressed(cause);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new MojoExecutionException("Interrupted", e);
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Starts resolving the artifacts in the background, each on a thread of
+     * its own, so that resolution overlaps with other work (such as
+     * extracting an artifact resolved earlier). Artifacts already resolved
+     * or being resolved in this build are skipped.
+     *
+     * @param coords the coordinates of the artifacts; null elements are
+     * ignored
+     * @see #getArtifact(String)
+     */
+    protected void prefetch(String... coords) {
+        Map<Object, Object> context = getContext();
+        ExecutorService executor = null;
+        try {
+            for (final String c : coords) {
+                if (c == null ||
+                        context.containsKey(CONTEXT_ARTIFACT_KEY_PREFIX + c)) {
+                    continue;
+                }
+                if (executor == null) {
+                    executor =
+                            Executors.newCachedThreadPool(new DaemonThreadFactory(
+                                    "fedora-resolve-"));
+                }
+                context.put(CONTEXT_ARTIFACT_KEY_PREFIX + c, executor
+                        .submit(new Callable<ArtifactResult>() {
+
+                            public ArtifactResult call()
+                                    throws MojoExecutionException {
+                                return resolve(c);
+                            }
+                        }));
+            }
+        } finally {
+            if (executor != null) {
+                // the threads exit once their artifact is resolved
+                executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Get the resolved artifact, waiting for a background resolution started
+     * by {@link #prefetch(String...)} if there is one.
+     */
     protected ArtifactResult getArtifact(String coords)
             throws MojoExecutionException {
+        Object prefetched =
+                getContext().get(CONTEXT_ARTIFACT_KEY_PREFIX + coords);
+        if (!(prefetched instanceof Future)) {
+            return resolve(coords);
+        }
+        @SuppressWarnings("unchecked")
+        Future<ArtifactResult> future = (Future<ArtifactResult>) prefetched;
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            // let a later attempt resolve it afresh
+            getContext().remove(CONTEXT_ARTIFACT_KEY_PREFIX + coords);
+            if (e.getCause() instanceof MojoExecutionException) {
+                throw (MojoExecutionException) e.getCause();
+            }
+            throw new MojoExecutionException(e.getCause().getMessage(), e
+                    .getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while resolving " +
+                    coords, e);
+        }
+    }
+
+    private ArtifactResult resolve(String coords) throws MojoExecutionException {
         Artifact artifact;
         try {
             artifact = new DefaultArtifact(coords);
@@ -110,11 +462,16 @@ public abstract class FedoraCommonMojo extends AbstractMojo {
 
         ArtifactRequest request = new ArtifactRequest();
         request.setArtifact(artifact);
-        request.setRepositories(remoteRepos);
+        // the request adds to the list it is given, which must not be the
+        // project's (concurrent resolutions would all add to it)
+        request.setRepositories(new ArrayList<RemoteRepository>(remoteRepos));
         request.addRepository(getThirdPartyRepo());
 
-        getLog().info("Resolving artifact " + artifact + " from " + remoteRepos);
+        getLog().info(
+                "Resolving artifact " + artifact + " from " +
+                        request.getRepositories());
 
+        long start = System.currentTimeMillis();
         ArtifactResult result;
         try {
             result = repoSystem.resolveArtifact(repoSession, request);
@@ -125,10 +482,214 @@ public abstract class FedoraCommonMojo extends AbstractMojo {
         getLog().info(
                 "Resolved artifact " + artifact + " to " +
                         result.getArtifact().getFile() + " from " +
-                        result.getRepository());
+                        result.getRepository() + " in " +
+                        (System.currentTimeMillis() - start) + " ms");
         return result;
     }
 
+    /**
+     * @return true iff the project binds the given goal of this plugin to a
+     * lifecycle phase
+     */
+    protected boolean isGoalBound(String goal) {
+        return countBindings(mavenProject, goal) > 0;
+    }
+
+    /**
+     * @return the number of executions of the project that bind the given
+     * goal of this plugin
+     */
+    protected static int countBindings(MavenProject project, String goal) {
+        int count = 0;
+        for (Plugin plugin : project.getBuildPlugins()) {
+            if (!PLUGIN_ARTIFACT_ID.equals(plugin.getArtifactId())) {
+                continue;
+            }
+            for (PluginExecution execution : plugin.getExecutions()) {
+                if (execution.getGoals().contains(goal)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the coordinates of the WAR to deploy, or null if the project
+     * itself is the WAR
+     */
+    protected String getWarCoords() {
+        if (mavenProject.getPackaging().equalsIgnoreCase("war")) {
+            return null;
+        }
+        return fedoraWar;
+    }
+
+    /**
+     * @return the plugin context, or (outside of Maven) a map private to this
+     * mojo
+     */
+    private Map<Object, Object> getContext() {
+        @SuppressWarnings("unchecked")
+        Map<Object, Object> context = getPluginContext();
+        if (context == null) {
+            if (localContext == null) {
+                localContext = new ConcurrentHashMap<Object, Object>();
+            }
+            context = localContext;
+        }
+        return context;
+    }
+
+    /**
+     * Extracts the resolved artifact to destDir, through the extraction cache
+     * if it is enabled.
+     *
+     * @param artifact the resolved artifact
+     * @param destDir
+     * @param copyPrefixes relative paths beneath which files will be rewritten
+     * in place, and so must be copied rather than linked from the cache
+     * @throws MojoExecutionException
+     */
+    protected void extract(Artifact artifact, File destDir,
+            String... copyPrefixes) throws MojoExecutionException {
+        extract(artifact, destDir, false, copyPrefixes);
+    }
+
+    /**
+     * Extracts the resolved artifact to destDir, through the extraction cache
+     * if it is enabled.
+     *
+     * @param artifact the resolved artifact
+     * @param destDir
+     * @param symlinks whether to symlink, rather than copy, files from the
+     * cache where hard links are not supported
+     * @param copyPrefixes relative paths beneath which files will be rewritten
+     * in place, and so must be copied rather than linked from the cache
+     * @throws MojoExecutionException
+     * @see ExtractionCache#materialize(File, File, java.util.Collection,
+     * boolean)
+     */
+    protected void extract(Artifact artifact, File destDir, boolean symlinks,
+            String... copyPrefixes) throws MojoExecutionException {
+        if (!extractCache) {
+            extract(artifact.getFile(), destDir);
+            return;
+        }
+        ExtractionCache cache = getExtractionCache();
+        try {
+            File cached = cache.get(artifact.toString(), artifact.getFile());
+            cache.materialize(cached, destDir, Arrays.asList(copyPrefixes),
+                    symlinks);
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+    }
+
+    protected ContainerRegistry getContainerRegistry() {
+        if (containerRegistryDir == null) {
+            containerRegistryDir = getCacheDir("containers");
+        }
+        return new ContainerRegistry(containerRegistryDir);
+    }
+
+    protected int getPort() throws MojoExecutionException {
+        try {
+            return Integer.parseInt(fedoraPort.trim());
+        } catch (NumberFormatException e) {
+            throw new MojoExecutionException("Invalid fedora.port: " +
+                    fedoraPort, e);
+        }
+    }
+
+    /**
+     * @return the heap of each container, as given to -Xmx
+     * @throws MojoExecutionException if container.heap is invalid
+     * @see #isContainerHeapSet()
+     */
+    protected String getContainerHeap() throws MojoExecutionException {
+        String heap = containerHeap;
+        if (!isContainerHeapSet()) {
+            long mb = getPhysicalMemory() / 4 / Math.max(instances, 1) >> 20;
+            heap = Math.max(256, Math.min(2048, mb)) + "m";
+        }
+        heap = heap.trim();
+        if (!heap.matches("\\d+[kKmMgG]?")) {
+            throw new MojoExecutionException("Invalid container.heap: " +
+                    heap);
+        }
+        return heap;
+    }
+
+    /**
+     * @return true iff container.heap was given, rather than defaulted
+     */
+    protected boolean isContainerHeapSet() {
+        return containerHeap != null && containerHeap.trim().length() > 0;
+    }
+
+    /**
+     * @return the physical memory of this machine, or the maximum heap of
+     * this JVM if it is unknown
+     */
+    @SuppressWarnings("deprecation")
+    private static long getPhysicalMemory() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            // deprecated as of Java 14 in favour of getTotalMemorySize, which
+            // the older JVMs this plugin supports lack
+            return ((com.sun.management.OperatingSystemMXBean) os)
+                    .getTotalPhysicalMemorySize();
+        }
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    protected ExtractionCache getExtractionCache() {
+        return new ExtractionCache(getExtractCacheDir(), new ArchiveExtractor(
+                extractThreads, getLog()), getLog());
+    }
+
+    private File getExtractCacheDir() {
+        if (extractCacheDir == null) {
+            extractCacheDir = getCacheDir("extracts");
+        }
+        return extractCacheDir;
+    }
+
+    protected FedoraSnapshot getSnapshots() {
+        if (snapshotDir == null) {
+            snapshotDir = getCacheDir("snapshots");
+        }
+        return new FedoraSnapshot(snapshotDir, snapshotRetain, getLog());
+    }
+
+    /**
+     * @return the named directory beneath .cache/fedora-cargo-plugin in the
+     * local repository
+     */
+    protected File getCacheDir(String name) {
+        return new File(repoSession.getLocalRepository().getBasedir(),
+                ".cache/fedora-cargo-plugin/" + name);
+    }
+
+    /**
+     * Extracts zipFile to destDir using {@code extractThreads} threads,
+     * reporting the throughput to the Maven log.
+     *
+     * @param zipFile File to unzip
+     * @param destDir
+     * @throws MojoExecutionException
+     */
+    protected void extract(File zipFile, File destDir)
+            throws MojoExecutionException {
+        try {
+            new ArchiveExtractor(extractThreads, getLog()).extract(zipFile,
+                    destDir);
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+    }
+
     /**
      * Unzips the InputStream to the given destination directory.
      * 
@@ -136,38 +697,11 @@ public abstract class FedoraCommonMojo extends AbstractMojo {
      * @param destDir
      * @throws FileNotFoundException
      * @throws IOException
+     * @see ArchiveExtractor
      */
     public static void unzip(File zipFile, File destDir)
             throws FileNotFoundException, IOException {
-        int BUFFER = 2048;
-        BufferedOutputStream dest = null;
-        ZipFile zip = new ZipFile(zipFile);
-        Enumeration<? extends ZipEntry> entries = zip.entries();
-        ZipEntry entry;
-        while (entries.hasMoreElements()) {
-            entry = entries.nextElement();
-            if (entry.isDirectory()) {
-                // Otherwise, empty directories do not get created
-                (new File(destDir, entry.getName())).mkdirs();
-            } else {
-                BufferedInputStream is =
-                        new BufferedInputStream(zip.getInputStream(entry));
-
-                File f = new File(destDir, entry.getName());
-                f.getParentFile().mkdirs();
-                int count;
-                byte data[] = new byte[BUFFER];
-                // write the files to the disk
-                FileOutputStream fos = new FileOutputStream(f);
-                dest = new BufferedOutputStream(fos, BUFFER);
-                while ((count = is.read(data, 0, BUFFER)) != -1) {
-                    dest.write(data, 0, count);
-                }
-                dest.flush();
-                dest.close();
-                is.close();
-            }
-        }
+        new ArchiveExtractor(0, null).extract(zipFile, destDir);
     }
 
     /**
@@ -186,4 +720,22 @@ public abstract class FedoraCommonMojo extends AbstractMojo {
         }
         return thirdParty;
     }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
 }
@@ -22,36 +22,66 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 
 import com.yourmediashelf.fedora.cargo.fcfg.ModuleConfiguration;
 import com.yourmediashelf.fedora.cargo.fcfg.ServerConfiguration;
-import com.yourmediashelf.fedora.cargo.fcfg.ServerConfigurationParser;
+import com.yourmediashelf.fedora.cargo.fcfg.ServerConfigurationCache;
 
 public class FedoraHome {
 
+    private static final String FCFG_BASE =
+            "server/fedora-internal-use/config/fedora-base.fcfg";
+
+    private static final String FCFG = "server/config/fedora.fcfg";
+
+    private static final String SPRING_DIR = "server/config/spring";
+
+    private static final String AKUBRA_LLSTORE =
+            "server/config/spring/akubra-llstore.xml";
+
+    private static final String WEB_PROPERTIES =
+            "server/config/spring/web/web.properties";
+
+    private static final String SECURITY_XML =
+            "server/config/spring/web/security.xml";
+
+    private static final String FESL_WEB_DIR = "server/config/spring/fesl/web";
+
+    private static final String FESL_MODULE_DIR =
+            "server/config/spring/fesl/module";
+
+    private static final String WEB_DIR = "server/config/spring/web";
+
     private final InstallOptions _opts;
 
     private final File _installDir;
 
-    private boolean _usingAkubra;
+    private final boolean _usingAkubra;
 
     public FedoraHome(InstallOptions opts) {
         _opts = opts;
         _installDir = new File(_opts.getValue(InstallOptions.FEDORA_HOME));
+        String llStoreType = _opts.getValue(InstallOptions.LLSTORE_TYPE);
+        _usingAkubra = llStoreType == null || llStoreType.equals("akubra-fs");
     }
 
     public void install() throws InstallationFailedException {
@@ -59,26 +89,253 @@ public class FedoraHome {
     }
 
     /**
-     * Sets various configuration files based on InstallOptions
+     * Sets various configuration files based on InstallOptions. Unless
+     * disabled with install.incremental=false, steps whose inputs and outputs
+     * are unchanged since the last install are skipped. Steps that touch
+     * disjoint files run concurrently on up to install.threads threads.
      * 
      * @throws InstallationFailedException
      */
     private void configure() throws InstallationFailedException {
-        configureFCFG();
+        boolean incremental =
+                _opts.getBooleanValue(InstallOptions.INSTALL_INCREMENTAL, true);
+        InstallState state = new InstallState(_installDir, _opts);
+        try {
+            new InstallPipeline(getConfigSteps(), state, incremental)
+                    .run(getThreads());
+        } finally {
+            try {
+                state.save();
+            } catch (IOException e) {
+                System.err.println("WARNING: Unable to save install state: " +
+                        e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Gets the files that need not be restored from source before installing
+     * again: the outputs of the steps that would be skipped, if FEDORA_HOME
+     * was last materialized from source. A file that is also the output of a
+     * step that would run is not included.
+     *
+     * @throws IOException
+     * @see #setSource(String)
+     */
+    public Set<File> getCurrentOutputs(String source) throws IOException {
+        Set<File> current = new HashSet<File>();
+        InstallState state = new InstallState(_installDir, _opts);
+        if (!_opts.getBooleanValue(InstallOptions.INSTALL_INCREMENTAL, true) ||
+                !source.equals(state.getSource())) {
+            return current;
+        }
+        Set<File> stale = new HashSet<File>();
+        for (ConfigStep step : getConfigSteps()) {
+            if (state.isUpToDate(step, state.fingerprint(step))) {
+                current.addAll(step.getOutputs());
+            } else {
+                stale.addAll(step.getOutputs());
+            }
+        }
+        current.removeAll(stale);
+        return current;
+    }
+
+    /**
+     * @return true iff FEDORA_HOME was last materialized from source and
+     * installing now would skip every configuration step
+     * @throws IOException
+     */
+    public boolean isCurrent(String source) throws IOException {
+        InstallState state = new InstallState(_installDir, _opts);
+        if (!source.equals(state.getSource())) {
+            return false;
+        }
+        for (ConfigStep step : getConfigSteps()) {
+            if (!state.isUpToDate(step, state.fingerprint(step))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true iff FEDORA_HOME has been installed before, e.g. by an
+     * earlier build, and may therefore hold state of its own
+     */
+    public boolean isInstalled() {
+        return new File(_installDir, InstallState.STATE_FILE).isFile();
+    }
+
+    /**
+     * Records what FEDORA_HOME was just materialized from.
+     *
+     * @param source e.g. the extraction cache entry of the FEDORA_HOME
+     * archive, or null if unknown
+     * @throws IOException
+     * @see #getCurrentOutputs(String)
+     */
+    public void setSource(String source) throws IOException {
+        InstallState state = new InstallState(_installDir, _opts);
+        state.setSource(source);
+        state.save();
+    }
+
+    /**
+     * @return the configuration steps that apply to the InstallOptions
+     */
+    List<ConfigStep> getConfigSteps() {
+        List<ConfigStep> steps = new ArrayList<ConfigStep>();
+        steps.add(new ConfigStep("fedora.fcfg") {
+
+            @Override
+            public List<File> getInputs() {
+                return Arrays.asList(file(FCFG_BASE));
+            }
+
+            @Override
+            public List<File> getOutputs() {
+                return Arrays.asList(file(FCFG));
+            }
+
+            @Override
+            public String getSettings() {
+                // the profile's values depend on the machine; the pool's id
+                // is covered by the database option
+                try {
+                    return PerformanceProfile.forOptions(_opts).getProperties(
+                            "pool").toString();
+                } catch (IllegalArgumentException e) {
+                    // reported when the step runs
+                    return e.getMessage();
+                }
+            }
+
+            @Override
+            public void run() throws InstallationFailedException {
+                configureFCFG();
+            }
+        });
         if (_usingAkubra) {
-            configureAkubra();
+            steps.add(new ConfigStep("akubra-llstore.xml") {
+
+                @Override
+                public List<File> getOutputs() {
+                    return Arrays.asList(file(AKUBRA_LLSTORE));
+                }
+
+                @Override
+                public void run() throws InstallationFailedException {
+                    configureAkubra();
+                }
+            });
         }
-        configureSpringProperties();
-        configureSpringAuth();
-        configureSpringTestConfigs();
+        steps.add(new ConfigStep("web.properties") {
+
+            @Override
+            public List<File> getOutputs() {
+                return Arrays.asList(file(WEB_PROPERTIES));
+            }
+
+            @Override
+            public void run() throws InstallationFailedException {
+                configureSpringProperties();
+            }
+        });
+        steps.add(new ConfigStep("security.xml") {
+
+            @Override
+            public List<File> getInputs() {
+                List<File> inputs = new ArrayList<File>();
+                if (isFeslAuthzEnabled()) {
+                    inputs.addAll(listFiles(file(FESL_WEB_DIR)));
+                    inputs.addAll(listFiles(file(FESL_MODULE_DIR)));
+                }
+                return inputs;
+            }
+
+            @Override
+            public List<File> getOutputs() {
+                List<File> outputs = new ArrayList<File>();
+                outputs.add(file(SECURITY_XML));
+                if (isFeslAuthzEnabled()) {
+                    for (File f : listFiles(file(FESL_WEB_DIR))) {
+                        outputs.add(new File(file(WEB_DIR), f.getName()));
+                    }
+                    for (File f : listFiles(file(FESL_MODULE_DIR))) {
+                        outputs.add(new File(file(SPRING_DIR), f.getName()));
+                    }
+                }
+                return outputs;
+            }
+
+            @Override
+            public void run() throws InstallationFailedException {
+                configureSpringAuth();
+            }
+        });
+        if (_opts.getBooleanValue(InstallOptions.TEST_SPRING_CONFIGS, false)) {
+            steps.add(new ConfigStep("spring test configs") {
+
+                @Override
+                public List<File> getOutputs() {
+                    return listFiles(file(SPRING_DIR));
+                }
+
+                @Override
+                public List<File> getFootprint() {
+                    // includes files written to SPRING_DIR by earlier steps
+                    return Arrays.asList(file(SPRING_DIR));
+                }
+
+                @Override
+                public void run() throws InstallationFailedException {
+                    configureSpringTestConfigs();
+                }
+            });
+        }
+        return steps;
+    }
+
+    /**
+     * @return the number of threads to configure with (install.threads, or
+     * the number of processors)
+     */
+    private int getThreads() {
+        int threads = _opts.getIntValue(InstallOptions.INSTALL_THREADS, 0);
+        return threads > 0 ? threads : Runtime.getRuntime()
+                .availableProcessors();
+    }
+
+    private File file(String path) {
+        return new File(_installDir, path);
+    }
+
+    private boolean isFeslAuthzEnabled() {
+        return _opts.getBooleanValue(InstallOptions.FESL_AUTHZ_ENABLED, false);
+    }
+
+    /**
+     * @return the files (but not directories) in dir, sorted by name
+     */
+    private static List<File> listFiles(File dir) {
+        List<File> files = new ArrayList<File>();
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isFile()) {
+                    files.add(child);
+                }
+            }
+        }
+        Collections.sort(files);
+        return files;
     }
 
     private void configureFCFG() throws InstallationFailedException {
         System.out.println("\tConfiguring fedora.fcfg");
-        File fcfgBase =
-                new File(_installDir,
-                        "server/fedora-internal-use/config/fedora-base.fcfg");
-        File fcfg = new File(_installDir, "server/config/fedora.fcfg");
+        File fcfgBase = file(FCFG_BASE);
+        File fcfg = file(FCFG);
 
         Properties props = new Properties();
         if (_opts.getValue(InstallOptions.TOMCAT_HTTP_PORT) != null) {
@@ -188,22 +445,36 @@ public class FedoraHome {
                     "org.fcrepo.server.security.xacml.pdp.decorator.PolicyIndexInvocationHandler");
         }
 
+        PerformanceProfile profile = PerformanceProfile.forOptions(_opts);
+        if (!PerformanceProfile.NONE.equals(profile.getName())) {
+            System.out.println("\tApplying performance profile " + profile);
+        }
+        try {
+            profile.applyTo(props, dbPoolName, _opts);
+        } catch (IllegalArgumentException e) {
+            throw new InstallationFailedException(e.getMessage(), e);
+        }
+
         try {
-            FileInputStream fis = new FileInputStream(fcfgBase);
+            // parsed once per process, however many homes are installed
             ServerConfiguration config =
-                    new ServerConfigurationParser(fis).parse();
+                    ServerConfigurationCache.getInstance().get(fcfgBase);
             config.applyProperties(props);
 
             // If using akubra-fs, set the class of the module and clear params.
-            String llStoreType = _opts.getValue(InstallOptions.LLSTORE_TYPE);
-            if (llStoreType == null || llStoreType.equals("akubra-fs")) {
+            if (_usingAkubra) {
                 ModuleConfiguration mConfig =
                         config.getModuleConfiguration("org.fcrepo.server.storage.lowlevel.ILowlevelStorage");
                 config.getModuleConfigurations().remove(mConfig);
-                _usingAkubra = true;
             }
 
-            config.serialize(new FileOutputStream(fcfg));
+            File tmp = AtomicFiles.newTempFile(fcfg);
+            try {
+                config.serialize(new FileOutputStream(tmp));
+                AtomicFiles.replace(tmp, fcfg);
+            } finally {
+                FileUtils.deleteQuietly(tmp);
+            }
         } catch (IOException e) {
             throw new InstallationFailedException(e.getMessage(), e);
         }
@@ -215,10 +486,9 @@ public class FedoraHome {
         // with $FEDORA_HOME/data/[object|datastream]Store
         BufferedReader reader = null;
         PrintWriter writer = null;
+        File tmp = null;
         try {
-            File file =
-                    new File(_installDir,
-                            "server/config/spring/akubra-llstore.xml");
+            File file = file(AKUBRA_LLSTORE);
             reader =
                     new BufferedReader(new InputStreamReader(
                             new FileInputStream(file), "UTF-8"));
@@ -241,16 +511,23 @@ public class FedoraHome {
             }
             reader.close();
 
+            tmp = AtomicFiles.newTempFile(file);
             writer =
                     new PrintWriter(new OutputStreamWriter(
-                            new FileOutputStream(file), "UTF-8"));
+                            new FileOutputStream(tmp), "UTF-8"));
             writer.print(xml.toString());
             writer.close();
+            if (writer.checkError()) {
+                throw new IOException("Unable to write " + file);
+            }
+            AtomicFiles.replace(tmp, file);
         } catch (IOException e) {
             IOUtils.closeQuietly(reader);
             IOUtils.closeQuietly(writer);
             throw new InstallationFailedException(e.getClass().getName() + ":" +
                     e.getMessage());
+        } finally {
+            FileUtils.deleteQuietly(tmp);
         }
     }
 
@@ -297,15 +574,19 @@ public class FedoraHome {
         springProps.put("security.auth.filters", filters.toString());
 
         FileOutputStream out = null;
+        File tmp = null;
         try {
-            out =
-                    new FileOutputStream(new File(_installDir,
-                            "server/config/spring/web/web.properties"));
+            File file = file(WEB_PROPERTIES);
+            tmp = AtomicFiles.newTempFile(file);
+            out = new FileOutputStream(tmp);
             springProps.store(out, "Spring override properties");
+            out.close();
+            AtomicFiles.replace(tmp, file);
         } catch (IOException e) {
             throw new InstallationFailedException(e.getMessage(), e);
         } finally {
             IOUtils.closeQuietly(out);
+            FileUtils.deleteQuietly(tmp);
         }
     }
 
@@ -359,117 +640,54 @@ public class FedoraHome {
             needsbugFix = true;
         }
 
-        if (_opts.getBooleanValue(InstallOptions.FESL_AUTHZ_ENABLED, false)) {
+        if (isFeslAuthzEnabled()) {
             filters.append(",PEPFilter");
             filters_apia.append(",PEPFilter");
             filters_rest.append(",PEPFilter");
             copyFESLConfigs();
         }
 
-        FileInputStream springConfig = null;
-        PrintWriter writer = null;
+        MarkerRewriter rewriter =
+                new MarkerRewriter().replace(PATTERN, filters.toString())
+                        .replace(PATTERN_APIA, filters_apia.toString())
+                        .replace(PATTERN_REST, filters_rest.toString());
+        if (!needsbugFix) {
+            /* Delete classic authN bugfix when not applicable */
+            rewriter.delete("<!-- BUG", "/BUG -->", true);
+        }
         try {
-            File xmlFile =
-                    new File(_installDir,
-                            "server/config/spring/web/security.xml");
-            springConfig = new FileInputStream(xmlFile);
-            String content =
-                    IOUtils.toString(springConfig).replace(PATTERN, filters)
-                            .replace(PATTERN_APIA, filters_apia).replace(
-                                    PATTERN_REST, filters_rest);
-
-            if (!needsbugFix) {
-                /* Delete classic authN bugfix when not applicable */
-                content = content.replaceFirst("(?s)<!-- BUG.+?/BUG -->", "");
-            }
-
-            springConfig.close();
-
-            writer =
-                    new PrintWriter(new OutputStreamWriter(
-                            new FileOutputStream(xmlFile), "UTF-8"));
-            writer.print(content);
-            writer.close();
-        } catch (Exception e) {
-            IOUtils.closeQuietly(springConfig);
-            IOUtils.closeQuietly(writer);
+            rewriter.rewrite(file(SECURITY_XML));
+        } catch (IOException e) {
             throw new InstallationFailedException(e.getMessage(), e);
         }
     }
 
     private void copyFESLConfigs() throws InstallationFailedException {
-        File feslWebDir =
-                new File(_installDir, "server/config/spring/fesl/web");
-        File feslModuleDir =
-                new File(_installDir, "server/config/spring/fesl/module");
-        File webDir = new File(_installDir, "server/config/spring/web");
-        File moduleDir = new File(_installDir, "server/config/spring");
-
-        for (File beanDef : feslWebDir.listFiles()) {
-            if (beanDef.isFile()) {
-                FileReader reader = null;
-                FileWriter writer = null;
-                try {
-                    File copy = new File(webDir, beanDef.getName());
-                    reader = new FileReader(beanDef);
-                    writer = new FileWriter(copy);
-                    IOUtils.copy(reader, writer);
-                    writer.flush();
-                } catch (Exception e) {
-                    throw new InstallationFailedException(e.getMessage(), e);
-                } finally {
-                    IOUtils.closeQuietly(writer);
-                    IOUtils.closeQuietly(reader);
-                }
-            }
-        }
-        for (File beanDef : feslModuleDir.listFiles()) {
-            if (beanDef.isFile()) {
-                FileReader reader = null;
-                FileWriter writer = null;
-                try {
-                    File copy = new File(moduleDir, beanDef.getName());
-                    reader = new FileReader(beanDef);
-                    writer = new FileWriter(copy);
-                    IOUtils.copy(reader, writer);
-                    writer.flush();
-                } catch (Exception e) {
-                    throw new InstallationFailedException(e.getMessage(), e);
-                } finally {
-                    IOUtils.closeQuietly(writer);
-                    IOUtils.closeQuietly(reader);
-                }
-            }
+        Map<File, File> dirs = new LinkedHashMap<File, File>();
+        dirs.put(file(FESL_WEB_DIR), file(WEB_DIR));
+        dirs.put(file(FESL_MODULE_DIR), file(SPRING_DIR));
+        FileCopier copier = new FileCopier(getThreads());
+        try {
+            copier.copyFiles(dirs);
+        } catch (IOException e) {
+            throw new InstallationFailedException(e.getMessage(), e);
         }
+        System.out.println("\tCopied " + copier.getCopied() +
+                " FESL bean definitions (" + copier.getSkipped() +
+                " unchanged)");
     }
 
     private void configureSpringTestConfigs()
             throws InstallationFailedException {
         if (_opts.getBooleanValue(InstallOptions.TEST_SPRING_CONFIGS, false)) {
-            FileInputStream springConfig = null;
-            PrintWriter writer = null;
+            MarkerRewriter rewriter =
+                    new MarkerRewriter().unwrap("<!-- TESTONLY",
+                            "/TESTONLY -->");
             try {
-                File springDir = new File(_installDir, "server/config/spring");
-                for (File file : springDir.listFiles()) {
-                    if (file.isFile()) {
-                        springConfig = new FileInputStream(file);
-                        String content = IOUtils.toString(springConfig);
-                        content =
-                                content.replaceAll(
-                                        "(?s)<!-- TESTONLY(.+?)/TESTONLY -->",
-                                        "$1");
-                        springConfig.close();
-
-                        writer =
-                                new PrintWriter(new OutputStreamWriter(
-                                        new FileOutputStream(file), "UTF-8"));
-                        writer.print(content);
-                        writer.close();
-                    }
+                for (File file : listFiles(file(SPRING_DIR))) {
+                    rewriter.rewrite(file);
                 }
-            } catch (Exception e) {
-                IOUtils.closeQuietly(springConfig);
-                IOUtils.closeQuietly(writer);
+            } catch (IOException e) {
                 throw new InstallationFailedException(e.getMessage(), e);
             }
         }
@@ -512,9 +730,17 @@ public class FedoraHome {
     }
 
     /**
-     * Command-line entry point.
+     * Command-line entry point. Installs the single FEDORA_HOME described by
+     * the union of the given properties files, or with {@code --batch}, one
+     * FEDORA_HOME per file or manifest section.
+     *
+     * @see FedoraHomeBatch#main(String[])
      */
     public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "--batch".equals(args[0])) {
+            System.exit(FedoraHomeBatch.main(Arrays.copyOfRange(args, 1,
+                    args.length)));
+        }
         InstallOptions opts;
         Map<String, String> props = new HashMap<String, String>();
         for (String file : args) {
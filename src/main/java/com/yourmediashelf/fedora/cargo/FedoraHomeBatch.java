@@ -0,0 +1,477 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Installs many independent FEDORA_HOMEs concurrently, as run by
+ * {@code FedoraHome --batch}.
+ *
+ * <p>Each properties file describes one install, named after the file. A
+ * manifest describes one install per {@code [name]} section; properties
+ * before the first section apply to every section of that manifest.
+ *
+ * <p>Where a template is given, each FEDORA_HOME is materialized from it
+ * before it is installed. A fedorahome.zip is extracted once, into a
+ * read-only tree from which each FEDORA_HOME is hard-linked, copying only
+ * data/; as in the {@link ExtractionCache}, the files FedoraHome configures
+ * are replaced rather than written through. A FEDORA_HOME directory is
+ * copied instead, so that no install shares files with it. Installs share
+ * the parsed fedora-base.fcfg through the
+ * {@link com.yourmediashelf.fedora.cargo.fcfg.ServerConfigurationCache}.
+ *
+ * <p>While the installs run, each line they print is prefixed with the name
+ * of the install.
+ */
+public class FedoraHomeBatch {
+
+    /** the name of the install running on the current thread */
+    private static final InheritableThreadLocal<String> CURRENT =
+            new InheritableThreadLocal<String>();
+
+    private static final String USAGE =
+            "Usage: FedoraHome --batch [--threads n] [--template dir|zip] " +
+                    "file...";
+
+    private final Map<String, Map<String, String>> _installs =
+            new LinkedHashMap<String, Map<String, String>>();
+
+    private final int _threads;
+
+    private final File _template;
+
+    /**
+     * @param threads the number of installs to run concurrently, or 0 for
+     * the number of processors
+     * @param template the directory or zip to materialize each FEDORA_HOME
+     * from, or null to install into existing FEDORA_HOMEs
+     */
+    public FedoraHomeBatch(int threads, File template) {
+        _threads =
+                threads > 0 ? threads : Runtime.getRuntime()
+                        .availableProcessors();
+        _template = template;
+    }
+
+    /**
+     * Adds an install. Unless install.threads is given, each install
+     * configures on a single thread, as the installs themselves run
+     * concurrently.
+     *
+     * @throws IllegalArgumentException if the name is already taken, or the
+     * install lacks fedora.home or shares it with another install
+     */
+    public void add(String name, Map<String, String> props) {
+        if (_installs.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicate install " + name);
+        }
+        String home = props.get(InstallOptions.FEDORA_HOME);
+        if (home == null) {
+            throw new IllegalArgumentException(name + ": " +
+                    InstallOptions.FEDORA_HOME + " is not set");
+        }
+        for (Map.Entry<String, Map<String, String>> install : _installs
+                .entrySet()) {
+            if (new File(home).getAbsoluteFile().equals(
+                    new File(install.getValue().get(
+                            InstallOptions.FEDORA_HOME)).getAbsoluteFile())) {
+                throw new IllegalArgumentException(name + " and " +
+                        install.getKey() + " share " + home);
+            }
+        }
+        Map<String, String> copy = new HashMap<String, String>(props);
+        if (!copy.containsKey(InstallOptions.INSTALL_THREADS)) {
+            copy.put(InstallOptions.INSTALL_THREADS, "1");
+        }
+        _installs.put(name, copy);
+    }
+
+    /**
+     * Adds the install(s) described by a properties file or manifest.
+     *
+     * @throws IOException
+     */
+    public void load(File file) throws IOException {
+        String name = file.getName();
+        if (name.lastIndexOf('.') > 0) {
+            name = name.substring(0, name.lastIndexOf('.'));
+        }
+        Map<String, String> sections = readSections(file);
+        String defaults = sections.remove("");
+        if (sections.isEmpty()) {
+            add(name, toMap(defaults));
+            return;
+        }
+        for (Map.Entry<String, String> section : sections.entrySet()) {
+            Map<String, String> props = toMap(defaults);
+            props.putAll(toMap(section.getValue()));
+            add(section.getKey(), props);
+        }
+    }
+
+    /**
+     * Runs all installs, at most {@code threads} at a time. A failed install
+     * does not stop the others.
+     *
+     * @return the outcome of each install, in the order they were added
+     * @throws IOException if the template could not be extracted
+     */
+    public List<Outcome> run() throws IOException {
+        File template = _template;
+        Collection<String> copied = Collections.singleton("");
+        File staged = null;
+        if (template != null && template.isFile()) {
+            staged = Files.createTempDirectory("fedora-home-template").toFile();
+            template =
+                    new ExtractionCache(staged, new ArchiveExtractor(_threads,
+                            null), null).get(template.getName(), template);
+            copied = Collections.singleton("data/");
+        }
+
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        // without autoflush, so that only a finished install flushes its
+        // partial line
+        System.setOut(new PrintStream(new InstallOutput(out)));
+        System.setErr(new PrintStream(new InstallOutput(err)));
+        ExecutorService executor = Executors.newFixedThreadPool(_threads);
+        try {
+            List<Future<Outcome>> futures = new ArrayList<Future<Outcome>>();
+            for (Map.Entry<String, Map<String, String>> install : _installs
+                    .entrySet()) {
+                futures.add(executor.submit(new Install(install.getKey(),
+                        install.getValue(), template, copied)));
+            }
+            List<Outcome> outcomes = new ArrayList<Outcome>();
+            for (Future<Outcome> future : futures) {
+                try {
+                    outcomes.add(future.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted", e);
+                } catch (ExecutionException e) {
+                    // Install reports its own failures
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return outcomes;
+        } finally {
+            executor.shutdownNow();
+            System.out.flush();
+            System.err.flush();
+            System.setOut(out);
+            System.setErr(err);
+            FileUtils.deleteQuietly(staged);
+        }
+    }
+
+    /**
+     * Prints one line per install, followed by the totals.
+     */
+    public static void printSummary(List<Outcome> outcomes, long millis,
+            PrintStream out) {
+        int failed = 0;
+        int width = 0;
+        for (Outcome outcome : outcomes) {
+            width = Math.max(width, outcome.getName().length());
+        }
+        out.println("Batch install summary:");
+        for (Outcome outcome : outcomes) {
+            out.println(String.format("  %-" + width + "s  %6d ms  %s",
+                    outcome.getName(), outcome.getMillis(),
+                    outcome.isSuccess() ? "OK" : "FAILED: " +
+                            outcome.getError()));
+            if (!outcome.isSuccess()) {
+                failed++;
+            }
+        }
+        out.println(String.format("%d installs, %d failed, in %d ms",
+                outcomes.size(), failed, millis));
+    }
+
+    /**
+     * Runs a batch from the command line (the arguments following
+     * {@code --batch}).
+     *
+     * @return the exit status: 0 if every install succeeded, 1 if any
+     * failed, 2 on a usage error
+     */
+    public static int main(String[] args) throws IOException {
+        int threads = 0;
+        File template = null;
+        List<File> files = new ArrayList<File>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("--threads".equals(args[i]) && i + 1 < args.length) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if ("--template".equals(args[i]) &&
+                        i + 1 < args.length) {
+                    template = new File(args[++i]);
+                } else if (args[i].startsWith("--")) {
+                    throw new IllegalArgumentException("Unknown option " +
+                            args[i]);
+                } else {
+                    files.add(new File(args[i]));
+                }
+            }
+            if (files.isEmpty()) {
+                throw new IllegalArgumentException("No install given");
+            }
+            if (template != null && !template.exists()) {
+                throw new IllegalArgumentException("No such template " +
+                        template);
+            }
+
+            FedoraHomeBatch batch = new FedoraHomeBatch(threads, template);
+            for (File file : files) {
+                batch.load(file);
+            }
+            long start = System.currentTimeMillis();
+            List<Outcome> outcomes = batch.run();
+            printSummary(outcomes, System.currentTimeMillis() - start,
+                    System.out);
+            for (Outcome outcome : outcomes) {
+                if (!outcome.isSuccess()) {
+                    return 1;
+                }
+            }
+            return 0;
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+    }
+
+    /**
+     * @return the body of each section of the file, keyed by section name.
+     * Lines before the first section are keyed by the empty string.
+     */
+    private static Map<String, String> readSections(File file)
+            throws IOException {
+        Map<String, String> sections = new LinkedHashMap<String, String>();
+        BufferedReader reader =
+                new BufferedReader(new InputStreamReader(new FileInputStream(
+                        file), "ISO-8859-1"));
+        try {
+            String section = "";
+            StringBuilder body = new StringBuilder();
+            Set<String> seen = new HashSet<String>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String trimmed = line.trim();
+                if (trimmed.startsWith("[") && trimmed.endsWith("]")) {
+                    sections.put(section, body.toString());
+                    section = trimmed.substring(1, trimmed.length() - 1).trim();
+                    if (section.length() == 0 || !seen.add(section)) {
+                        throw new IllegalArgumentException(file +
+                                ": invalid or duplicate section " + trimmed);
+                    }
+                    body = new StringBuilder();
+                } else {
+                    body.append(line).append('\n');
+                }
+            }
+            sections.put(section, body.toString());
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+        return sections;
+    }
+
+    private static Map<String, String> toMap(String body) throws IOException {
+        Properties props = new Properties();
+        props.load(new StringReader(body));
+        return FedoraHome.loadMap(props);
+    }
+
+    private class Install implements Callable<Outcome> {
+
+        private final String _name;
+
+        private final Map<String, String> _props;
+
+        private final File _templateDir;
+
+        private final Collection<String> _copied;
+
+        /**
+         * @param copied the paths of templateDir that are copied rather than
+         * linked ("" for all of them)
+         */
+        Install(String name, Map<String, String> props, File templateDir,
+                Collection<String> copied) {
+            _name = name;
+            _props = props;
+            _templateDir = templateDir;
+            _copied = copied;
+        }
+
+        public Outcome call() {
+            long start = System.currentTimeMillis();
+            CURRENT.set(_name);
+            try {
+                InstallOptions opts = new InstallOptions(_props);
+                if (_templateDir != null) {
+                    new ExtractionCache(null, null, null).materialize(
+                            _templateDir, new File(opts
+                                    .getValue(InstallOptions.FEDORA_HOME)),
+                            _copied);
+                }
+                new FedoraHome(opts).install();
+                return new Outcome(_name, System.currentTimeMillis() - start,
+                        null);
+            } catch (Exception e) {
+                return new Outcome(_name, System.currentTimeMillis() - start,
+                        e);
+            } finally {
+                System.out.flush();
+                System.err.flush();
+                CURRENT.remove();
+            }
+        }
+    }
+
+    /**
+     * Writes whole lines to a stream, each prefixed with the name of the
+     * install that printed it, so that the output of concurrent installs can
+     * be told apart.
+     */
+    private static class InstallOutput extends OutputStream {
+
+        private final PrintStream _out;
+
+        private final ThreadLocal<ByteArrayOutputStream> _line =
+                new ThreadLocal<ByteArrayOutputStream>() {
+
+                    @Override
+                    protected ByteArrayOutputStream initialValue() {
+                        return new ByteArrayOutputStream();
+                    }
+                };
+
+        InstallOutput(PrintStream out) {
+            _out = out;
+        }
+
+        @Override
+        public void write(int b) {
+            ByteArrayOutputStream line = _line.get();
+            line.write(b);
+            if (b == '\n') {
+                writeLine(line);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                write(b[i]);
+            }
+        }
+
+        /**
+         * Writes a pending partial line, e.g. at the end of an install.
+         */
+        @Override
+        public void flush() {
+            ByteArrayOutputStream line = _line.get();
+            if (line.size() > 0) {
+                writeLine(line);
+            }
+        }
+
+        private void writeLine(ByteArrayOutputStream line) {
+            String name = CURRENT.get();
+            synchronized (_out) {
+                if (name != null) {
+                    _out.print("[" + name + "] ");
+                }
+                _out.write(line.toByteArray(), 0, line.size());
+                _out.flush();
+            }
+            line.reset();
+        }
+    }
+
+    /**
+     * The result of a single install.
+     */
+    public static class Outcome {
+
+        private final String _name;
+
+        private final long _millis;
+
+        private final Exception _error;
+
+        Outcome(String name, long millis, Exception error) {
+            _name = name;
+            _millis = millis;
+            _error = error;
+        }
+
+        public String getName() {
+            return _name;
+        }
+
+        public long getMillis() {
+            return _millis;
+        }
+
+        public boolean isSuccess() {
+            return _error == null;
+        }
+
+        /**
+         * @return the reason the install failed, or null if it succeeded
+         */
+        public Exception getError() {
+            return _error;
+        }
+    }
+}
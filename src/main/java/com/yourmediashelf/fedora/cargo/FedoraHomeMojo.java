@@ -20,20 +20,33 @@
 package com.yourmediashelf.fedora.cargo;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileLock;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.codehaus.cargo.container.ContainerException;
+import org.codehaus.cargo.container.ContainerType;
+import org.codehaus.cargo.container.InstalledLocalContainer;
+import org.codehaus.cargo.container.configuration.ConfigurationType;
+import org.codehaus.cargo.container.configuration.LocalConfiguration;
+import org.codehaus.cargo.container.property.ServletPropertySet;
+import org.codehaus.cargo.generic.DefaultContainerFactory;
+import org.codehaus.cargo.generic.configuration.DefaultConfigurationFactory;
 import org.codehaus.plexus.util.IOUtil;
-import org.codehaus.plexus.util.StringUtils;
+import org.eclipse.aether.artifact.Artifact;
 import org.eclipse.aether.resolution.ArtifactResult;
 
+import com.yourmediashelf.fedora.cargo.fcfg.ServerConfigurationCache;
+
 /**
  * 
  * @author Edwin Shin
@@ -56,50 +69,279 @@ public class FedoraHomeMojo extends FedoraCommonMojo {
      */
     private String fedoraHomeZip;
 
+    /**
+     * Whether to restore a snapshot taken by fedora-snapshot, if there is one
+     * matching the installed FEDORA_HOME and the WAR. This replaces data/ and
+     * derby/ with their state after Fedora's first start. Only a FEDORA_HOME
+     * installed for the first time is restored into; one installed by an
+     * earlier build keeps its data/ and derby/.
+     *
+     * @parameter alias="snapshot.restore"
+     *            property="snapshot.restore"
+     *            default-value="true"
+     */
+    private boolean snapshotRestore;
+
+    /**
+     * The performance profile to tune fedora.fcfg with: none, ci-fast,
+     * throughput or low-memory. Overrides performance.profile in
+     * install.properties.
+     *
+     * @parameter alias="performance.profile"
+     *            property="performance.profile"
+     */
+    private String performanceProfile;
+
+    /**
+     * Whether to provision FEDORA_HOME as an overlay of the extraction
+     * cache: every file is linked from the cache (symbolically, where hard
+     * links are not supported) except those beneath data/, and the files
+     * FedoraHome rewrites are replaced by real files as they are written.
+     * Otherwise all of server/config is copied. Has no effect unless
+     * extract.cache is enabled.
+     *
+     * @parameter alias="fedora.home.overlay"
+     *            property="fedora.home.overlay"
+     *            default-value="false"
+     */
+    private boolean overlay;
+
     public void execute() throws MojoExecutionException, MojoFailureException {
         getLog().info(fcrepoVersion.toString());
+        ServerConfigurationCache.getInstance().setDirectory(
+                getCacheDir("fcfg"));
 
-        ArtifactResult result = getArtifact(fedoraHomeZip);
+        prefetch(fedoraHomeZip);
+        if (isGoalBound("fedora-start")) {
+            // resolve the container and WAR in the background, for the
+            // fedora-start later in the build
+            prefetch(containerArtifact, getWarCoords());
+        }
+        final boolean restore = snapshotRestore && !getSnapshots().isEmpty();
+        if (restore) {
+            // the WAR is part of the snapshot key
+            prefetch(getWarCoords());
+        }
+        final ArtifactResult result = getArtifact(fedoraHomeZip);
+        if (!isMultiInstance()) {
+            if (containerReuse && isServedCurrent(result)) {
+                return;
+            }
+            boolean fresh = install(result, fedoraHomeDir, null);
+            if (restore) {
+                restoreSnapshot(fedoraHomeDir, fresh);
+            }
+            return;
+        }
+
+        forEachInstance(getInstances(), new InstanceTask() {
 
+            public void run(FedoraInstance instance)
+                    throws MojoExecutionException {
+                getLog().info("Provisioning " + instance);
+                boolean fresh = install(result, instance.getHome(), instance);
+                if (restore) {
+                    restoreSnapshot(instance.getHome(), fresh);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return true iff FEDORA_HOME was installed for the first time
+     */
+    private boolean install(ArtifactResult result, File home,
+            FedoraInstance instance) throws MojoExecutionException {
+        FedoraHome fh = new FedoraHome(getInstallOptions(instance));
+        boolean fresh = !fh.isInstalled();
+        Artifact artifact = result.getArtifact();
         try {
-            unzip(result.getArtifact().getFile(), fedoraHomeDir);
-        } catch (FileNotFoundException e) {
+            if (extractCache) {
+                ExtractionCache cache = getExtractionCache();
+                install(fh, cache, cache.get(artifact.toString(), artifact
+                        .getFile()), home, overlay);
+            } else {
+                extract(artifact.getFile(), home);
+                fh.setSource(null);
+                fh.install();
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        } catch (InstallationFailedException e) {
             throw new MojoExecutionException(e.getMessage(), e);
+        }
+        return fresh;
+    }
+
+    /**
+     * Materializes FEDORA_HOME from an extraction cache entry and configures
+     * it. Files configured by an earlier install from the same entry are not
+     * restored from the entry if the steps that wrote them would be skipped,
+     * so that an unchanged FEDORA_HOME is not configured again.
+     *
+     * @param overlay see {@link #overlay}
+     */
+    static void install(FedoraHome fh, ExtractionCache cache, File entry,
+            File home, boolean overlay) throws IOException,
+            InstallationFailedException {
+        Set<File> kept = fh.getCurrentOutputs(entry.getName());
+        if (overlay) {
+            // FedoraHome replaces, rather than rewrites, the files it
+            // configures, but data/ is written to by Fedora at runtime
+            cache.materialize(entry, home, Collections.singleton("data/"),
+                    true, kept);
+        } else {
+            // server/config is rewritten by FedoraHome and data/ is written
+            // to by Fedora at runtime, so neither may be linked from the
+            // cache
+            cache.materialize(entry, home, Arrays.asList("server/config/",
+                    "data/"), false, kept);
+        }
+        fh.setSource(entry.getName());
+        fh.install();
+    }
+
+    /**
+     * Checks whether a container left running for reuse serves FEDORA_HOME,
+     * which must then not be provisioned again under it. If FEDORA_HOME is
+     * current, the container may go on serving it; otherwise it is stopped.
+     *
+     * @return true iff FEDORA_HOME is served and current, and so is to be
+     * left as it is
+     */
+    private boolean isServedCurrent(ArtifactResult result)
+            throws MojoExecutionException {
+        int port = getPort();
+        ContainerRegistry registry = getContainerRegistry();
+        FileLock lock = null;
+        try {
+            lock = registry.lock(port);
+            ContainerRegistry.Entry entry = registry.get(port);
+            if (entry == null ||
+                    !fedoraHomeDir.getAbsoluteFile().equals(
+                            entry.getFedoraHome()) ||
+                    !isRunning(entry)) {
+                return false;
+            }
+            if (extractCache) {
+                Artifact artifact = result.getArtifact();
+                File source =
+                        getExtractionCache().get(artifact.toString(),
+                                artifact.getFile());
+                if (new FedoraHome(getInstallOptions(null)).isCurrent(source
+                        .getName())) {
+                    getLog().info("FEDORA_HOME is up to date and served by " +
+                            "container " + entry + "; leaving it alone");
+                    return true;
+                }
+            }
+            getLog().info("Stopping container " + entry + ", which serves " +
+                    "FEDORA_HOME, to provision it again");
+            stop(entry);
+            registry.remove(port);
+            return false;
         } catch (IOException e) {
             throw new MojoExecutionException(e.getMessage(), e);
+        } finally {
+            ContainerRegistry.release(lock);
+        }
+    }
+
+    /**
+     * @return whether the registered container is known to be running
+     */
+    private static boolean isRunning(ContainerRegistry.Entry entry) {
+        // without a pid, only a responding container is known to be running
+        return ContainerRegistry.isAlive(entry.getPid()) &&
+                (entry.getPid() >= 0 || ContainerRegistry.isHealthy(
+                        "http://localhost:" + entry.getPort() +
+                                "/fedora/describe", 5000));
+    }
+
+    /**
+     * Stops a registered container, through the configuration it was started
+     * with.
+     */
+    private void stop(ContainerRegistry.Entry entry)
+            throws MojoExecutionException {
+        LocalConfiguration configuration =
+                (LocalConfiguration) new DefaultConfigurationFactory()
+                        .createConfiguration(entry.getContainerId(),
+                                ContainerType.INSTALLED,
+                                ConfigurationType.STANDALONE, entry
+                                        .getConfigHome().getAbsolutePath());
+        configuration.setProperty(ServletPropertySet.PORT, Integer
+                .toString(entry.getPort()));
+        InstalledLocalContainer container =
+                (InstalledLocalContainer) new DefaultContainerFactory()
+                        .createContainer(entry.getContainerId(),
+                                ContainerType.INSTALLED, configuration);
+        container.setHome(entry.getHome());
+        try {
+            container.stop();
+        } catch (ContainerException e) {
+            throw new MojoExecutionException("Unable to stop container " +
+                    entry + ": " + e.getMessage(), e);
         }
+    }
 
-        applyFedoraHomeInstallProperties();
+    /**
+     * @param fresh whether home was installed for the first time; if not,
+     * its data/ and derby/ are left as they are
+     */
+    private void restoreSnapshot(File home, boolean fresh)
+            throws MojoExecutionException {
+        if (!fresh) {
+            getLog().info("Not restoring a snapshot: " + home +
+                    " was installed by an earlier build and keeps its data");
+            return;
+        }
+        String coords = getWarCoords();
+        if (coords == null) {
+            getLog().info("Not restoring a snapshot: the WAR is this " +
+                    "project's own artifact, which is not built yet");
+            return;
+        }
+        try {
+            String key =
+                    FedoraSnapshot.key(home, getArtifact(coords).getArtifact()
+                            .getFile());
+            if (!getSnapshots().restore(key, home,
+                    new ArchiveExtractor(extractThreads, getLog()))) {
+                getLog().info("No snapshot matches " + home);
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
     }
 
     /**
-     * Applies install.properties to FEDORA_HOME, performing property
-     * substitutions for ${fedora.home} and the like.
+     * Gets the options to apply install.properties to FEDORA_HOME with,
+     * performing property substitutions for ${fedora.home} and the like.
      * 
      * If the install.properties parameter is not set, applies a set of
      * default properties.
      * 
+     * @param instance the instance to install, or null for the single
+     * FEDORA_HOME
      * @throws MojoExecutionException
      */
-    private void applyFedoraHomeInstallProperties()
+    private InstallOptions getInstallOptions(FedoraInstance instance)
             throws MojoExecutionException {
-        InstallOptions opts;
-        Map<String, String> props = getInstallProperties();
+        Map<String, String> props = getInstallProperties(instance);
+        Set<String> pinned = Collections.emptySet();
+        if (instance != null) {
+            pinned = relocate(props, instance);
+        }
 
         try {
-            opts = new InstallOptions(props);
+            return new InstallOptions(props, pinned);
         } catch (OptionValidationException e) {
             throw new MojoExecutionException(e.getMessage(), e);
         }
-        FedoraHome fh = new FedoraHome(opts);
-        try {
-            fh.install();
-        } catch (InstallationFailedException e) {
-            throw new MojoExecutionException(e.getMessage(), e);
-        }
     }
 
-    private Map<String, String> getInstallProperties()
+    private Map<String, String> getInstallProperties(FedoraInstance instance)
             throws MojoExecutionException {
         Map<String, String> filteredProps = new HashMap<String, String>();
         if (installProperties == null) {
@@ -109,8 +351,21 @@ public class FedoraHomeMojo extends FedoraCommonMojo {
                             "default_install.properties");
             try {
                 // Use the Maven project properties as the lookup table for 
-                // property substition values
-                Properties mavenProps = mavenProject.getProperties();
+                // property substition values, with fedora.home and
+                // fedora.port taken from this mojo's parameters (they need
+                // not be set as properties)
+                Properties mavenProps = new Properties();
+                mavenProps.putAll(mavenProject.getProperties());
+                if (instance == null) {
+                    mavenProps.setProperty("fedora.home", fedoraHomeDir
+                            .getAbsolutePath());
+                    mavenProps.setProperty("fedora.port", fedoraPort);
+                } else {
+                    mavenProps.setProperty("fedora.home", instance.getHome()
+                            .getAbsolutePath());
+                    mavenProps.setProperty("fedora.port", Integer
+                            .toString(instance.getPort()));
+                }
                 Properties p = applyFilters(is, mavenProps);
                 filteredProps.putAll(FedoraHome.loadMap(p));
             } catch (IOException e) {
@@ -123,16 +378,59 @@ public class FedoraHomeMojo extends FedoraCommonMojo {
                 throw new MojoExecutionException(e.getMessage(), e);
             }
         }
+        if (performanceProfile != null) {
+            filteredProps.put(InstallOptions.PERFORMANCE_PROFILE,
+                    performanceProfile);
+        }
+        if (!filteredProps.containsKey(InstallOptions.PERFORMANCE_HEAP)) {
+            // size the profile for the container, not this JVM
+            filteredProps.put(InstallOptions.PERFORMANCE_HEAP,
+                    getContainerHeap());
+        }
         return filteredProps;
     }
 
     /**
-     * Applies values defined in lookup to source.
+     * Points install properties at an instance: its FEDORA_HOME (including
+     * paths beneath it, such as the embedded database) and its ports.
+     * 
+     * @return the ids of the options set for the instance, which System
+     * properties (e.g. -Dfedora.home) must not override
+     */
+    private static Set<String> relocate(Map<String, String> props,
+            FedoraInstance instance) {
+        Set<String> relocated = new HashSet<String>();
+        String home = instance.getHome().getAbsolutePath();
+        String original = props.get(InstallOptions.FEDORA_HOME);
+        if (original != null && original.length() > 0 &&
+                !original.equals(home)) {
+            for (Map.Entry<String, String> e : props.entrySet()) {
+                if (e.getValue() != null && e.getValue().contains(original)) {
+                    e.setValue(e.getValue().replace(original, home));
+                    relocated.add(e.getKey());
+                }
+            }
+        }
+        props.put(InstallOptions.FEDORA_HOME, home);
+        props.put(InstallOptions.TOMCAT_HTTP_PORT, Integer.toString(instance
+                .getPort()));
+        props.put(InstallOptions.TOMCAT_SHUTDOWN_PORT, Integer
+                .toString(instance.getShutdownPort()));
+        relocated.add(InstallOptions.FEDORA_HOME);
+        relocated.add(InstallOptions.TOMCAT_HTTP_PORT);
+        relocated.add(InstallOptions.TOMCAT_SHUTDOWN_PORT);
+        return relocated;
+    }
+
+    /**
+     * Applies values defined in lookup (or, failing that, System properties)
+     * to source. References that cannot be resolved are left as is.
      * 
      * @param source
      * @param lookup
      * @return Properties
      * @throws IOException
+     * @see PropertyInterpolator
      */
     public static Properties applyFilters(InputStream source,
             Properties lookup) throws IOException {
@@ -144,62 +442,11 @@ public class FedoraHomeMojo extends FedoraCommonMojo {
             IOUtil.close(source);
         }
 
-        final Properties filterdProps = new Properties();
-        filterdProps.putAll(sourceProps);
-
-        for (Iterator<?> iter = sourceProps.keySet().iterator(); iter.hasNext();) {
-            final String k = (String) iter.next();
-            final String propValue =
-                    getPropertyValue(k, filterdProps, lookup);
-            sourceProps.setProperty(k, propValue);
+        PropertyInterpolator interpolator = new PropertyInterpolator(lookup);
+        for (String k : sourceProps.stringPropertyNames()) {
+            sourceProps.setProperty(k, interpolator.interpolate(k, sourceProps
+                    .getProperty(k)));
         }
         return sourceProps;
     }
-
-    /**
-     * A less complete, modified version of PropertyUtils.getPropertyValue
-     * 
-     * @param k
-     * @param p
-     * @param lookup
-     * @return the property value
-     */
-    private static String getPropertyValue(String k, Properties p,
-            Properties lookup) {
-        String v = p.getProperty(k);
-        String ret = "";
-        int idx, idx2;
-
-        while ((idx = v.indexOf("${")) >= 0) {
-            // append prefix to result
-            ret += v.substring(0, idx);
-
-            // strip prefix from original
-            v = v.substring(idx + 2);
-
-            // if no matching } then bail
-            if ((idx2 = v.indexOf('}')) < 0) {
-                break;
-            }
-
-            // strip out the key and resolve it
-            // resolve the key/value for the ${statement}
-            String nk = v.substring(0, idx2);
-            v = v.substring(idx2 + 1);
-            String nv = lookup.getProperty(nk);
-
-            // try global environment..
-            if (nv == null && !StringUtils.isEmpty(nk)) {
-                nv = System.getProperty(nk);
-            }
-
-            // if the key cannot be resolved, leave it as is
-            if (nv == null || nv.equals(k)) {
-                ret += "${" + nk + "}";
-            } else {
-                v = nv + v;
-            }
-        }
-        return ret + v;
-    }
 }
@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo;
+
+import java.io.File;
+import java.util.Properties;
+
+/**
+ * One of several Fedora instances provisioned side by side, each with its
+ * own FEDORA_HOME and ports.
+ *
+ * <p>Instances are exported as Maven properties, so that tests (e.g. sharded
+ * across Surefire or Failsafe forks) can find them:
+ * <pre>
+ * fedora.instance.&lt;n&gt;.home
+ * fedora.instance.&lt;n&gt;.port
+ * fedora.instance.&lt;n&gt;.shutdownPort
+ * fedora.instance.&lt;n&gt;.ajpPort
+ * fedora.instance.&lt;n&gt;.url
+ * </pre>
+ * where n is the 1-based index of the instance.
+ */
+public class FedoraInstance {
+
+    public static final String PROPERTY_PREFIX = "fedora.instance.";
+
+    private final int index;
+
+    private final File home;
+
+    private final int port;
+
+    private final int shutdownPort;
+
+    private final int ajpPort;
+
+    public FedoraInstance(int index, File home, int port, int shutdownPort,
+            int ajpPort) {
+        this.index = index;
+        this.home = home;
+        this.port = port;
+        this.shutdownPort = shutdownPort;
+        this.ajpPort = ajpPort;
+    }
+
+    /**
+     * @return the instance with the given index in props, or null if there is
+     * none
+     */
+    public static FedoraInstance fromProperties(Properties props, int index) {
+        String prefix = PROPERTY_PREFIX + index + ".";
+        String home = props.getProperty(prefix + "home");
+        String port = props.getProperty(prefix + "port");
+        String shutdownPort = props.getProperty(prefix + "shutdownPort");
+        String ajpPort = props.getProperty(prefix + "ajpPort");
+        if (home == null || port == null || shutdownPort == null ||
+                ajpPort == null) {
+            return null;
+        }
+        try {
+            return new FedoraInstance(index, new File(home), Integer
+                    .parseInt(port), Integer.parseInt(shutdownPort), Integer
+                    .parseInt(ajpPort));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public void toProperties(Properties props) {
+        String prefix = PROPERTY_PREFIX + index + ".";
+        props.setProperty(prefix + "home", home.getAbsolutePath());
+        props.setProperty(prefix + "port", Integer.toString(port));
+        props.setProperty(prefix + "shutdownPort", Integer
+                .toString(shutdownPort));
+        props.setProperty(prefix + "ajpPort", Integer.toString(ajpPort));
+        props.setProperty(prefix + "url", getUrl());
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public File getHome() {
+        return home;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getShutdownPort() {
+        return shutdownPort;
+    }
+
+    public int getAjpPort() {
+        return ajpPort;
+    }
+
+    /**
+     * @return the base URL of Fedora, e.g. http://localhost:8080/fedora
+     */
+    public String getUrl() {
+        return "http://localhost:" + port + "/fedora";
+    }
+
+    @Override
+    public String toString() {
+        return "instance " + index + " (port " + port + ", " + home + ")";
+    }
+}
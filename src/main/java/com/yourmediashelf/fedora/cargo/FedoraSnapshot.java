@@ -0,0 +1,253 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.yourmediashelf.fedora.cargo;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Golden images of a FEDORA_HOME as it is after Fedora's first start: the
+ * object and datastream stores, resource index and embedded Derby database,
+ * by then holding the schema and the system objects Fedora ingests on its
+ * first start.
+ *
+ * <p>A snapshot is keyed by everything that determines that state: the
+ * configuration in FEDORA_HOME and the WAR. Restoring a snapshot into a
+ * freshly installed FEDORA_HOME with the same key lets Fedora skip its
+ * first-start initialization. Only an embedded database beneath FEDORA_HOME
+ * is captured; with an external database, snapshots must not be used.
+ *
+ * <p>Each key holds a full copy of data/ and derby/, and any change to the
+ * WAR or the configuration makes a new key. Creating a snapshot therefore
+ * deletes the least recently created or restored snapshots beyond a
+ * retention limit.
+ */
+public class FedoraSnapshot {
+
+    /** the directories, relative to FEDORA_HOME, that make up a snapshot */
+    static final String[] DIRS = {"data", "derby"};
+
+    private static final String EXTENSION = ".zip";
+
+    private final File snapshotDir;
+
+    private final int retain;
+
+    private final Log log;
+
+    /**
+     * @param retain the number of snapshots to keep, or 0 to keep them all
+     */
+    public FedoraSnapshot(File snapshotDir, int retain, Log log) {
+        this.snapshotDir = snapshotDir;
+        this.retain = retain;
+        this.log = log;
+    }
+
+    /**
+     * @param fedoraHome an installed FEDORA_HOME
+     * @param war the WAR Fedora is deployed from
+     * @return the key of snapshots of fedoraHome
+     * @throws IOException
+     */
+    public static String key(File fedoraHome, File war) throws IOException {
+        return Checksums.sha1(Checksums.sha1Tree(new File(fedoraHome,
+                "server/config")) +
+                "\n" + Checksums.sha1(war));
+    }
+
+    /**
+     * @return true iff there is a snapshot with the given key
+     */
+    public boolean exists(String key) {
+        return getFile(key).isFile();
+    }
+
+    /**
+     * @return true iff there are no snapshots at all, in which case there is
+     * no point in computing a key
+     */
+    public boolean isEmpty() {
+        String[] names = snapshotDir.list();
+        return names == null || names.length == 0;
+    }
+
+    /**
+     * Archives the snapshot directories of fedoraHome under key. Fedora must
+     * not be running.
+     *
+     * @throws IOException
+     */
+    public void create(String key, File fedoraHome) throws IOException {
+        long start = System.currentTimeMillis();
+        snapshotDir.mkdirs();
+        File snapshot = getFile(key);
+        File tmp = new File(snapshotDir, key + ".tmp-" + System.nanoTime());
+        int count = 0;
+        ZipOutputStream out =
+                new ZipOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(tmp), 64 * 1024));
+        try {
+            // the stores are mostly small XML files; favor speed over size
+            out.setLevel(Deflater.BEST_SPEED);
+            byte[] buf = new byte[64 * 1024];
+            int base = fedoraHome.getAbsolutePath().length() + 1;
+            for (String name : DIRS) {
+                File dir = new File(fedoraHome, name);
+                if (!dir.isDirectory()) {
+                    continue;
+                }
+                List<File> files =
+                        new ArrayList<File>(FileUtils.listFiles(dir,
+                                TrueFileFilter.INSTANCE,
+                                TrueFileFilter.INSTANCE));
+                Collections.sort(files);
+                for (File f : files) {
+                    ZipEntry entry =
+                            new ZipEntry(f.getAbsolutePath().substring(base)
+                                    .replace(File.separatorChar, '/'));
+                    entry.setTime(f.lastModified());
+                    out.putNextEntry(entry);
+                    InputStream in = new FileInputStream(f);
+                    try {
+                        int n;
+                        while ((n = in.read(buf)) != -1) {
+                            out.write(buf, 0, n);
+                        }
+                    } finally {
+                        IOUtils.closeQuietly(in);
+                    }
+                    out.closeEntry();
+                    count++;
+                }
+            }
+            out.close();
+            try {
+                Files.move(tmp.toPath(), snapshot.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), snapshot.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            IOUtils.closeQuietly(out);
+            FileUtils.deleteQuietly(tmp);
+        }
+        info(String.format("Created snapshot %s of %s (%d files, %.1f MB) " +
+                "in %d ms", key, fedoraHome, count,
+                snapshot.length() / (1024.0 * 1024.0), System
+                        .currentTimeMillis() -
+                        start));
+        prune(snapshot);
+    }
+
+    /**
+     * Deletes the least recently created or restored snapshots beyond the
+     * retention limit.
+     *
+     * @param current the snapshot just created, which is always kept
+     */
+    private void prune(File current) {
+        if (retain <= 0) {
+            return;
+        }
+        File[] files = snapshotDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> snapshots = new ArrayList<File>();
+        for (File f : files) {
+            if (f.isFile() && f.getName().endsWith(EXTENSION) &&
+                    !f.equals(current)) {
+                snapshots.add(f);
+            }
+        }
+        // most recently used first
+        Collections.sort(snapshots, new Comparator<File>() {
+
+            public int compare(File a, File b) {
+                long diff = b.lastModified() - a.lastModified();
+                return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+            }
+        });
+        for (File f : snapshots.subList(Math.min(retain - 1, snapshots
+                .size()), snapshots.size())) {
+            if (f.delete()) {
+                info("Deleted snapshot " + f.getName() + " (snapshot.retain=" +
+                        retain + ")");
+            }
+        }
+    }
+
+    /**
+     * Replaces the snapshot directories of fedoraHome with those of the
+     * snapshot with the given key.
+     *
+     * @return false if there is no such snapshot
+     * @throws IOException
+     */
+    public boolean restore(String key, File fedoraHome,
+            ArchiveExtractor extractor) throws IOException {
+        File snapshot = getFile(key);
+        if (!snapshot.isFile()) {
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        // marks the snapshot as recently used, to be kept when pruning
+        snapshot.setLastModified(start);
+        for (String name : DIRS) {
+            FileUtils.deleteDirectory(new File(fedoraHome, name));
+        }
+        extractor.extract(snapshot, fedoraHome);
+        info("Restored snapshot " + key + " into " + fedoraHome + " in " +
+                (System.currentTimeMillis() - start) + " ms");
+        return true;
+    }
+
+    private File getFile(String key) {
+        return new File(snapshotDir, key + EXTENSION);
+    }
+
+    private void info(String msg) {
+        if (log != null) {
+            log.info(msg);
+        }
+    }
+}
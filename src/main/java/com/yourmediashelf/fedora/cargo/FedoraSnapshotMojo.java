@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.yourmediashelf.fedora.cargo;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+/**
+ * Takes a snapshot of FEDORA_HOME after Fedora's first start, which
+ * fedora-home restores in later builds so that Fedora skips its first-start
+ * initialization (see {@link FedoraSnapshot}).
+ *
+ * <p>Bind this goal right after fedora-start. If a snapshot with the same key
+ * exists already, it does nothing. Otherwise it waits for an asynchronous
+ * start to complete, and a running container is stopped, so that the
+ * database is consistent on disk, FEDORA_HOME is archived and the container
+ * is started again. With container.shared, only the module that started the
+ * shared container takes the snapshot, and only before any other module
+ * attaches to it.
+ *
+ * @goal fedora-snapshot
+ * @phase pre-integration-test
+ */
+public class FedoraSnapshotMojo extends FedoraCargoMojo {
+
+    public void doExecute() throws MojoExecutionException {
+        if (isMultiInstance() || containerReuse) {
+            getLog().warn(
+                    "Snapshots are not taken with fedora.instances or " +
+                            "container.reuse");
+            return;
+        }
+
+        final FedoraSnapshot snapshots = getSnapshots();
+        try {
+            final String key = FedoraSnapshot.key(fedoraHomeDir, getWarFile());
+            if (snapshots.exists(key)) {
+                getLog().info("Snapshot " + key + " is up to date");
+                return;
+            }
+
+            // with container.async, Fedora may still be initializing
+            // FEDORA_HOME; a failed start leaves nothing to snapshot
+            awaitContainer();
+            boolean taken = runStopped(new Callable<Void>() {
+
+                public Void call() throws IOException {
+                    snapshots.create(key, fedoraHomeDir);
+                    return null;
+                }
+            });
+            if (!taken) {
+                getLog().info("Not taking snapshot " + key);
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies files byte for byte (no charset decoding), using
+ * {@link FileChannel#transferTo} so that the kernel can move the data
+ * without it passing through the JVM.
+ *
+ * <p>A destination whose size and checksum already match its source is left
+ * alone. Otherwise the copy is written to a temporary file that is
+ * atomically renamed over the destination, so that readers never see a
+ * partial file and a destination hard-linked elsewhere (e.g. from the
+ * extraction cache) is replaced rather than overwritten.
+ */
+public class FileCopier {
+
+    private final int threads;
+
+    private final AtomicInteger copied = new AtomicInteger();
+
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    /**
+     * @param threads the maximum number of directories to copy concurrently
+     */
+    public FileCopier(int threads) {
+        this.threads = Math.max(threads, 1);
+    }
+
+    /**
+     * Copies src to dest, unless dest already has the same content.
+     *
+     * @return true iff dest was written
+     * @throws IOException
+     */
+    public boolean copy(File src, File dest) throws IOException {
+        if (dest.isFile() && dest.length() == src.length() &&
+                Checksums.sha1(dest).equals(Checksums.sha1(src))) {
+            skipped.incrementAndGet();
+            return false;
+        }
+        File tmp = AtomicFiles.newTempFile(dest);
+        try {
+            FileInputStream in = new FileInputStream(src);
+            try {
+                FileOutputStream out = new FileOutputStream(tmp);
+                try {
+                    FileChannel source = in.getChannel();
+                    long size = source.size();
+                    long pos = 0;
+                    while (pos < size) {
+                        pos += source.transferTo(pos, size - pos, out
+                                .getChannel());
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            AtomicFiles.replace(tmp, dest);
+        } finally {
+            if (tmp.exists()) {
+                tmp.delete();
+            }
+        }
+        copied.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Copies the files (but not the subdirectories) of srcDir into destDir.
+     *
+     * @throws IOException
+     */
+    public void copyFiles(File srcDir, File destDir) throws IOException {
+        File[] files = srcDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isFile()) {
+                copy(file, new File(destDir, file.getName()));
+            }
+        }
+    }
+
+    /**
+     * Copies the files of each source directory into its destination
+     * directory, as {@link #copyFiles(File, File)} does, copying the
+     * directories concurrently.
+     *
+     * @param dirs the destination directory of each source directory
+     * @throws IOException
+     */
+    public void copyFiles(Map<File, File> dirs) throws IOException {
+        int count = Math.min(threads, dirs.size());
+        if (count <= 1) {
+            for (Map.Entry<File, File> entry : dirs.entrySet()) {
+                copyFiles(entry.getKey(), entry.getValue());
+            }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(count);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (final Map.Entry<File, File> entry : dirs.entrySet()) {
+                results.add(executor.submit(new Callable<Void>() {
+
+                    public Void call() throws IOException {
+                        copyFiles(entry.getKey(), entry.getValue());
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while copying files", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the number of files written so far
+     */
+    public int getCopied() {
+        return copied.get();
+    }
+
+    /**
+     * @return the number of files found up to date so far
+     */
+    public int getSkipped() {
+        return skipped.get();
+    }
+}
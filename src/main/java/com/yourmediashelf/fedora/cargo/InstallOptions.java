@@ -21,9 +21,12 @@ package com.yourmediashelf.fedora.cargo;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 public class InstallOptions {
 
@@ -100,6 +103,14 @@ public class InstallOptions {
 
     public static final String UNATTENDED = "unattended";
 
+    public static final String INSTALL_INCREMENTAL = "install.incremental";
+
+    public static final String INSTALL_THREADS = "install.threads";
+
+    public static final String PERFORMANCE_PROFILE = "performance.profile";
+
+    public static final String PERFORMANCE_HEAP = "performance.heap";
+
     public static final String DATABASE_UPDATE = "database.update";
 
     public static final String DEFAULT = "default";
@@ -124,13 +135,29 @@ public class InstallOptions {
 
     private final Map<String, String> _map;
 
+    private final Set<String> _pinned;
+
     /**
      * Initialize options from the given map of String values, keyed by option
      * id.
      */
     public InstallOptions(Map<String, String> map)
             throws OptionValidationException {
+        this(map, Collections.<String> emptySet());
+    }
+
+    /**
+     * Initialize options from the given map of String values, keyed by option
+     * id.
+     * 
+     * @param pinned the ids of options whose value in map may not be
+     * overridden by a System property (e.g. the per-instance FEDORA_HOME and
+     * ports when provisioning several instances)
+     */
+    public InstallOptions(Map<String, String> map, Collection<String> pinned)
+            throws OptionValidationException {
         _map = map;
+        _pinned = new HashSet<String>(pinned);
 
         applyDefaults();
         validateAll();
@@ -156,6 +183,9 @@ public class InstallOptions {
      * exist.
      */
     public String getValue(String name) {
+        if (_pinned.contains(name)) {
+            return _map.get(name);
+        }
         return System.getProperty(name, _map.get(name));
     }
 
@@ -183,6 +213,21 @@ public class InstallOptions {
         }
     }
 
+    /**
+     * Get the value of the given option as an int, or the given default value
+     * if unspecified.
+     * 
+     * @throws NumberFormatException if the value is not an integer
+     */
+    public int getIntValue(String name, int defaultValue) {
+        String value = getValue(name);
+        if (value == null) {
+            return defaultValue;
+        } else {
+            return Integer.parseInt(value.trim());
+        }
+    }
+
     /**
      * Get an iterator of the names of all specified options.
      */
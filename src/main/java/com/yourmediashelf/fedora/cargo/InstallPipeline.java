@@ -0,0 +1,216 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs {@link ConfigStep}s concurrently, ordered by the files they touch.
+ *
+ * <p>A step depends on every earlier step whose footprint overlaps its own,
+ * so steps are never reordered with respect to a file they share, and the
+ * result is the same as running them in list order. Once a step fails, no
+ * further steps are started; the steps already running are allowed to finish
+ * and all failures are reported together.
+ */
+class InstallPipeline {
+
+    private final Map<ConfigStep, Set<ConfigStep>> _dependencies =
+            new LinkedHashMap<ConfigStep, Set<ConfigStep>>();
+
+    private final InstallState _state;
+
+    private final boolean _incremental;
+
+    /**
+     * @param steps the steps, in the order they would run sequentially
+     * @param state the state used to skip unchanged steps
+     * @param incremental whether unchanged steps are skipped
+     */
+    public InstallPipeline(List<ConfigStep> steps, InstallState state,
+            boolean incremental) {
+        _state = state;
+        _incremental = incremental;
+        for (int i = 0; i < steps.size(); i++) {
+            ConfigStep step = steps.get(i);
+            Set<ConfigStep> dependencies = new HashSet<ConfigStep>();
+            for (int j = 0; j < i; j++) {
+                if (overlaps(steps.get(j).getFootprint(), step.getFootprint())) {
+                    dependencies.add(steps.get(j));
+                }
+            }
+            _dependencies.put(step, dependencies);
+        }
+    }
+
+    /**
+     * @return the earlier steps that must complete before step may run
+     */
+    public Set<ConfigStep> getDependencies(ConfigStep step) {
+        return Collections.unmodifiableSet(_dependencies.get(step));
+    }
+
+    /**
+     * Runs all steps on at most the given number of threads.
+     *
+     * @param threads the maximum number of steps to run at once
+     * @throws InstallationFailedException if any step failed
+     */
+    public void run(int threads) throws InstallationFailedException {
+        long start = System.currentTimeMillis();
+        List<ConfigStep> pending =
+                new ArrayList<ConfigStep>(_dependencies.keySet());
+        Set<ConfigStep> done = new HashSet<ConfigStep>();
+        List<Throwable> failures = new ArrayList<Throwable>();
+        int running = 0;
+
+        ExecutorService executor =
+                Executors.newFixedThreadPool(Math.max(1, threads),
+                        new StepThreadFactory());
+        CompletionService<ConfigStep> completion =
+                new ExecutorCompletionService<ConfigStep>(executor);
+        try {
+            while (true) {
+                if (failures.isEmpty()) {
+                    for (Iterator<ConfigStep> it = pending.iterator(); it
+                            .hasNext();) {
+                        final ConfigStep step = it.next();
+                        if (done.containsAll(_dependencies.get(step))) {
+                            it.remove();
+                            completion.submit(new Callable<ConfigStep>() {
+
+                                @Override
+                                public ConfigStep call() throws Exception {
+                                    runStep(step);
+                                    return step;
+                                }
+                            });
+                            running++;
+                        }
+                    }
+                }
+                if (running == 0) {
+                    break;
+                }
+                try {
+                    done.add(completion.take().get());
+                } catch (ExecutionException e) {
+                    failures.add(e.getCause());
+                }
+                running--;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InstallationFailedException(
+                    "Interrupted while configuring " + pending, e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (!failures.isEmpty()) {
+            Throwable first = failures.get(0);
+            InstallationFailedException e =
+                    first instanceof InstallationFailedException
+                            ? (InstallationFailedException) first
+                            : new InstallationFailedException(first
+                                    .getMessage(), first);
+            for (Throwable t : failures.subList(1, failures.size())) {
+                e.addSuppressed(t);
+            }
+            throw e;
+        }
+        System.out.println(String.format(
+                "\tConfigured %d steps in %d ms (%d threads)", done.size(),
+                System.currentTimeMillis() - start, Math.max(1, threads)));
+    }
+
+    private void runStep(ConfigStep step) throws InstallationFailedException {
+        long start = System.currentTimeMillis();
+        try {
+            String fingerprint = _state.fingerprint(step);
+            if (_incremental && _state.isUpToDate(step, fingerprint)) {
+                System.out.println("\tSkipping " + step.getName() +
+                        " (unchanged)");
+                return;
+            }
+            step.run();
+            _state.record(step, fingerprint);
+        } catch (IOException e) {
+            throw new InstallationFailedException(e.getMessage(), e);
+        }
+        System.out.println(String.format("\t%s took %d ms", step.getName(),
+                System.currentTimeMillis() - start));
+    }
+
+    /**
+     * @return true iff a file in one list is, or is beneath, a file in the
+     * other
+     */
+    static boolean overlaps(List<File> a, List<File> b) {
+        for (File x : a) {
+            for (File y : b) {
+                if (contains(x, y) || contains(y, x)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean contains(File dir, File f) {
+        File abs = dir.getAbsoluteFile();
+        for (File p = f.getAbsoluteFile(); p != null; p = p.getParentFile()) {
+            if (p.equals(abs)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class StepThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger _count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t =
+                    new Thread(r, "fedora-home-config-" +
+                            _count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
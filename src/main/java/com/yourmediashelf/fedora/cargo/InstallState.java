@@ -0,0 +1,249 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Records, per {@link ConfigStep}, a fingerprint of the step's inputs and the
+ * checksums of the files it wrote, so that a step can be skipped when
+ * neither has changed since the last install.
+ *
+ * <p>The fingerprint of a step covers the plugin version, the install
+ * options (other than those controlling the install itself), the step's own
+ * settings and the checksums of its input files. The state is kept in a
+ * properties file in FEDORA_HOME, along with the source FEDORA_HOME was
+ * last materialized from.
+ */
+class InstallState {
+
+    public static final String STATE_FILE = ".fedora-cargo-install.properties";
+
+    private static final String SOURCE = "source";
+
+    private static final String PLUGIN_POM_PROPERTIES =
+            "META-INF/maven/com.yourmediashelf.fedora/fedora-cargo-plugin/pom.properties";
+
+    private final File _installDir;
+
+    private final File _stateFile;
+
+    private final String _optionsDigest;
+
+    private final Properties _state = new Properties();
+
+    private boolean _dirty;
+
+    public InstallState(File installDir, InstallOptions opts) {
+        _installDir = installDir;
+        _stateFile = new File(installDir, STATE_FILE);
+
+        List<String> names = new ArrayList<String>(opts.getOptionNames());
+        // options that only affect how, not what, is installed
+        names.remove(InstallOptions.INSTALL_INCREMENTAL);
+        names.remove(InstallOptions.INSTALL_THREADS);
+        Collections.sort(names);
+        StringBuilder options = new StringBuilder(getPluginVersion());
+        for (String name : names) {
+            options.append('\n').append(name).append('=').append(
+                    opts.getValue(name));
+        }
+        _optionsDigest = Checksums.sha1(options.toString());
+
+        if (_stateFile.isFile()) {
+            InputStream in = null;
+            try {
+                in = new FileInputStream(_stateFile);
+                _state.load(in);
+            } catch (IOException e) {
+                // a corrupt state file only means nothing can be skipped
+                _state.clear();
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+    }
+
+    /**
+     * @return what FEDORA_HOME was last materialized from, or null if unknown
+     */
+    public synchronized String getSource() {
+        return _state.getProperty(SOURCE);
+    }
+
+    /**
+     * @param source what FEDORA_HOME was (re-)materialized from (e.g. the
+     * extraction cache entry of the FEDORA_HOME archive), or null if unknown
+     */
+    public synchronized void setSource(String source) {
+        if (source == null ? getSource() == null : source.equals(getSource())) {
+            return;
+        }
+        if (source == null) {
+            _state.remove(SOURCE);
+        } else {
+            _state.setProperty(SOURCE, source);
+        }
+        _dirty = true;
+    }
+
+    /**
+     * @return the fingerprint of the step's current inputs
+     * @throws IOException
+     */
+    public String fingerprint(ConfigStep step) throws IOException {
+        StringBuilder sb = new StringBuilder(_optionsDigest);
+        sb.append('\n').append(step.getName());
+        sb.append('\n').append(step.getSettings());
+        for (File input : step.getInputs()) {
+            sb.append('\n').append(relativize(input)).append('=');
+            sb.append(input.isFile() ? Checksums.sha1(input) : "-");
+        }
+        return Checksums.sha1(sb.toString());
+    }
+
+    /**
+     * @return true iff the step last ran with the given fingerprint and its
+     * outputs are unchanged since
+     * @throws IOException
+     */
+    public synchronized boolean isUpToDate(ConfigStep step, String fingerprint)
+            throws IOException {
+        String prefix = step.getName() + ".output.";
+        if (!fingerprint.equals(_state.getProperty(step.getName() + ".inputs"))) {
+            return false;
+        }
+
+        Set<String> recorded = new HashSet<String>();
+        for (String key : _state.stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                recorded.add(key.substring(prefix.length()));
+            }
+        }
+        List<File> outputs = step.getOutputs();
+        if (recorded.size() != outputs.size()) {
+            return false;
+        }
+        for (File output : outputs) {
+            String path = relativize(output);
+            if (!recorded.contains(path) || !output.isFile() ||
+                    !Checksums.sha1(output).equals(
+                            _state.getProperty(prefix + path))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records that the step ran with the given fingerprint, along with the
+     * checksums of its outputs as they are now.
+     *
+     * @throws IOException
+     */
+    public synchronized void record(ConfigStep step, String fingerprint)
+            throws IOException {
+        String prefix = step.getName() + ".output.";
+        for (String key : _state.stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                _state.remove(key);
+            }
+        }
+        _state.setProperty(step.getName() + ".inputs", fingerprint);
+        for (File output : step.getOutputs()) {
+            if (output.isFile()) {
+                _state.setProperty(prefix + relativize(output), Checksums
+                        .sha1(output));
+            }
+        }
+        _dirty = true;
+    }
+
+    public synchronized void save() throws IOException {
+        if (!_dirty) {
+            return;
+        }
+        FileOutputStream out = new FileOutputStream(_stateFile);
+        try {
+            _state.store(out, "fedora-cargo-plugin install state");
+        } finally {
+            out.close();
+        }
+        _dirty = false;
+    }
+
+    private String relativize(File f) {
+        String base = _installDir.getAbsolutePath() + File.separator;
+        String path = f.getAbsolutePath();
+        if (path.startsWith(base)) {
+            path = path.substring(base.length());
+        }
+        return path.replace(File.separatorChar, '/');
+    }
+
+    /**
+     * @return the version of this plugin. For snapshots (or when the version
+     * is unknown, e.g. when running from target/classes), the modification
+     * time of the plugin's code source is appended so that rebuilding the
+     * plugin invalidates previously recorded state.
+     */
+    static String getPluginVersion() {
+        String version = null;
+        InputStream in =
+                InstallState.class.getClassLoader().getResourceAsStream(
+                        PLUGIN_POM_PROPERTIES);
+        if (in != null) {
+            try {
+                Properties props = new Properties();
+                props.load(in);
+                version = props.getProperty("version");
+            } catch (IOException e) {
+                // fall through
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+        if (version == null || version.endsWith("-SNAPSHOT")) {
+            long lastModified = 0;
+            URL self = InstallState.class.getResource("InstallState.class");
+            if (self != null) {
+                try {
+                    lastModified = self.openConnection().getLastModified();
+                } catch (IOException e) {
+                    // fall through
+                }
+            }
+            version = version + "@" + lastModified;
+        }
+        return version;
+    }
+}
@@ -0,0 +1,370 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Rewrites literal tokens and comment-delimited blocks (such as the
+ * {@code <!-- TESTONLY ... /TESTONLY -->} and {@code <!-- BUG ... /BUG -->}
+ * markers in Fedora's Spring configuration) in a single streaming pass.
+ *
+ * <p>Matching is done on bytes, which is safe for UTF-8 and any other
+ * ASCII-compatible encoding as long as the tokens are ASCII. Memory use is
+ * bounded by the I/O buffers and the longest token. Nothing is written until
+ * the first match; the rewritten content then goes to a temporary file that
+ * is atomically renamed over the original, so files without any match are
+ * never rewritten.
+ *
+ * <p>The result is the same as applying the equivalent regular expressions
+ * ({@code (?s)OPEN(.+?)CLOSE}) in turn: a block needs at least one byte
+ * between its delimiters, and an opening delimiter without a closing one is
+ * left as is.
+ */
+public class MarkerRewriter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final List<Rule> rules = new ArrayList<Rule>();
+
+    /**
+     * Replaces every occurrence of token with replacement.
+     */
+    public MarkerRewriter replace(String token, String replacement) {
+        rules.add(new Rule(Action.REPLACE, token, null, bytes(replacement),
+                false));
+        return this;
+    }
+
+    /**
+     * Removes the open and close delimiters of every block, keeping the
+     * content between them.
+     */
+    public MarkerRewriter unwrap(String open, String close) {
+        rules.add(new Rule(Action.UNWRAP, open, close, null, false));
+        return this;
+    }
+
+    /**
+     * Removes blocks, including their delimiters.
+     *
+     * @param firstOnly whether to remove only the first block
+     */
+    public MarkerRewriter delete(String open, String close, boolean firstOnly) {
+        rules.add(new Rule(Action.DELETE, open, close, null, firstOnly));
+        return this;
+    }
+
+    /**
+     * Applies the rules to file.
+     *
+     * @return true iff the file was rewritten
+     * @throws IOException
+     */
+    public boolean rewrite(File file) throws IOException {
+        Map<Rule, Long> cutoffs = new HashMap<Rule, Long>();
+        while (true) {
+            Pass pass = new Pass(file, cutoffs);
+            if (pass.run()) {
+                return pass.commit();
+            }
+            // as with the equivalent regex, the unterminated block (and so
+            // any later block of the same rule) does not match at all:
+            // start over, ignoring the rule from that offset on
+            pass.abort();
+            cutoffs.put(pass.block, pass.blockStart);
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private enum Action {
+        REPLACE, UNWRAP, DELETE
+    }
+
+    private static class Rule {
+
+        final Action action;
+
+        final byte[] open;
+
+        final byte[] close;
+
+        final byte[] replacement;
+
+        final boolean firstOnly;
+
+        Rule(Action action, String open, String close, byte[] replacement,
+                boolean firstOnly) {
+            this.action = action;
+            this.open = bytes(open);
+            this.close = close == null ? null : bytes(close);
+            this.replacement = replacement;
+            this.firstOnly = firstOnly;
+        }
+    }
+
+    /**
+     * A single pass over the file.
+     */
+    private class Pass {
+
+        private final File file;
+
+        private final List<Rule> active = new ArrayList<Rule>();
+
+        /** offsets from which a rule's blocks are known to be unterminated */
+        private final Map<Rule, Long> cutoffs;
+
+        private final byte[] pending;
+
+        private int pendingLen;
+
+        /** number of bytes read that are no longer pending */
+        private long consumed;
+
+        /** the rule whose block we're in, or null */
+        private Rule block;
+
+        /** offset of the open delimiter of the current block */
+        private long blockStart;
+
+        /** number of bytes consumed inside the current block */
+        private long blockLen;
+
+        private File tmp;
+
+        private OutputStream out;
+
+        Pass(File file, Map<Rule, Long> cutoffs) {
+            this.file = file;
+            this.cutoffs = cutoffs;
+            int max = 1;
+            for (Rule rule : rules) {
+                active.add(rule);
+                max = Math.max(max, rule.open.length);
+                if (rule.close != null) {
+                    max = Math.max(max, rule.close.length);
+                }
+            }
+            pending = new byte[max];
+        }
+
+        /**
+         * @return false if the file ends inside a block
+         */
+        boolean run() throws IOException {
+            InputStream in =
+                    new BufferedInputStream(new FileInputStream(file),
+                            BUFFER_SIZE);
+            try {
+                byte[] buf = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = in.read(buf)) != -1) {
+                    for (int i = 0; i < count; i++) {
+                        accept(buf[i]);
+                    }
+                }
+            } catch (IOException e) {
+                abort();
+                throw e;
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+            if (block != null) {
+                return false;
+            }
+            while (pendingLen > 0) {
+                shift();
+            }
+            return true;
+        }
+
+        private void accept(byte b) throws IOException {
+            pending[pendingLen++] = b;
+            while (pendingLen > 0) {
+                Rule rule = match();
+                if (rule != null) {
+                    onMatch(rule);
+                    return;
+                }
+                if (isPrefix()) {
+                    return;
+                }
+                shift();
+            }
+        }
+
+        /**
+         * @return the rule whose current token equals the pending bytes
+         */
+        private Rule match() {
+            if (block != null) {
+                return blockLen > 0 && equals(block.close) ? block : null;
+            }
+            for (Rule rule : active) {
+                if (equals(rule.open) && !isCutOff(rule)) {
+                    return rule;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return true if the pending bytes may still become a match
+         */
+        private boolean isPrefix() {
+            if (block != null) {
+                return pendingLen < block.close.length &&
+                        startsWith(block.close);
+            }
+            for (Rule rule : active) {
+                if (pendingLen < rule.open.length && startsWith(rule.open) &&
+                        !isCutOff(rule)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isCutOff(Rule rule) {
+            Long cutoff = cutoffs.get(rule);
+            return cutoff != null && consumed >= cutoff;
+        }
+
+        private boolean equals(byte[] token) {
+            return pendingLen == token.length && startsWith(token);
+        }
+
+        private boolean startsWith(byte[] token) {
+            if (pendingLen > token.length) {
+                return false;
+            }
+            for (int i = 0; i < pendingLen; i++) {
+                if (pending[i] != token[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Passes the first pending byte through (or drops it, inside a
+         * deleted block).
+         */
+        private void shift() throws IOException {
+            if (block == null || block.action == Action.UNWRAP) {
+                if (out != null) {
+                    out.write(pending[0]);
+                }
+            }
+            if (block != null) {
+                blockLen++;
+            }
+            System.arraycopy(pending, 1, pending, 0, --pendingLen);
+            consumed++;
+        }
+
+        private void onMatch(Rule rule) throws IOException {
+            if (block == null) {
+                open(consumed);
+                if (rule.action == Action.REPLACE) {
+                    out.write(rule.replacement);
+                } else {
+                    block = rule;
+                    blockStart = consumed;
+                    blockLen = 0;
+                }
+            } else {
+                block = null;
+                if (rule.firstOnly) {
+                    active.remove(rule);
+                }
+            }
+            consumed += pendingLen;
+            pendingLen = 0;
+        }
+
+        /**
+         * Opens the temporary file, copying the unchanged bytes before the
+         * first match.
+         */
+        private void open(long unchanged) throws IOException {
+            if (out != null) {
+                return;
+            }
+            tmp = AtomicFiles.newTempFile(file);
+            FileOutputStream fos = new FileOutputStream(tmp);
+            out = new BufferedOutputStream(fos, BUFFER_SIZE);
+            FileInputStream fis = new FileInputStream(file);
+            try {
+                FileChannel src = fis.getChannel();
+                long pos = 0;
+                while (pos < unchanged) {
+                    pos += src.transferTo(pos, unchanged - pos, fos
+                            .getChannel());
+                }
+            } finally {
+                fis.close();
+            }
+        }
+
+        boolean commit() throws IOException {
+            if (out == null) {
+                return false;
+            }
+            try {
+                out.close();
+                AtomicFiles.replace(tmp, file);
+            } finally {
+                abort();
+            }
+            return true;
+        }
+
+        void abort() {
+            IOUtils.closeQuietly(out);
+            out = null;
+            if (tmp != null && tmp.exists()) {
+                tmp.delete();
+            }
+        }
+    }
+}
@@ -195,13 +195,14 @@ public class OptionDefinition {
                         }
                     }
                 } else {
-                    // must be creatable
+                    // must be creatable (concurrent installs may be
+                    // checking the same directory)
                     boolean created = dir.mkdirs();
-                    if (!created) {
+                    if (created) {
+                        dir.delete();
+                    } else if (!dir.isDirectory()) {
                         throw new OptionValidationException(
                                 "Unable to create specified directory", _id);
-                    } else {
-                        dir.delete();
                     }
                 }
             } else if (_id.equals(InstallOptions.TOMCAT_HOME)) {
@@ -217,13 +218,14 @@ public class OptionDefinition {
                                 _id);
                     }
                 } else if (!dir.exists()) {
-                    // must be creatable
+                    // must be creatable (concurrent installs may be
+                    // checking the same directory)
                     boolean created = dir.mkdirs();
-                    if (!created) {
+                    if (created) {
+                        dir.delete();
+                    } else if (!dir.isDirectory()) {
                         throw new OptionValidationException(
                                 "Unable to create specified directory", _id);
-                    } else {
-                        dir.delete();
                     }
                 }
             } else if (_id.equals(InstallOptions.TOMCAT_SHUTDOWN_PORT)) {
@@ -232,6 +234,13 @@ public class OptionDefinition {
                 validatePort(value);
             } else if (_id.equals(InstallOptions.TOMCAT_SSL_PORT)) {
                 validatePort(value);
+            } else if (_id.equals(InstallOptions.INSTALL_THREADS)) {
+                validateInteger(value);
+            } else if (_id.equals(InstallOptions.PERFORMANCE_HEAP)) {
+                if (!value.matches("\\d+[kKmMgG]?")) {
+                    throw new OptionValidationException("Not a heap size",
+                            _id);
+                }
             } else if (_id.equals(InstallOptions.KEYSTORE_FILE)) {
                 if (!(value.equals(InstallOptions.INCLUDED) || value
                         .equals(InstallOptions.DEFAULT))) {
@@ -264,6 +273,14 @@ public class OptionDefinition {
         }
     }
 
+    private void validateInteger(String val) throws OptionValidationException {
+        try {
+            Integer.parseInt(val);
+        } catch (NumberFormatException e) {
+            throw new OptionValidationException("Not an integer", _id);
+        }
+    }
+
     private void validatePort(String val) throws OptionValidationException {
         try {
             int port = Integer.parseInt(val);
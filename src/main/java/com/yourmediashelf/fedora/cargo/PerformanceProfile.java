@@ -0,0 +1,220 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Translates the performance.profile install option into fedora.fcfg
+ * properties (as understood by ServerConfiguration.applyProperties), sized
+ * from the number of processors and the maximum heap of the JVM Fedora runs
+ * in (the performance.heap install option).
+ *
+ * <p>The profiles are:
+ * <ul>
+ * <li>none: the values of fedora-base.fcfg are left alone</li>
+ * <li>ci-fast: small pools and caches, and resource index updates that are
+ * visible at once, for quick startup and deterministic tests</li>
+ * <li>throughput: pools, caches and resource index buffers scaled to the
+ * machine</li>
+ * <li>low-memory: the smallest pools, caches and buffers that work</li>
+ * </ul>
+ *
+ * <p>Install options named "fcfg." followed by a property (e.g.
+ * fcfg.module.org.fcrepo.server.storage.DOManager:readerCacheSize) are
+ * applied last, whatever the profile.
+ */
+class PerformanceProfile {
+
+    public static final String NONE = "none";
+
+    public static final String CI_FAST = "ci-fast";
+
+    public static final String THROUGHPUT = "throughput";
+
+    public static final String LOW_MEMORY = "low-memory";
+
+    /** the prefix of install options that override fedora.fcfg properties */
+    public static final String OVERRIDE_PREFIX = "fcfg.";
+
+    private static final String DOMANAGER =
+            "module.org.fcrepo.server.storage.DOManager:";
+
+    private static final String RESOURCE_INDEX =
+            "module.org.fcrepo.server.resourceIndex.ResourceIndex:";
+
+    private static final String TRIPLESTORE =
+            "datastore.localMulgaraTriplestore:";
+
+    /** the heap assumed to be used per cached object reader */
+    private static final long READER_SIZE = 64 * 1024;
+
+    private static final long MB = 1024 * 1024;
+
+    private final String _name;
+
+    private final int _cores;
+
+    private final long _maxHeap;
+
+    /**
+     * @param name the profile name (null for none)
+     * @param cores the number of processors to size for
+     * @param maxHeap the maximum heap, in bytes, to size for
+     */
+    public PerformanceProfile(String name, int cores, long maxHeap) {
+        _name = name == null ? NONE : name;
+        _cores = Math.max(cores, 1);
+        _maxHeap = maxHeap;
+    }
+
+    /**
+     * @return the profile of the install options, sized for this machine and
+     * performance.heap. Without performance.heap (e.g. when installing from
+     * the command line), the maximum heap of this JVM is assumed.
+     */
+    public static PerformanceProfile forOptions(InstallOptions opts) {
+        long heap = parseSize(opts.getValue(InstallOptions.PERFORMANCE_HEAP,
+                "0"));
+        if (heap == 0) {
+            heap = Runtime.getRuntime().maxMemory();
+        }
+        return new PerformanceProfile(opts.getValue(
+                InstallOptions.PERFORMANCE_PROFILE), Runtime.getRuntime()
+                .availableProcessors(), heap);
+    }
+
+    /**
+     * @param size a number of bytes, optionally suffixed with k, m or g (as
+     * with -Xmx)
+     * @return the number of bytes
+     * @throws NumberFormatException if size is not a valid size
+     */
+    static long parseSize(String size) {
+        size = size.trim().toLowerCase();
+        int unit = "kmg".indexOf(size.charAt(size.length() - 1));
+        if (unit == -1) {
+            return Long.parseLong(size);
+        }
+        return Long.parseLong(size.substring(0, size.length() - 1)) << 10 *
+                (unit + 1);
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    /**
+     * @param dbPoolName the id of the datastore of the database connection
+     * pool in use
+     * @return the fedora.fcfg properties of the profile, sorted by name
+     * @throws IllegalArgumentException if the profile is unknown
+     */
+    public Map<String, String> getProperties(String dbPoolName) {
+        Map<String, String> props = new TreeMap<String, String>();
+        String pool = "datastore." + dbPoolName + ":";
+        long heapMB = _maxHeap / MB;
+        if (NONE.equals(_name)) {
+            return props;
+        } else if (CI_FAST.equals(_name)) {
+            put(props, DOMANAGER + "readerCacheSize", 20);
+            put(props, DOMANAGER + "readerCacheSeconds", 5);
+            put(props, pool + "maxActive", Math.max(4, _cores * 2));
+            put(props, pool + "maxIdle", Math.max(2, _cores));
+            put(props, pool + "minIdle", 0);
+            // tests see their changes in the resource index at once
+            props.put(RESOURCE_INDEX + "syncUpdates", "true");
+            put(props, TRIPLESTORE + "poolInitialSize", 1);
+            put(props, TRIPLESTORE + "autoFlushDormantSeconds", 1);
+            put(props, TRIPLESTORE + "autoFlushBufferSize", 1000);
+            put(props, TRIPLESTORE + "bufferSafeCapacity", 2000);
+            put(props, TRIPLESTORE + "bufferFlushBatchSize", 1000);
+        } else if (THROUGHPUT.equals(_name)) {
+            // an eighth of the heap for cached readers
+            put(props, DOMANAGER + "readerCacheSize", clamp(_maxHeap / 8 /
+                    READER_SIZE, 20, 5000));
+            put(props, DOMANAGER + "readerCacheSeconds", 60);
+            put(props, pool + "maxActive", Math.max(20, _cores * 8));
+            put(props, pool + "maxIdle", Math.max(10, _cores * 2));
+            put(props, pool + "minIdle", _cores);
+            props.put(RESOURCE_INDEX + "syncUpdates", "false");
+            // about 20000 buffered triples per 512 MB of heap
+            long buffer = clamp(heapMB / 512 * 20000, 20000, 200000);
+            put(props, TRIPLESTORE + "poolInitialSize", Math.max(3, _cores));
+            put(props, TRIPLESTORE + "autoFlushDormantSeconds", 10);
+            put(props, TRIPLESTORE + "autoFlushBufferSize", buffer);
+            put(props, TRIPLESTORE + "bufferSafeCapacity", buffer * 2);
+            put(props, TRIPLESTORE + "bufferFlushBatchSize", buffer);
+        } else if (LOW_MEMORY.equals(_name)) {
+            put(props, DOMANAGER + "readerCacheSize", 5);
+            put(props, DOMANAGER + "readerCacheSeconds", 5);
+            put(props, pool + "maxActive", Math.max(4, _cores));
+            put(props, pool + "maxIdle", 2);
+            put(props, pool + "minIdle", 0);
+            put(props, TRIPLESTORE + "poolInitialSize", 1);
+            put(props, TRIPLESTORE + "autoFlushDormantSeconds", 2);
+            put(props, TRIPLESTORE + "autoFlushBufferSize", 2000);
+            put(props, TRIPLESTORE + "bufferSafeCapacity", 4000);
+            put(props, TRIPLESTORE + "bufferFlushBatchSize", 2000);
+        } else {
+            throw new IllegalArgumentException("Unknown " +
+                    InstallOptions.PERFORMANCE_PROFILE + ": " + _name);
+        }
+        return props;
+    }
+
+    /**
+     * @return the fedora.fcfg properties given explicitly as install options
+     */
+    public static Map<String, String> getOverrides(InstallOptions opts) {
+        Map<String, String> props = new TreeMap<String, String>();
+        for (String name : opts.getOptionNames()) {
+            if (name.startsWith(OVERRIDE_PREFIX)) {
+                props.put(name.substring(OVERRIDE_PREFIX.length()), opts
+                        .getValue(name));
+            }
+        }
+        return props;
+    }
+
+    /**
+     * Adds the profile's properties, then the explicit overrides, to props.
+     */
+    public void applyTo(Properties props, String dbPoolName,
+            InstallOptions opts) {
+        props.putAll(getProperties(dbPoolName));
+        props.putAll(getOverrides(opts));
+    }
+
+    private static void put(Map<String, String> props, String key, long value) {
+        props.put(key, Long.toString(value));
+    }
+
+    private static long clamp(long value, long min, long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    @Override
+    public String toString() {
+        return _name + " (" + _cores + " cores, " + _maxHeap / MB +
+                " MB heap)";
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Allocates free TCP ports, reserving each one so that concurrent builds on
+ * the same machine never allocate the same port.
+ *
+ * <p>A candidate port is obtained from the operating system by binding an
+ * ephemeral server socket. It is then reserved by locking a file named after
+ * the port in a shared directory; a port whose file is already locked (by
+ * this or another JVM) is skipped. Reservations are held until
+ * {@link #release(int)} is called or the JVM exits, which covers the window
+ * between allocating a port and the container binding it.
+ */
+public class PortAllocator {
+
+    private static final int MAX_ATTEMPTS = 100;
+
+    /** the reservations held by this JVM */
+    private static final Map<Integer, FileLock> reserved =
+            new HashMap<Integer, FileLock>();
+
+    private final File lockDir;
+
+    public PortAllocator(File lockDir) {
+        this.lockDir = lockDir;
+    }
+
+    /**
+     * @return a free port, now reserved by this JVM
+     * @throws IOException if no port could be reserved
+     */
+    public int allocate() throws IOException {
+        lockDir.mkdirs();
+        for (int i = 0; i < MAX_ATTEMPTS; i++) {
+            int port;
+            ServerSocket socket = new ServerSocket(0);
+            try {
+                port = socket.getLocalPort();
+            } finally {
+                socket.close();
+            }
+            if (reserve(port)) {
+                return port;
+            }
+        }
+        throw new IOException("Unable to reserve a free port after " +
+                MAX_ATTEMPTS + " attempts");
+    }
+
+    /**
+     * Reserves a specific port, e.g. one allocated by an earlier build step.
+     *
+     * @return true if the port is now reserved by this JVM, false if it is
+     * reserved elsewhere
+     * @throws IOException
+     */
+    public boolean reserve(int port) throws IOException {
+        synchronized (reserved) {
+            if (reserved.containsKey(port)) {
+                return false;
+            }
+            lockDir.mkdirs();
+            FileChannel channel =
+                    new RandomAccessFile(new File(lockDir, port + ".lock"),
+                            "rw").getChannel();
+            FileLock lock = null;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                // held by another allocator in this JVM
+            } finally {
+                if (lock == null) {
+                    IOUtils.closeQuietly(channel);
+                }
+            }
+            if (lock == null) {
+                return false;
+            }
+            reserved.put(port, lock);
+            return true;
+        }
+    }
+
+    /**
+     * Reserves all of the given ports, or none of them.
+     *
+     * @return true if all of the ports are now reserved by this JVM, false
+     * if any of them is reserved elsewhere, in which case those that this
+     * call reserved are released again
+     * @throws IOException
+     */
+    public boolean reserveAll(int... ports) throws IOException {
+        for (int i = 0; i < ports.length; i++) {
+            boolean ok = false;
+            try {
+                ok = reserve(ports[i]);
+            } finally {
+                if (!ok) {
+                    for (int j = 0; j < i; j++) {
+                        release(ports[j]);
+                    }
+                }
+            }
+            if (!ok) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Releases the reservation of port, if this JVM holds it.
+     */
+    public static void release(int port) {
+        FileLock lock;
+        synchronized (reserved) {
+            lock = reserved.remove(port);
+        }
+        if (lock != null) {
+            IOUtils.closeQuietly(lock.channel());
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Resolves {@code ${name}} references in property values against a lookup
+ * table, falling back to System properties.
+ *
+ * <p>Each value is scanned once. The values of referenced lookup properties
+ * are themselves interpolated, and the results memoized, so interpolating
+ * any number of values takes time linear in their total size plus that of
+ * the lookup values they reference. A reference is left intact if it cannot
+ * be resolved, if it refers back to a property that is being resolved (a
+ * cycle), or if its value equals the name of the property being
+ * interpolated.
+ *
+ * <p>Instances are not thread-safe.
+ */
+class PropertyInterpolator {
+
+    private final Properties _lookup;
+
+    /** interpolated values of lookup properties, null if unresolvable */
+    private final Map<String, String> _resolved =
+            new HashMap<String, String>();
+
+    /** lookup properties currently being interpolated */
+    private final Set<String> _resolving = new HashSet<String>();
+
+    /** whether a cycle was hit while interpolating the current value */
+    private boolean _cycle;
+
+    public PropertyInterpolator(Properties lookup) {
+        _lookup = lookup;
+    }
+
+    /**
+     * @param key the name of the property whose value is interpolated
+     * @param value the value
+     * @return the interpolated value
+     */
+    public String interpolate(String key, String value) {
+        if (value.indexOf("${") < 0) {
+            return value;
+        }
+        StringBuilder out = new StringBuilder(value.length() + 32);
+        expand(key, value, out);
+        return out.toString();
+    }
+
+    private void expand(String key, String value, StringBuilder out) {
+        int pos = 0;
+        int open;
+        while ((open = value.indexOf("${", pos)) >= 0) {
+            int close = value.indexOf('}', open + 2);
+            if (close < 0) {
+                break;
+            }
+            out.append(value, pos, open);
+            String name = value.substring(open + 2, close);
+            String resolved = null;
+            if (key == null || !key.equals(getRaw(name))) {
+                resolved = resolve(name);
+            }
+            if (resolved == null) {
+                out.append(value, open, close + 1);
+            } else {
+                out.append(resolved);
+            }
+            pos = close + 1;
+        }
+        out.append(value, pos, value.length());
+    }
+
+    private String resolve(String name) {
+        if (_resolved.containsKey(name)) {
+            return _resolved.get(name);
+        }
+        if (_resolving.contains(name)) {
+            _cycle = true;
+            return null;
+        }
+        String raw = getRaw(name);
+        if (raw == null) {
+            _resolved.put(name, null);
+            return null;
+        }
+
+        boolean outerCycle = _cycle;
+        _cycle = false;
+        _resolving.add(name);
+        StringBuilder sb = new StringBuilder(raw.length());
+        expand(null, raw, sb);
+        _resolving.remove(name);
+        String resolved = sb.toString();
+        // a value truncated by a cycle depends on where the cycle was
+        // entered, so only complete values are memoized
+        if (!_cycle) {
+            _resolved.put(name, resolved);
+        }
+        _cycle |= outerCycle;
+        return resolved;
+    }
+
+    private String getRaw(String name) {
+        String value = _lookup.getProperty(name);
+        if (value == null && name.length() > 0) {
+            value = System.getProperty(name);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,326 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Waits for a starting container to actually serve Fedora, and breaks the
+ * startup time down into phases.
+ *
+ * <p>Readiness is determined by polling Fedora's describe endpoint. The
+ * container's output is tailed concurrently for Tomcat's startup
+ * markers, which both delimit the phases and adapt the polling: while Tomcat
+ * is still starting, describe is polled with exponential backoff; once
+ * Tomcat reports that it has started, polling resumes at the shortest
+ * interval so that readiness is noticed as soon as possible.
+ *
+ * <p>The phases are:
+ * <ol>
+ * <li>JVM spawn: until the container writes its first output</li>
+ * <li>Tomcat init: until Tomcat reports "Initialization processed in"</li>
+ * <li>WAR deploy: until Tomcat reports "Server startup in", which includes
+ * the initialization of Fedora's load-on-startup servlets</li>
+ * <li>Fedora init: until describe answers</li>
+ * </ol>
+ * A phase whose end marker is never seen is folded into the next one.
+ *
+ * <p>If the container's JVM exits while waiting, e.g. because of a bad JVM
+ * option or a port conflict, waiting is abandoned at the next poll rather
+ * than at the timeout.
+ */
+public class ReadinessMonitor {
+
+    /**
+     * Tells whether the container is still running.
+     */
+    public interface Liveness {
+
+        /**
+         * @return false if the container is known to have exited
+         */
+        boolean isAlive();
+    }
+
+    static final String TOMCAT_INIT_MARKER = "Initialization processed in";
+
+    static final String TOMCAT_STARTED_MARKER = "Server startup in";
+
+    static final String[] PHASES = {"JVM spawn", "Tomcat init", "WAR deploy",
+            "Fedora init"};
+
+    private static final long MIN_INTERVAL = 100;
+
+    private static final long MAX_INTERVAL = 2000;
+
+    /**
+     * Tomcat accepts connections as soon as its connector is bound, well
+     * before it answers them, so a probe must not block the tailing for long.
+     */
+    private static final long PROBE_TIMEOUT = 1000;
+
+    private static final long TAIL_INTERVAL = 50;
+
+    /**
+     * How long the container's JVM may take to appear once the container
+     * has been started. Cargo launches it on a thread of its own.
+     */
+    private static final long SPAWN_TIMEOUT = 10000;
+
+    private final String url;
+
+    private final File log;
+
+    private final long logOffset;
+
+    private final long timeout;
+
+    private final Log mavenLog;
+
+    private Liveness liveness;
+
+    private final AtomicLongArray phaseEnds =
+            new AtomicLongArray(PHASES.length);
+
+    /**
+     * @param url the URL that answers once Fedora is ready
+     * @param log the container's output file, or null
+     * @param logOffset the length of log before the container was started
+     * (0 unless the container appends to it)
+     * @param timeout the maximum time to wait, in milliseconds
+     * @param mavenLog
+     */
+    public ReadinessMonitor(String url, File log, long logOffset,
+            long timeout, Log mavenLog) {
+        this.url = url;
+        this.log = log;
+        this.logOffset = logOffset;
+        this.timeout = timeout;
+        this.mavenLog = mavenLog;
+    }
+
+    /**
+     * @param liveness checked at each poll, or null to only wait for the
+     * timeout
+     */
+    public void setLiveness(Liveness liveness) {
+        this.liveness = liveness;
+    }
+
+    /**
+     * @return a Liveness that checks the JVM started with
+     * -Dfedora.cargo.instance=instanceId. A JVM that does not appear within
+     * a few seconds, e.g. because it rejected its options, is taken to have
+     * exited. Where processes cannot be listed, the JVM is always assumed to
+     * be alive.
+     */
+    public static Liveness forInstance(String instanceId) {
+        return forInstance(instanceId, SPAWN_TIMEOUT);
+    }
+
+    static Liveness forInstance(final String instanceId,
+            final long spawnTimeout) {
+        final long since = System.currentTimeMillis();
+        return new Liveness() {
+
+            private long pid = -1;
+
+            public boolean isAlive() {
+                if (!new File("/proc").isDirectory()) {
+                    return true;
+                }
+                if (pid < 0) {
+                    pid = ContainerRegistry.findPid(instanceId);
+                    if (pid < 0) {
+                        return System.currentTimeMillis() - since <
+                                spawnTimeout;
+                    }
+                }
+                return ContainerRegistry.isAlive(pid);
+            }
+        };
+    }
+
+    /**
+     * Blocks until Fedora is serving.
+     *
+     * @param start when the container was started
+     * @return the duration of each phase, in milliseconds, in order
+     * @throws IOException if Fedora is not ready within the timeout, or the
+     * container exits before it is
+     * @throws InterruptedException
+     */
+    public Map<String, Long> await(long start) throws IOException,
+            InterruptedException {
+        // tail on a thread of its own, so that markers are timestamped as
+        // they appear rather than whenever a probe returns
+        Tailer tailer = new Tailer();
+        Thread thread = new Thread(tailer, "fedora-readiness-log");
+        thread.setDaemon(true);
+        thread.start();
+        long deadline = start + timeout;
+        long interval = MIN_INTERVAL;
+        boolean tomcatStarted = false;
+        try {
+            while (!ContainerRegistry.isHealthy(url, (int) Math.max(1, Math
+                    .min(PROBE_TIMEOUT, deadline - System.currentTimeMillis())))) {
+                long now = System.currentTimeMillis();
+                if (now >= deadline) {
+                    throw new IOException("Fedora did not answer at " + url +
+                            " within " + timeout + " ms");
+                }
+                if (liveness != null && !liveness.isAlive()) {
+                    throw new IOException("The container exited before " +
+                            "Fedora answered at " + url);
+                }
+                if (!tomcatStarted && phaseEnds.get(2) != 0) {
+                    tomcatStarted = true;
+                    interval = MIN_INTERVAL;
+                }
+                Thread.sleep(Math.min(interval, deadline - now));
+                if (!tomcatStarted) {
+                    interval = Math.min(interval * 2, MAX_INTERVAL);
+                }
+            }
+            phaseEnds.set(3, System.currentTimeMillis());
+        } finally {
+            tailer.stopped = true;
+            thread.interrupt();
+            thread.join(TAIL_INTERVAL * 10);
+        }
+        return getPhases(start);
+    }
+
+    /**
+     * Formats the phases for logging.
+     */
+    public static String format(Map<String, Long> phases) {
+        long total = 0;
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            total += phase.getValue();
+            sb.append(sb.length() == 0 ? "" : ", ").append(phase.getKey())
+                    .append(' ').append(seconds(phase.getValue()));
+        }
+        return "Fedora ready in " + seconds(total) + " (" + sb + ")";
+    }
+
+    private Map<String, Long> getPhases(long start) {
+        Map<String, Long> phases = new LinkedHashMap<String, Long>();
+        long previous = start;
+        for (int i = 0; i < PHASES.length; i++) {
+            long end = phaseEnds.get(i);
+            if (end == 0 || end < previous) {
+                continue;
+            }
+            phases.put(PHASES[i], end - previous);
+            previous = end;
+        }
+        return phases;
+    }
+
+    private class Tailer implements Runnable {
+
+        private volatile boolean stopped;
+
+        private long position = logOffset;
+
+        private final StringBuilder partialLine = new StringBuilder();
+
+        public void run() {
+            RandomAccessFile reader = null;
+            try {
+                while (!stopped) {
+                    if (reader == null && log != null && log.isFile()) {
+                        reader = new RandomAccessFile(log, "r");
+                    }
+                    if (reader == null || !tail(reader)) {
+                        Thread.sleep(TAIL_INTERVAL);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // stopped
+            } catch (IOException e) {
+                debug("Unable to read " + log + ": " + e.getMessage());
+            } finally {
+                IOUtils.closeQuietly(reader);
+            }
+        }
+
+        /**
+         * Reads new output, recording the time at which each marker is first
+         * seen.
+         *
+         * @return false if there was no new output
+         */
+        private boolean tail(RandomAccessFile reader) throws IOException {
+            long length = reader.length();
+            if (length < position) {
+                // truncated by the container at startup
+                position = 0;
+            }
+            if (length == position) {
+                return false;
+            }
+            long now = System.currentTimeMillis();
+            phaseEnds.compareAndSet(0, 0, now);
+            byte[] buf = new byte[(int) Math.min(length - position, 64 * 1024)];
+            reader.seek(position);
+            reader.readFully(buf);
+            position += buf.length;
+            for (byte b : buf) {
+                if (b == '\n') {
+                    onLine(partialLine.toString(), now);
+                    partialLine.setLength(0);
+                } else {
+                    partialLine.append((char) (b & 0xff));
+                }
+            }
+            return true;
+        }
+
+        private void onLine(String line, long now) {
+            if (line.contains(TOMCAT_INIT_MARKER) &&
+                    phaseEnds.compareAndSet(1, 0, now)) {
+                debug("Tomcat initialized");
+            } else if (line.contains(TOMCAT_STARTED_MARKER) &&
+                    phaseEnds.compareAndSet(2, 0, now)) {
+                debug("Tomcat started");
+            }
+        }
+    }
+
+    private void debug(String msg) {
+        if (mavenLog != null) {
+            mavenLog.debug(msg);
+        }
+    }
+
+    private static String seconds(long millis) {
+        return String.format("%.1f s", millis / 1000.0);
+    }
+}
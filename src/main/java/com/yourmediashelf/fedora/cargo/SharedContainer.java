@@ -0,0 +1,187 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.yourmediashelf.fedora.cargo;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.codehaus.cargo.container.LocalContainer;
+
+/**
+ * A container shared by the modules of a reactor build, so that Fedora is
+ * booted once rather than once per module.
+ *
+ * <p>Shared containers live in a static registry, which spans the reactor as
+ * long as every module uses the same version of this plugin (and so the
+ * same plugin class realm). The first module to start a shared container
+ * boots it and records how many modules of the reactor are expected to use
+ * it; later modules attach to it, and the container is stopped once each of
+ * them has released it. Modules that never get to release it (e.g. because
+ * the build failed) are covered by a shutdown hook.
+ */
+class SharedContainer {
+
+    private static final Map<String, SharedContainer> registry =
+            new HashMap<String, SharedContainer>();
+
+    private final String key;
+
+    private boolean active;
+
+    private LocalContainer container;
+
+    private String fingerprint;
+
+    private String owner;
+
+    private int users;
+
+    private int attached;
+
+    private boolean hooked;
+
+    private SharedContainer(String key) {
+        this.key = key;
+    }
+
+    /**
+     * @return the shared container registered under key, which callers must
+     * synchronize on while using it
+     */
+    static SharedContainer get(String key) {
+        synchronized (registry) {
+            SharedContainer shared = registry.get(key);
+            if (shared == null) {
+                shared = new SharedContainer(key);
+                registry.put(key, shared);
+            }
+            return shared;
+        }
+    }
+
+    /**
+     * @return true iff a module has started the container and not every
+     * module has released it yet
+     */
+    boolean isActive() {
+        return active;
+    }
+
+    /**
+     * @return the container started, or null if it is not to be stopped by
+     * this build (e.g. one reused from a previous build)
+     */
+    LocalContainer getContainer() {
+        return container;
+    }
+
+    /**
+     * @param module the module that is to stop the container for a while (and
+     * start it again)
+     * @return the container, if module may stop it: module started it and no
+     * other module has attached to it since. Otherwise null.
+     */
+    LocalContainer getStoppable(String module) {
+        if (!active || attached > 0 || !module.equals(owner)) {
+            return null;
+        }
+        return container;
+    }
+
+    /**
+     * @return the fingerprint of the settings the container was started with
+     */
+    String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return the module that started the container
+     */
+    String getOwner() {
+        return owner;
+    }
+
+    /**
+     * Records a container just started by owner, to be released by the given
+     * number of modules (including the owner).
+     *
+     * @param container the container, or null if it is not to be stopped at
+     * JVM exit
+     */
+    void started(LocalContainer container, String fingerprint, String owner,
+            int users) {
+        this.active = true;
+        this.container = container;
+        this.fingerprint = fingerprint;
+        this.owner = owner;
+        this.users = Math.max(users, 1);
+        this.attached = 0;
+        if (!hooked) {
+            hooked = true;
+            Runtime.getRuntime().addShutdownHook(
+                    new Thread(new Runnable() {
+
+                        public void run() {
+                            stopAtExit();
+                        }
+                    }, "fedora-shared-stop"));
+        }
+    }
+
+    /**
+     * Records that a module other than the owner attached to the container.
+     */
+    void attached() {
+        attached++;
+    }
+
+    /**
+     * Releases the container on behalf of one module. Once every module has
+     * released it, the container is no longer active and the caller is to
+     * stop it.
+     *
+     * @return the number of modules still to release the container
+     */
+    int release() {
+        if (--users <= 0) {
+            users = 0;
+            active = false;
+        }
+        return users;
+    }
+
+    private synchronized void stopAtExit() {
+        if (active && container != null &&
+                (container.getState().isStarted() || container.getState()
+                        .isStarting())) {
+            try {
+                container.stop();
+            } catch (Exception e) {
+                // the JVM is exiting; nothing more to do
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return key;
+    }
+}
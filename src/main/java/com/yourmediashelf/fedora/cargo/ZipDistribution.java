@@ -0,0 +1,188 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * A {@link Distribution} read straight from a zip archive, without
+ * extracting it.
+ *
+ * <p>Entries are found through the archive's central directory, and only
+ * the entries asked for are decompressed. Small entries (such as
+ * configuration templates) are kept in a least-recently-used cache of
+ * bounded total size, so that repeated reads are served from memory; larger
+ * entries (such as WARs) are always streamed from the archive.
+ */
+public class ZipDistribution extends Distribution implements Closeable {
+
+    /** the default total size of the cached entries */
+    public static final int DEFAULT_CACHE_SIZE = 4 * 1024 * 1024;
+
+    private final ZipFile zip;
+
+    private final String uri;
+
+    private final String root;
+
+    private final long maxCached;
+
+    private final long maxEntryCached;
+
+    private final Map<String, byte[]> cache =
+            new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+    private long cached;
+
+    public ZipDistribution(File archive) throws IOException {
+        this(archive, "", DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param archive the zip archive
+     * @param root the directory of the archive that paths are relative to
+     * (e.g. "resources"), or "" for the top of the archive
+     * @param cacheSize the maximum total size, in bytes, of the cached
+     * entries (0 to disable caching)
+     * @throws IOException if the archive cannot be opened
+     */
+    public ZipDistribution(File archive, String root, long cacheSize)
+            throws IOException {
+        zip = new ZipFile(archive);
+        uri = archive.getAbsoluteFile().toURI().toString();
+        root = strip(root);
+        this.root = root.length() == 0 ? "" : root + "/";
+        maxCached = cacheSize;
+        // a single entry may take a quarter of the cache
+        maxEntryCached = cacheSize / 4;
+    }
+
+    @Override
+    public boolean contains(String path) {
+        return getEntry(path) != null;
+    }
+
+    @Override
+    public InputStream get(String path) throws IOException {
+        String name = getName(path);
+        byte[] bytes;
+        synchronized (cache) {
+            bytes = cache.get(name);
+        }
+        if (bytes != null) {
+            return new ByteArrayInputStream(bytes);
+        }
+
+        ZipEntry entry = zip.getEntry(name);
+        if (entry == null || entry.isDirectory()) {
+            throw new FileNotFoundException(path + " not found in " +
+                    zip.getName());
+        }
+        if (entry.getSize() < 0 || entry.getSize() > maxEntryCached) {
+            return zip.getInputStream(entry);
+        }
+        InputStream in = zip.getInputStream(entry);
+        try {
+            bytes = IOUtils.toByteArray(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        put(name, bytes);
+        return new ByteArrayInputStream(bytes);
+    }
+
+    @Override
+    public URL getURL(String path) {
+        ZipEntry entry = getEntry(path);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            return new URL("jar:" + uri + "!/" + entry.getName());
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of entries currently cached
+     */
+    public int getCachedEntries() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public void close() throws IOException {
+        synchronized (cache) {
+            cache.clear();
+            cached = 0;
+        }
+        zip.close();
+    }
+
+    private ZipEntry getEntry(String path) {
+        ZipEntry entry = zip.getEntry(getName(path));
+        return entry == null || entry.isDirectory() ? null : entry;
+    }
+
+    private String getName(String path) {
+        return root + strip(path);
+    }
+
+    private static String strip(String path) {
+        String name = path.replace('\\', '/');
+        while (name.startsWith("/")) {
+            name = name.substring(1);
+        }
+        while (name.endsWith("/")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        return name;
+    }
+
+    private void put(String name, byte[] bytes) {
+        synchronized (cache) {
+            byte[] old = cache.put(name, bytes);
+            if (old != null) {
+                cached -= old.length;
+            }
+            cached += bytes.length;
+            Iterator<byte[]> eldest = cache.values().iterator();
+            while (cached > maxCached && eldest.hasNext()) {
+                cached -= eldest.next().length;
+                eldest.remove();
+            }
+        }
+    }
+}
@@ -60,6 +60,16 @@ public abstract class Configuration implements Constants {
         setParameters(parameters);
     }
 
+    /**
+     * Creates a Configuration with deep copies of the other's parameters.
+     */
+    protected Configuration(Configuration other) {
+        // insertion in iteration order keeps the serialized order unchanged
+        for (Parameter p : other.m_parameters.values()) {
+            m_parameters.put(p.getName(), new Parameter(p));
+        }
+    }
+
     /**
      * Sets the parameters with name-value pairs from the supplied Map. This is
      * protected because it is intended to only be called by subclasses where
@@ -54,4 +54,8 @@ public class DatastoreConfig extends Configuration {
     public DatastoreConfig(List<Parameter> parameters) {
         super(parameters);
     }
+
+    protected DatastoreConfig(DatastoreConfig other) {
+        super(other);
+    }
 }
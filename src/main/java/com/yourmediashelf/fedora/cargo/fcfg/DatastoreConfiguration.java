@@ -36,6 +36,15 @@ public class DatastoreConfiguration extends DatastoreConfig {
         m_comment = comment;
     }
 
+    /**
+     * Creates a deep copy of the given DatastoreConfiguration.
+     */
+    public DatastoreConfiguration(DatastoreConfiguration other) {
+        super(other);
+        m_id = other.m_id;
+        m_comment = other.m_comment;
+    }
+
     public String getId() {
         return m_id;
     }
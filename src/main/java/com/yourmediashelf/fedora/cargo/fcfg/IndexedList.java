@@ -0,0 +1,196 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo.fcfg;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * A list that also indexes its elements by key, for constant-time lookups.
+ * As with a linear scan, the first element with a given key is the one
+ * found.
+ *
+ * <p>Appending keeps the index up to date; any other modification (including
+ * those made through iterators and sublists) invalidates it, and it is
+ * rebuilt on the next lookup.
+ *
+ * <p>A list may start out sharing its elements with another list. A shared
+ * element is replaced by a private copy (see {@link #copyOf(Object)}) the
+ * first time it is returned by {@link #get(int)} or {@link #getByKey(Object)},
+ * so that it may be modified without affecting the other list; it can still
+ * be read, without copying, through {@link #peek()}.
+ */
+abstract class IndexedList<K, E> extends AbstractList<E> implements
+        RandomAccess {
+
+    private final List<E> m_elements;
+
+    private final Map<K, Integer> m_index = new HashMap<K, Integer>();
+
+    private final Map<E, Boolean> m_shared;
+
+    private boolean m_indexValid;
+
+    IndexedList(Collection<? extends E> elements) {
+        this(elements, false);
+    }
+
+    /**
+     * @param shared whether the elements are shared with another list, and
+     * so must be copied before they are handed out
+     */
+    IndexedList(Collection<? extends E> elements, boolean shared) {
+        m_elements = new ArrayList<E>(elements);
+        m_shared = new IdentityHashMap<E, Boolean>();
+        if (shared) {
+            for (E element : m_elements) {
+                m_shared.put(element, Boolean.TRUE);
+            }
+        }
+    }
+
+    /**
+     * @return the key under which the element is indexed
+     */
+    protected abstract K keyOf(E element);
+
+    /**
+     * @return a deep copy of the element. Only called for lists created with
+     * shared elements.
+     */
+    protected abstract E copyOf(E element);
+
+    /**
+     * @return a read-only view of the elements, in which shared elements are
+     * not copied. The elements must not be modified.
+     */
+    List<E> peek() {
+        return Collections.unmodifiableList(m_elements);
+    }
+
+    /**
+     * @return the first element with the given key, or null if there is none
+     */
+    public E getByKey(K key) {
+        if (!m_indexValid) {
+            m_index.clear();
+            for (int i = 0; i < m_elements.size(); i++) {
+                index(i);
+            }
+            m_indexValid = true;
+        }
+        Integer i = m_index.get(key);
+        return i == null ? null : get(i);
+    }
+
+    private void index(int i) {
+        K key = keyOf(m_elements.get(i));
+        if (!m_index.containsKey(key)) {
+            m_index.put(key, i);
+        }
+    }
+
+    @Override
+    public E get(int i) {
+        E element = m_elements.get(i);
+        if (!m_shared.isEmpty() && m_shared.remove(element) != null) {
+            // the copy has the same key, so the index remains valid
+            element = copyOf(element);
+            m_elements.set(i, element);
+        }
+        return element;
+    }
+
+    // the searches below compare against the elements as they are, rather
+    // than through get(int), so as not to copy shared elements
+
+    @Override
+    public int indexOf(Object o) {
+        return m_elements.indexOf(o);
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        return m_elements.lastIndexOf(o);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return m_elements.contains(o);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        int i = indexOf(o);
+        if (i == -1) {
+            return false;
+        }
+        remove(i);
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return m_elements.size();
+    }
+
+    @Override
+    public E set(int i, E element) {
+        m_indexValid = false;
+        E previous = m_elements.set(i, element);
+        m_shared.remove(previous);
+        return previous;
+    }
+
+    @Override
+    public void add(int i, E element) {
+        modCount++;
+        m_elements.add(i, element);
+        if (i == m_elements.size() - 1 && m_indexValid) {
+            index(i);
+        } else {
+            m_indexValid = false;
+        }
+    }
+
+    @Override
+    public E remove(int i) {
+        modCount++;
+        m_indexValid = false;
+        E removed = m_elements.remove(i);
+        m_shared.remove(removed);
+        return removed;
+    }
+
+    @Override
+    public void clear() {
+        modCount++;
+        m_elements.clear();
+        m_shared.clear();
+        m_index.clear();
+        m_indexValid = true;
+    }
+}
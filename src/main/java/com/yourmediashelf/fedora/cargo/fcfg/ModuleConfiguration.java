@@ -39,6 +39,16 @@ public class ModuleConfiguration extends Configuration {
         m_comment = comment;
     }
 
+    /**
+     * Creates a deep copy of the given ModuleConfiguration.
+     */
+    public ModuleConfiguration(ModuleConfiguration other) {
+        super(other);
+        m_roleName = other.m_roleName;
+        m_className = other.m_className;
+        m_comment = other.m_comment;
+    }
+
     public String getRole() {
         return m_roleName;
     }
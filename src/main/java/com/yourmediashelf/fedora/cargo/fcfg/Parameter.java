@@ -19,7 +19,7 @@
 package com.yourmediashelf.fedora.cargo.fcfg;
 
 import java.io.File;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
@@ -47,7 +47,24 @@ public class Parameter implements Constants {
     }
 
     public Parameter(String name) {
-        this(name, null, false, null, new HashMap<String, String>());
+        this(name, null, false, null, new LinkedHashMap<String, String>());
+    }
+
+    /**
+     * Creates a deep copy of the given Parameter.
+     */
+    public Parameter(Parameter other) {
+        this(other.m_name, other.m_value, other.m_isFilePath,
+                other.m_comment, copy(other.m_profileValues));
+    }
+
+    // profile values keep their insertion order, both when parsed and when
+    // copied, so that the copy serializes identically
+    private static Map<String, String> copy(Map<String, String> source) {
+        if (source == null) {
+            return null;
+        }
+        return new LinkedHashMap<String, String>(source);
     }
 
     public String getName() {
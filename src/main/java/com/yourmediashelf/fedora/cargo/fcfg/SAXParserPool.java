@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo.fcfg;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.SAXException;
+
+/**
+ * A bounded pool of namespace-aware SAX parsers, shared by all
+ * {@link ServerConfigurationParser}s. Parsers are reset when returned to the
+ * pool; parsers that cannot be reset are discarded.
+ */
+final class SAXParserPool {
+
+    private static final BlockingQueue<SAXParser> m_pool =
+            new ArrayBlockingQueue<SAXParser>(Math.max(2, Runtime
+                    .getRuntime().availableProcessors() * 2));
+
+    private static SAXParserFactory m_factory;
+
+    private SAXParserPool() {
+    }
+
+    /**
+     * @return a pooled parser, or a new one if none is available
+     */
+    static SAXParser borrow() throws ParserConfigurationException,
+            SAXException {
+        SAXParser parser = m_pool.poll();
+        if (parser != null) {
+            return parser;
+        }
+        return newParser();
+    }
+
+    /**
+     * Resets the parser and returns it to the pool.
+     */
+    static void release(SAXParser parser) {
+        try {
+            parser.reset();
+        } catch (UnsupportedOperationException e) {
+            return;
+        }
+        m_pool.offer(parser);
+    }
+
+    // SAXParserFactory is not guaranteed to be thread-safe
+    private static synchronized SAXParser newParser()
+            throws ParserConfigurationException, SAXException {
+        if (m_factory == null) {
+            m_factory = SAXParserFactory.newInstance();
+            m_factory.setNamespaceAware(true);
+        }
+        return m_factory.newSAXParser();
+    }
+}
@@ -18,17 +18,20 @@
  */
 package com.yourmediashelf.fedora.cargo.fcfg;
 
-import java.io.ByteArrayInputStream;
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Properties;
 
 /**
@@ -40,230 +43,219 @@ public class ServerConfiguration extends Configuration {
 
     private String m_className;
 
-    private final List<ModuleConfiguration> m_moduleConfigurations;
+    private final IndexedList<String, ModuleConfiguration>
+            m_moduleConfigurations;
 
-    private final List<DatastoreConfiguration> m_datastoreConfigurations;
+    private final IndexedList<String, DatastoreConfiguration>
+            m_datastoreConfigurations;
 
     public ServerConfiguration(String className, List<Parameter> parameters,
             List<ModuleConfiguration> moduleConfigurations,
             List<DatastoreConfiguration> datastoreConfigurations) {
         super(parameters);
         m_className = className;
-        m_moduleConfigurations = moduleConfigurations;
-        m_datastoreConfigurations = datastoreConfigurations;
+        m_moduleConfigurations = newModuleList(moduleConfigurations, false);
+        m_datastoreConfigurations = newDatastoreList(datastoreConfigurations,
+                false);
     }
 
     /**
-     * Make an exact copy of this ServerConfiguration.
+     * Creates a deep copy of the given ServerConfiguration.
      */
-    public ServerConfiguration copy() throws IOException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        serialize(out);
-        return new ServerConfigurationParser(new ByteArrayInputStream(out
-                .toByteArray())).parse();
+    public ServerConfiguration(ServerConfiguration other) {
+        this(other, false);
+    }
+
+    private ServerConfiguration(ServerConfiguration other, boolean view) {
+        super(other);
+        m_className = other.m_className;
+        if (view) {
+            m_moduleConfigurations =
+                    newModuleList(other.m_moduleConfigurations.peek(), true);
+            m_datastoreConfigurations =
+                    newDatastoreList(other.m_datastoreConfigurations.peek(),
+                            true);
+            return;
+        }
+        List<ModuleConfiguration> modules =
+                new ArrayList<ModuleConfiguration>(other.m_moduleConfigurations
+                        .size());
+        for (ModuleConfiguration mc : other.m_moduleConfigurations.peek()) {
+            modules.add(new ModuleConfiguration(mc));
+        }
+        m_moduleConfigurations = newModuleList(modules, false);
+        List<DatastoreConfiguration> datastores =
+                new ArrayList<DatastoreConfiguration>(
+                        other.m_datastoreConfigurations.size());
+        for (DatastoreConfiguration dc : other.m_datastoreConfigurations
+                .peek()) {
+            datastores.add(new DatastoreConfiguration(dc));
+        }
+        m_datastoreConfigurations = newDatastoreList(datastores, false);
     }
 
     /**
-     * Apply the given properties to this ServerConfiguration. Trims leading and
-     * trailing spaces from the property values before applying them.
+     * Creates a copy-on-write view of the template. The view copies the
+     * template's parameters, but shares its modules and datastores until
+     * they are retrieved, at which point each is copied. The template must
+     * not be modified while views of it are in use.
+     *
+     * @see ServerConfigurationCache
      */
-    public void applyProperties(Properties props) {
-        Iterator<?> iter = props.keySet().iterator();
-        while (iter.hasNext()) {
-            String fullName = (String) iter.next();
-            String value = props.getProperty(fullName).trim();
-            if (fullName.indexOf(":") != -1 && value != null &&
-                    value.length() > 0) {
-                String name = fullName.substring(fullName.lastIndexOf(":") + 1);
-                if (fullName.startsWith("server:")) {
-                    if (name.endsWith(".class")) {
-                        m_className = value;
-                    } else {
-                        setParameterValue(name, value, true);
-                    }
-                } else if (fullName.startsWith("module.")) {
-                    String role =
-                            fullName.substring(7, fullName.lastIndexOf(":"));
-                    ModuleConfiguration module = getModuleConfiguration(role);
-                    if (module == null) {
-                        module =
-                                new ModuleConfiguration(
-                                        new ArrayList<Parameter>(), role, null,
-                                        null);
-                        m_moduleConfigurations.add(module);
-                    }
-                    if (name.endsWith(".class")) {
-                        module.setClassName(value);
-                    } else {
-                        module.setParameterValue(name, value, true);
-                    }
-                } else if (fullName.startsWith("datastore.")) {
-                    String id =
-                            fullName.substring(10, fullName.lastIndexOf(":"));
-                    DatastoreConfiguration datastore =
-                            getDatastoreConfiguration(id);
-                    if (datastore == null) {
-                        datastore =
-                                new DatastoreConfiguration(
-                                        new ArrayList<Parameter>(), id, null);
-                        m_datastoreConfigurations.add(datastore);
-                    }
-                    datastore.setParameterValue(name, value, true);
-                }
-            }
-        }
+    static ServerConfiguration newView(ServerConfiguration template) {
+        return new ServerConfiguration(template, true);
     }
 
-    public void serialize(OutputStream xmlStream) throws IOException {
-        PrintStream out = new PrintStream(xmlStream);
-        out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-        out.println("<server xmlns=\"http://www.fedora.info/definitions/1/0/config/\" class=\"" +
-                m_className + "\">");
+    private static IndexedList<String, ModuleConfiguration> newModuleList(
+            Collection<ModuleConfiguration> modules, boolean shared) {
+        return new IndexedList<String, ModuleConfiguration>(modules, shared) {
 
-        // do server parameters first
-        serializeParameters(getParameters(Parameter.class), 2, out);
-        // next, modules
-        Iterator<ModuleConfiguration> mIter =
-                getModuleConfigurations().iterator();
-        while (mIter.hasNext()) {
-            ModuleConfiguration mc = mIter.next();
-            out.println("  <module role=\"" + mc.getRole() + "\" class=\"" +
-                    mc.getClassName() + "\">");
-            String comment = strip(mc.getComment());
-            if (comment != null) {
-                out.println("    <comment>" + comment + "</comment>");
-            }
-            serializeParameters(mc.getParameters(Parameter.class), 4, out);
-            out.println("  </module>");
-        }
-        // finally, datastores
-        Iterator<DatastoreConfiguration> dIter =
-                getDatastoreConfigurations().iterator();
-        while (dIter.hasNext()) {
-            DatastoreConfiguration dc = dIter.next();
-            out.println("  <datastore id=\"" + dc.getId() + "\">");
-            String comment = strip(dc.getComment());
-            if (comment != null) {
-                out.println("    <comment>" + comment + "</comment>");
+            @Override
+            protected String keyOf(ModuleConfiguration module) {
+                return module.getRole();
             }
-            serializeParameters(dc.getParameters(Parameter.class), 4, out);
-            out.println("  </datastore>");
-        }
 
-        out.println("</server>");
-        out.close();
+            @Override
+            protected ModuleConfiguration copyOf(ModuleConfiguration module) {
+                return new ModuleConfiguration(module);
+            }
+        };
     }
 
-    private void serializeParameters(Collection<Parameter> params,
-            int indentBy, PrintStream out) {
-        Iterator<Parameter> paramIter = params.iterator();
-        while (paramIter.hasNext()) {
-            out.println(getParamXMLString(paramIter.next(), indentBy));
-        }
+    private static IndexedList<String, DatastoreConfiguration>
+            newDatastoreList(Collection<DatastoreConfiguration> datastores,
+                    boolean shared) {
+        return new IndexedList<String, DatastoreConfiguration>(datastores,
+                shared) {
+
+            @Override
+            protected String keyOf(DatastoreConfiguration datastore) {
+                return datastore.getId();
+            }
+
+            @Override
+            protected DatastoreConfiguration copyOf(
+                    DatastoreConfiguration datastore) {
+                return new DatastoreConfiguration(datastore);
+            }
+        };
     }
 
-    private String spaces(int num) {
-        StringBuffer out = new StringBuffer();
-        for (int i = 0; i < num; i++) {
-            out.append(' ');
-        }
-        return out.toString();
+    /**
+     * Make an exact copy of this ServerConfiguration.
+     *
+     * @throws IOException never, since the copy is no longer made by
+     * serializing and parsing; kept for the callers that handle it
+     */
+    public ServerConfiguration copy() throws IOException {
+        return new ServerConfiguration(this);
     }
 
-    private String getParamXMLString(Parameter p, int indentBy) {
-        StringBuffer out = new StringBuffer();
-        out.append(spaces(indentBy) + "<param name=\"" + p.getName() +
-                "\" value=\"" + enc(p.getValue()) + "\"");
-        if (p.getIsFilePath() != false) {
-            out.append(" isFilePath=\"true\"");
-        }
-        if (p.getProfileValues() != null) {
-            Iterator<String> iter = p.getProfileValues().keySet().iterator();
-            while (iter.hasNext()) {
-                String profileName = iter.next();
-                String profileVal = p.getProfileValues().get(profileName);
-                out.append(" " + profileName + "value=\"" + enc(profileVal) +
-                        "\"");
-            }
-        }
-        String comment = strip(p.getComment());
-        if (comment != null) {
-            out.append(">\n" + spaces(indentBy + 2) + "<comment>" +
-                    enc(comment) + "</comment>\n" + spaces(indentBy) +
-                    "</param>");
-        } else {
-            out.append("/>");
+    /**
+     * Apply the given properties to this ServerConfiguration. Trims leading and
+     * trailing spaces from the property values before applying them.
+     */
+    public void applyProperties(Properties props) {
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        for (String name : props.stringPropertyNames()) {
+            map.put(name, props.getProperty(name));
         }
-        return out.toString();
+        applyProperties(map);
     }
 
-    private String enc(String in) {
-        StringBuffer out = new StringBuffer();
-        for (int i = 0; i < in.length(); i++) {
-            char c = in.charAt(i);
-            if (c == '<') {
-                out.append("&lt;");
-            } else if (c == '>') {
-                out.append("&gt;");
-            } else if (c == '\'') {
-                out.append("&apos;");
-            } else if (c == '\"') {
-                out.append("&quot;");
-            } else if (c == '&') {
-                out.append("&amp;");
-            } else {
-                out.append(c);
+    /**
+     * Apply the given properties to this ServerConfiguration, as
+     * {@link #applyProperties(Properties)} does.
+     *
+     * <p>The keys are parsed and grouped by module and datastore first, so
+     * that each module or datastore is looked up once, however many of its
+     * parameters are set.
+     */
+    public void applyProperties(Map<String, String> props) {
+        Map<String, Map<String, String>> modules =
+                new LinkedHashMap<String, Map<String, String>>();
+        Map<String, Map<String, String>> datastores =
+                new LinkedHashMap<String, Map<String, String>>();
+        for (Entry<String, String> entry : props.entrySet()) {
+            String fullName = entry.getKey();
+            String value =
+                    entry.getValue() == null ? "" : entry.getValue().trim();
+            int colon = fullName.lastIndexOf(':');
+            if (colon == -1 || value.length() == 0) {
+                continue;
+            }
+            String name = fullName.substring(colon + 1);
+            if (fullName.startsWith("server:")) {
+                if (name.endsWith(".class")) {
+                    m_className = value;
+                } else {
+                    setParameterValue(name, value, true);
+                }
+            } else if (fullName.startsWith("module.")) {
+                group(modules, fullName.substring(7, colon)).put(name, value);
+            } else if (fullName.startsWith("datastore.")) {
+                group(datastores, fullName.substring(10, colon)).put(name,
+                        value);
             }
         }
-        return out.toString();
-    }
 
-    // strip leading and trailing whitespace and \n, return null if
-    // resulting string is empty in incoming string is null.
-    private String strip(String in) {
-        if (in == null) {
-            return null;
+        for (Entry<String, Map<String, String>> group : modules.entrySet()) {
+            String role = group.getKey();
+            ModuleConfiguration module = getModuleConfiguration(role);
+            if (module == null) {
+                module =
+                        new ModuleConfiguration(new ArrayList<Parameter>(),
+                                role, null, null);
+                m_moduleConfigurations.add(module);
+            }
+            for (Entry<String, String> param : group.getValue().entrySet()) {
+                if (param.getKey().endsWith(".class")) {
+                    module.setClassName(param.getValue());
+                } else {
+                    module.setParameterValue(param.getKey(), param.getValue(),
+                            true);
+                }
+            }
         }
-        String out = stripTrailing(stripLeading(in));
-        if (out.length() == 0) {
-            return null;
-        } else {
-            return out;
+        for (Entry<String, Map<String, String>> group : datastores
+                .entrySet()) {
+            String id = group.getKey();
+            DatastoreConfiguration datastore = getDatastoreConfiguration(id);
+            if (datastore == null) {
+                datastore =
+                        new DatastoreConfiguration(new ArrayList<Parameter>(),
+                                id, null);
+                m_datastoreConfigurations.add(datastore);
+            }
+            for (Entry<String, String> param : group.getValue().entrySet()) {
+                datastore.setParameterValue(param.getKey(), param.getValue(),
+                        true);
+            }
         }
     }
 
-    private static String stripLeading(String in) {
-        StringBuffer out = new StringBuffer();
-        boolean foundNonWhitespace = false;
-        for (int i = 0; i < in.length(); i++) {
-            char c = in.charAt(i);
-            if (foundNonWhitespace) {
-                out.append(c);
-            } else {
-                if (c != ' ' && c != '\t' && c != '\n') {
-                    foundNonWhitespace = true;
-                    out.append(c);
-                }
-            }
+    private static Map<String, String> group(
+            Map<String, Map<String, String>> groups, String target) {
+        Map<String, String> group = groups.get(target);
+        if (group == null) {
+            group = new LinkedHashMap<String, String>();
+            groups.put(target, group);
         }
-        return out.toString();
+        return group;
     }
 
-    private static String stripTrailing(String in) {
-        StringBuffer out = new StringBuffer();
-        boolean foundNonWhitespace = false;
-        for (int i = in.length() - 1; i >= 0; i--) {
-            char c = in.charAt(i);
-            if (foundNonWhitespace) {
-                out.insert(0, c);
-            } else {
-                if (c != ' ' && c != '\t' && c != '\n') {
-                    foundNonWhitespace = true;
-                    out.insert(0, c);
-                }
-            }
+    /**
+     * Serializes this configuration as XML, using the platform's default
+     * encoding, and closes the stream.
+     */
+    public void serialize(OutputStream xmlStream) throws IOException {
+        Writer out =
+                new BufferedWriter(new OutputStreamWriter(xmlStream), 16 * 1024);
+        try {
+            new ServerConfigurationSerializer(out).serialize(this);
+        } finally {
+            out.close();
         }
-        return out.toString();
     }
 
     public String getClassName() {
@@ -274,28 +266,39 @@ public class ServerConfiguration extends Configuration {
         return m_moduleConfigurations;
     }
 
+    /**
+     * @return the module configurations, for reading only. Unlike
+     * {@link #getModuleConfigurations()}, this does not copy the modules of
+     * a view.
+     */
+    List<ModuleConfiguration> readModuleConfigurations() {
+        return m_moduleConfigurations.peek();
+    }
+
+    /**
+     * @return the (first) module configuration of the given role, or null
+     */
     public ModuleConfiguration getModuleConfiguration(String role) {
-        for (int i = 0; i < m_moduleConfigurations.size(); i++) {
-            ModuleConfiguration config = m_moduleConfigurations.get(i);
-            if (config.getRole().equals(role)) {
-                return config;
-            }
-        }
-        return null;
+        return m_moduleConfigurations.getByKey(role);
     }
 
     public List<DatastoreConfiguration> getDatastoreConfigurations() {
         return m_datastoreConfigurations;
     }
 
+    /**
+     * @return the datastore configurations, for reading only
+     * @see #readModuleConfigurations()
+     */
+    List<DatastoreConfiguration> readDatastoreConfigurations() {
+        return m_datastoreConfigurations.peek();
+    }
+
+    /**
+     * @return the (first) datastore configuration of the given id, or null
+     */
     public DatastoreConfiguration getDatastoreConfiguration(String id) {
-        for (int i = 0; i < m_datastoreConfigurations.size(); i++) {
-            DatastoreConfiguration config = m_datastoreConfigurations.get(i);
-            if (config.getId().equals(id)) {
-                return config;
-            }
-        }
-        return null;
+        return m_datastoreConfigurations.getByKey(id);
     }
 
     /**
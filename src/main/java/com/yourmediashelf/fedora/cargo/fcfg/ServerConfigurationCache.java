@@ -0,0 +1,188 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo.fcfg;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.yourmediashelf.fedora.cargo.AtomicFiles;
+import com.yourmediashelf.fedora.cargo.Checksums;
+
+/**
+ * A process-wide cache of parsed fcfg files (such as fedora-base.fcfg), so
+ * that installing many FEDORA_HOMEs, whether in a reactor or in a batch,
+ * parses each distinct file only once.
+ *
+ * <p>Templates are keyed by the checksum of the file's content, so identical
+ * files at different paths share a template. The checksum of each path is
+ * remembered along with the file's modification time and length, and is
+ * only recomputed when either changes. Callers get a copy-on-write view of
+ * the template (see {@link ServerConfiguration#newView}), which they may
+ * modify freely.
+ *
+ * <p>Given a directory, templates are also kept on disk as
+ * {@link ServerConfigurationSnapshot}s, so that later processes load them
+ * instead of parsing the XML. Unreadable snapshots (e.g. of an older format
+ * version) are ignored and replaced.
+ */
+public class ServerConfigurationCache {
+
+    private static final ServerConfigurationCache INSTANCE =
+            new ServerConfigurationCache();
+
+    private final ConcurrentMap<String, Stamp> m_stamps =
+            new ConcurrentHashMap<String, Stamp>();
+
+    private final ConcurrentMap<String, ServerConfiguration> m_templates =
+            new ConcurrentHashMap<String, ServerConfiguration>();
+
+    private final AtomicInteger m_parses = new AtomicInteger();
+
+    private volatile File m_directory;
+
+    public static ServerConfigurationCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @return a modifiable view of the parsed file
+     * @throws IOException
+     */
+    public ServerConfiguration get(File fcfg) throws IOException {
+        String path = fcfg.getCanonicalPath();
+        long lastModified = fcfg.lastModified();
+        long length = fcfg.length();
+        Stamp stamp = m_stamps.get(path);
+        ServerConfiguration template = null;
+        if (stamp != null && stamp.m_lastModified == lastModified &&
+                stamp.m_length == length) {
+            template = m_templates.get(stamp.m_checksum);
+        }
+        if (template == null) {
+            byte[] content = Files.readAllBytes(fcfg.toPath());
+            String checksum =
+                    Checksums.sha1(new ByteArrayInputStream(content));
+            template = m_templates.get(checksum);
+            if (template == null) {
+                m_templates.putIfAbsent(checksum, load(checksum, content));
+                template = m_templates.get(checksum);
+            }
+            m_stamps.put(path, new Stamp(lastModified, length, checksum));
+        }
+        return ServerConfiguration.newView(template);
+    }
+
+    /**
+     * @param directory the directory to keep snapshots of parsed templates
+     * in, or null to keep them in memory only
+     */
+    public void setDirectory(File directory) {
+        m_directory = directory;
+    }
+
+    private ServerConfiguration load(String checksum, byte[] content)
+            throws IOException {
+        File directory = m_directory;
+        File snapshot = null;
+        if (directory != null) {
+            snapshot = new File(directory, checksum + ".snapshot");
+            if (snapshot.isFile()) {
+                InputStream in = new FileInputStream(snapshot);
+                try {
+                    return ServerConfigurationSnapshot.read(
+                            new BufferedInputStream(in));
+                } catch (IOException e) {
+                    // rewritten below
+                } finally {
+                    in.close();
+                }
+            }
+        }
+
+        m_parses.incrementAndGet();
+        ServerConfiguration template =
+                new ServerConfigurationParser(new ByteArrayInputStream(
+                        content)).parse();
+        if (snapshot != null) {
+            try {
+                save(template, snapshot);
+            } catch (IOException e) {
+                // the snapshot is only an optimization
+            }
+        }
+        return template;
+    }
+
+    private static void save(ServerConfiguration template, File snapshot)
+            throws IOException {
+        File tmp = AtomicFiles.newTempFile(snapshot);
+        try {
+            OutputStream out =
+                    new BufferedOutputStream(new FileOutputStream(tmp));
+            try {
+                ServerConfigurationSnapshot.write(template, out);
+            } finally {
+                out.close();
+            }
+            AtomicFiles.replace(tmp, snapshot);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * @return the number of files parsed (rather than loaded from a
+     * snapshot) since this cache was created or cleared
+     */
+    public int getParses() {
+        return m_parses.get();
+    }
+
+    public void clear() {
+        m_stamps.clear();
+        m_templates.clear();
+        m_parses.set(0);
+    }
+
+    private static class Stamp {
+
+        private final long m_lastModified;
+
+        private final long m_length;
+
+        private final String m_checksum;
+
+        Stamp(long lastModified, long length, String checksum) {
+            m_lastModified = lastModified;
+            m_length = length;
+            m_checksum = checksum;
+        }
+    }
+}
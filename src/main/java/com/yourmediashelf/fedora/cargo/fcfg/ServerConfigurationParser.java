@@ -21,12 +21,11 @@ package com.yourmediashelf.fedora.cargo.fcfg;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
@@ -37,8 +36,6 @@ import org.xml.sax.helpers.DefaultHandler;
  */
 public class ServerConfigurationParser extends DefaultHandler {
 
-    private SAXParser m_parser;
-
     private final InputStream m_xmlStream;
 
     private String m_serverClassName;
@@ -80,28 +77,32 @@ public class ServerConfigurationParser extends DefaultHandler {
     public ServerConfigurationParser(InputStream xmlStream)
             throws IOException {
         m_xmlStream = xmlStream;
-        try {
-            SAXParserFactory spf = SAXParserFactory.newInstance();
-            spf.setNamespaceAware(true);
-            m_parser = spf.newSAXParser();
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new IOException("Error getting XML parser: " + e.getMessage());
-        }
     }
 
+    /**
+     * Parses the stream with a parser borrowed from a shared pool.
+     */
     public ServerConfiguration parse() throws IOException {
         m_serverParameters = new ArrayList<Parameter>();
         m_moduleConfigurations = new ArrayList<ModuleConfiguration>();
         m_datastoreConfigurations = new ArrayList<DatastoreConfiguration>();
+        SAXParser parser;
+        try {
+            parser = SAXParserPool.borrow();
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new IOException("Error getting XML parser: " + e.getMessage());
+        }
         try {
-            m_parser.parse(m_xmlStream, this);
+            parser.parse(m_xmlStream, this);
             return new ServerConfiguration(m_serverClassName,
                     m_serverParameters, m_moduleConfigurations,
                     m_datastoreConfigurations);
         } catch (Exception e) {
             e.printStackTrace();
             throw new IOException("Error parsing XML: " + e.getMessage());
+        } finally {
+            SAXParserPool.release(parser);
         }
     }
 
@@ -129,7 +130,7 @@ public class ServerConfigurationParser extends DefaultHandler {
             m_paramIsFilePath =
                     isFilePath != null && isFilePath.equalsIgnoreCase("true");
             m_paramComment = null;
-            m_profileValues = new HashMap<String, String>();
+            m_profileValues = new LinkedHashMap<String, String>();
             for (int i = 0; i < a.getLength(); i++) {
                 String name = a.getLocalName(i);
                 if (name.length() > 5 && name.endsWith("value")) {
@@ -0,0 +1,228 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo.fcfg;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Writes a {@link ServerConfiguration} as fcfg XML directly to a Writer.
+ *
+ * <p>The output is identical to that of the original PrintStream-based
+ * serializer, including its use of the platform line separator between
+ * elements and '\n' within param comments.
+ */
+class ServerConfigurationSerializer {
+
+    private static final String[] m_indents = new String[9];
+    static {
+        String indent = "";
+        for (int i = 0; i < m_indents.length; i++) {
+            m_indents[i] = indent;
+            indent += ' ';
+        }
+    }
+
+    private final Writer m_out;
+
+    private final String m_lineSeparator;
+
+    /**
+     * @param out the writer, which should be buffered
+     */
+    public ServerConfigurationSerializer(Writer out) {
+        m_out = out;
+        m_lineSeparator = System.getProperty("line.separator", "\n");
+    }
+
+    public void serialize(ServerConfiguration config) throws IOException {
+        m_out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        newLine();
+        m_out.write("<server xmlns=\"http://www.fedora.info/definitions/1/0/config/\" class=\"");
+        m_out.write(String.valueOf(config.getClassName()));
+        m_out.write("\">");
+        newLine();
+
+        // do server parameters first
+        writeParameters(config.getParameters(Parameter.class), 2);
+        // next, modules
+        for (ModuleConfiguration mc : config.readModuleConfigurations()) {
+            m_out.write("  <module role=\"");
+            m_out.write(String.valueOf(mc.getRole()));
+            m_out.write("\" class=\"");
+            m_out.write(String.valueOf(mc.getClassName()));
+            m_out.write("\">");
+            newLine();
+            writeComment(mc.getComment());
+            writeParameters(mc.getParameters(Parameter.class), 4);
+            m_out.write("  </module>");
+            newLine();
+        }
+        // finally, datastores
+        for (DatastoreConfiguration dc : config
+                .readDatastoreConfigurations()) {
+            m_out.write("  <datastore id=\"");
+            m_out.write(String.valueOf(dc.getId()));
+            m_out.write("\">");
+            newLine();
+            writeComment(dc.getComment());
+            writeParameters(dc.getParameters(Parameter.class), 4);
+            m_out.write("  </datastore>");
+            newLine();
+        }
+
+        m_out.write("</server>");
+        newLine();
+    }
+
+    // module and datastore comments are written unescaped
+    private void writeComment(String comment) throws IOException {
+        comment = strip(comment);
+        if (comment != null) {
+            m_out.write("    <comment>");
+            m_out.write(comment);
+            m_out.write("</comment>");
+            newLine();
+        }
+    }
+
+    private void writeParameters(Collection<Parameter> params, int indentBy)
+            throws IOException {
+        for (Parameter p : params) {
+            writeParameter(p, indentBy);
+        }
+    }
+
+    private void writeParameter(Parameter p, int indentBy) throws IOException {
+        String indent = indent(indentBy);
+        m_out.write(indent);
+        m_out.write("<param name=\"");
+        m_out.write(String.valueOf(p.getName()));
+        m_out.write("\" value=\"");
+        enc(p.getValue());
+        m_out.write('"');
+        if (p.getIsFilePath()) {
+            m_out.write(" isFilePath=\"true\"");
+        }
+        Map<String, String> profileValues = p.getProfileValues();
+        if (profileValues != null) {
+            for (Map.Entry<String, String> entry : profileValues.entrySet()) {
+                m_out.write(' ');
+                m_out.write(String.valueOf(entry.getKey()));
+                m_out.write("value=\"");
+                enc(entry.getValue());
+                m_out.write('"');
+            }
+        }
+        String comment = strip(p.getComment());
+        if (comment != null) {
+            m_out.write(">\n");
+            m_out.write(indent(indentBy + 2));
+            m_out.write("<comment>");
+            enc(comment);
+            m_out.write("</comment>\n");
+            m_out.write(indent);
+            m_out.write("</param>");
+        } else {
+            m_out.write("/>");
+        }
+        newLine();
+    }
+
+    private void newLine() throws IOException {
+        m_out.write(m_lineSeparator);
+    }
+
+    private static String indent(int num) {
+        if (num < m_indents.length) {
+            return m_indents[num];
+        }
+        StringBuilder sb = new StringBuilder(num);
+        for (int i = 0; i < num; i++) {
+            sb.append(' ');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes s with XML special characters escaped. Runs of characters that
+     * need no escaping (usually all of s) are written unchanged.
+     */
+    private void enc(String s) throws IOException {
+        int len = s.length();
+        int start = 0;
+        for (int i = 0; i < len; i++) {
+            String entity;
+            switch (s.charAt(i)) {
+                case '<':
+                    entity = "&lt;";
+                    break;
+                case '>':
+                    entity = "&gt;";
+                    break;
+                case '\'':
+                    entity = "&apos;";
+                    break;
+                case '"':
+                    entity = "&quot;";
+                    break;
+                case '&':
+                    entity = "&amp;";
+                    break;
+                default:
+                    continue;
+            }
+            if (i > start) {
+                m_out.write(s, start, i - start);
+            }
+            m_out.write(entity);
+            start = i + 1;
+        }
+        if (start == 0) {
+            m_out.write(s);
+        } else if (start < len) {
+            m_out.write(s, start, len - start);
+        }
+    }
+
+    /**
+     * @return s without leading and trailing spaces, tabs and newlines, or
+     * null if s is null or nothing remains
+     */
+    static String strip(String s) {
+        if (s == null) {
+            return null;
+        }
+        int begin = 0;
+        int end = s.length();
+        while (begin < end && isStripped(s.charAt(begin))) {
+            begin++;
+        }
+        while (end > begin && isStripped(s.charAt(end - 1))) {
+            end--;
+        }
+        return begin == end ? null : s.substring(begin, end);
+    }
+
+    private static boolean isStripped(char c) {
+        return c == ' ' || c == '\t' || c == '\n';
+    }
+}
@@ -0,0 +1,303 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo.fcfg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary encoding of a {@link ServerConfiguration}, for caches
+ * that would otherwise have to re-parse the XML.
+ *
+ * <p>The encoding starts with a magic number and a format version, followed
+ * by a table of the distinct strings of the configuration (names, roles,
+ * classes, values and comments), and then the configuration itself, in
+ * which every string is an index into the table. Counts and indexes are
+ * variable-length integers. Parameters are written in iteration order, so a
+ * configuration read back serializes to the same XML as the original.
+ *
+ * <p>Counts and string lengths are bounded when reading, so that a corrupt
+ * snapshot fails with an IOException rather than exhausting the heap.
+ */
+public final class ServerConfigurationSnapshot {
+
+    private static final int MAGIC = 0x46434647; // "FCFG"
+
+    /**
+     * The version of the encoding, to be incremented on any change to it.
+     */
+    public static final int VERSION = 1;
+
+    /** the largest count (of strings, modules, parameters...) read */
+    private static final int MAX_COUNT = 1 << 20;
+
+    /** the largest string length, in bytes, read */
+    private static final int MAX_LENGTH = 1 << 24;
+
+    private ServerConfigurationSnapshot() {
+    }
+
+    /**
+     * Writes the configuration to out, which is left open.
+     *
+     * @throws IOException
+     */
+    public static void write(ServerConfiguration config, OutputStream out)
+            throws IOException {
+        Encoder encoder = new Encoder();
+        encoder.writeConfiguration(config);
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        writeVarInt(data, encoder.m_strings.size());
+        for (String s : encoder.m_strings.keySet()) {
+            byte[] bytes = s.getBytes("UTF-8");
+            writeVarInt(data, bytes.length);
+            data.write(bytes);
+        }
+        encoder.m_body.writeTo(data);
+        data.flush();
+    }
+
+    /**
+     * Reads a configuration written by
+     * {@link #write(ServerConfiguration, OutputStream)}. The stream remains
+     * open after this method returns.
+     *
+     * @throws IOException if the stream is not a snapshot of this
+     * {@link #VERSION}, or is truncated
+     */
+    public static ServerConfiguration read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        try {
+            if (data.readInt() != MAGIC) {
+                throw new IOException("Not a ServerConfiguration snapshot");
+            }
+            int version = data.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " +
+                        version + " (expected " + VERSION + ")");
+            }
+            String[] strings = new String[readCount(data, MAX_COUNT)];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[readCount(data, MAX_LENGTH)];
+                data.readFully(bytes);
+                strings[i] = new String(bytes, "UTF-8");
+            }
+            return new Decoder(data, strings).readConfiguration();
+        } catch (EOFException e) {
+            throw new IOException("Truncated ServerConfiguration snapshot", e);
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value)
+            throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    break;
+                }
+                return value;
+            }
+        }
+        throw new IOException("Malformed ServerConfiguration snapshot");
+    }
+
+    /**
+     * @return a variable-length integer no greater than max
+     * @throws IOException if it is greater
+     */
+    private static int readCount(DataInputStream in, int max)
+            throws IOException {
+        int count = readVarInt(in);
+        if (count > max) {
+            throw new IOException("Malformed ServerConfiguration snapshot: " +
+                    count + " exceeds " + max);
+        }
+        return count;
+    }
+
+    private static class Encoder {
+
+        /** the string table, mapping each string to its index */
+        private final Map<String, Integer> m_strings =
+                new LinkedHashMap<String, Integer>();
+
+        private final ByteArrayOutputStream m_body =
+                new ByteArrayOutputStream(16 * 1024);
+
+        private final DataOutputStream m_out = new DataOutputStream(m_body);
+
+        void writeConfiguration(ServerConfiguration config)
+                throws IOException {
+            writeString(config.getClassName());
+            writeParameters(config.getParameters(Parameter.class));
+            List<ModuleConfiguration> modules =
+                    config.readModuleConfigurations();
+            writeVarInt(m_out, modules.size());
+            for (ModuleConfiguration mc : modules) {
+                writeString(mc.getRole());
+                writeString(mc.getClassName());
+                writeString(mc.getComment());
+                writeParameters(mc.getParameters(Parameter.class));
+            }
+            List<DatastoreConfiguration> datastores =
+                    config.readDatastoreConfigurations();
+            writeVarInt(m_out, datastores.size());
+            for (DatastoreConfiguration dc : datastores) {
+                writeString(dc.getId());
+                writeString(dc.getComment());
+                writeParameters(dc.getParameters(Parameter.class));
+            }
+            m_out.flush();
+        }
+
+        private void writeParameters(Collection<Parameter> params)
+                throws IOException {
+            writeVarInt(m_out, params.size());
+            for (Parameter p : params) {
+                writeString(p.getName());
+                writeString(p.getValue());
+                m_out.writeBoolean(p.getIsFilePath());
+                writeString(p.getComment());
+                Map<String, String> profileValues = p.getProfileValues();
+                if (profileValues == null) {
+                    writeVarInt(m_out, 0);
+                    continue;
+                }
+                writeVarInt(m_out, profileValues.size() + 1);
+                for (Map.Entry<String, String> entry : profileValues
+                        .entrySet()) {
+                    writeString(entry.getKey());
+                    writeString(entry.getValue());
+                }
+            }
+        }
+
+        /**
+         * Writes 0 for null, or one more than the index of s in the table.
+         */
+        private void writeString(String s) throws IOException {
+            if (s == null) {
+                writeVarInt(m_out, 0);
+                return;
+            }
+            Integer index = m_strings.get(s);
+            if (index == null) {
+                index = m_strings.size();
+                m_strings.put(s, index);
+            }
+            writeVarInt(m_out, index + 1);
+        }
+    }
+
+    private static class Decoder {
+
+        private final DataInputStream m_in;
+
+        private final String[] m_strings;
+
+        Decoder(DataInputStream in, String[] strings) {
+            m_in = in;
+            m_strings = strings;
+        }
+
+        ServerConfiguration readConfiguration() throws IOException {
+            String className = readString();
+            List<Parameter> params = readParameters();
+            int count = readCount(m_in, MAX_COUNT);
+            List<ModuleConfiguration> modules =
+                    new ArrayList<ModuleConfiguration>(count);
+            for (int i = 0; i < count; i++) {
+                String role = readString();
+                String moduleClass = readString();
+                String comment = readString();
+                modules.add(new ModuleConfiguration(readParameters(), role,
+                        moduleClass, comment));
+            }
+            count = readCount(m_in, MAX_COUNT);
+            List<DatastoreConfiguration> datastores =
+                    new ArrayList<DatastoreConfiguration>(count);
+            for (int i = 0; i < count; i++) {
+                String id = readString();
+                String comment = readString();
+                datastores.add(new DatastoreConfiguration(readParameters(), id,
+                        comment));
+            }
+            return new ServerConfiguration(className, params, modules,
+                    datastores);
+        }
+
+        private List<Parameter> readParameters() throws IOException {
+            int count = readCount(m_in, MAX_COUNT);
+            List<Parameter> params = new ArrayList<Parameter>(count);
+            for (int i = 0; i < count; i++) {
+                String name = readString();
+                String value = readString();
+                boolean isFilePath = m_in.readBoolean();
+                String comment = readString();
+                int profiles = readCount(m_in, MAX_COUNT);
+                Map<String, String> profileValues = null;
+                if (profiles > 0) {
+                    profileValues = new LinkedHashMap<String, String>();
+                    for (int j = 1; j < profiles; j++) {
+                        String key = readString();
+                        profileValues.put(key, readString());
+                    }
+                }
+                params.add(new Parameter(name, value, isFilePath, comment,
+                        profileValues));
+            }
+            return params;
+        }
+
+        private String readString() throws IOException {
+            int index = readVarInt(m_in);
+            if (index == 0) {
+                return null;
+            }
+            if (index > m_strings.length) {
+                throw new IOException("Malformed ServerConfiguration snapshot");
+            }
+            return m_strings[index - 1];
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.yourmediashelf.fedora.cargo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ArchiveExtractorTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testParallelMatchesSerial() throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            // a few large entries among many small ones
+            byte[] data = new byte[i % 50 == 0 ? 1 << 20 : random.nextInt(
+                    8192)];
+            random.nextBytes(data);
+            entries.put("dir" + (i % 7) + "/sub" + (i % 3) + "/f" + i, data);
+        }
+        entries.put("empty/", null);
+        File zip = zip(entries);
+
+        File serial = tmp.newFolder("serial");
+        File parallel = tmp.newFolder("parallel");
+        ArchiveExtractor.Result result =
+                new ArchiveExtractor(1, null).extract(zip, serial);
+        new ArchiveExtractor(4, 4096, null).extract(zip, parallel);
+
+        assertEquals(Checksums.sha1Tree(serial), Checksums.sha1Tree(parallel));
+        assertTrue(new File(parallel, "empty").isDirectory());
+        assertEquals(Checksums.sha1(new ByteArrayInputStream(entries
+                .get("dir0/sub0/f0"))), Checksums.sha1(new File(parallel,
+                "dir0/sub0/f0")));
+        long bytes = 0;
+        for (byte[] data : entries.values()) {
+            bytes += data == null ? 0 : data.length;
+        }
+        assertEquals(bytes, result.getBytes());
+    }
+
+    @Test
+    public void testBackslashEntry() throws Exception {
+        Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        entries.put("a\\b.txt", "b".getBytes("UTF-8"));
+        File dest = tmp.newFolder("dest");
+        new ArchiveExtractor(2, null).extract(zip(entries), dest);
+
+        assertEquals("b", FileUtils.readFileToString(new File(dest,
+                "a/b.txt"), "UTF-8"));
+        assertFalse(new File(dest, "a\\b.txt").exists());
+    }
+
+    @Test
+    public void testZipSlip() throws Exception {
+        for (String name : new String[] { "../evil.txt", "a/../../evil.txt",
+                "a\\..\\..\\evil.txt", "/evil.txt", "\\evil.txt" }) {
+            Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+            entries.put("ok.txt", "ok".getBytes("UTF-8"));
+            entries.put(name, "evil".getBytes("UTF-8"));
+            File parent = tmp.newFolder();
+            File dest = new File(parent, "dest");
+            try {
+                new ArchiveExtractor(2, null).extract(zip(entries), dest);
+                fail("extracted " + name);
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("Illegal zip entry"));
+            }
+            assertFalse(new File(parent, "evil.txt").exists());
+            // nothing is written once an illegal entry is found
+            assertFalse(new File(dest, "ok.txt").exists());
+        }
+    }
+
+    private File zip(Map<String, byte[]> entries) throws IOException {
+        File zip = tmp.newFile();
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+        try {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                out.putNextEntry(new ZipEntry(entry.getKey()));
+                if (entry.getValue() != null) {
+                    out.write(entry.getValue());
+                }
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return zip;
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileLock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class ContainerRegistryTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testEntry() throws Exception {
+        ContainerRegistry registry = new ContainerRegistry(tmp.newFolder());
+        assertNull(registry.get(8080));
+
+        File home = tmp.newFolder("fedora-home");
+        registry.put(new ContainerRegistry.Entry(8080, "tomcat7x", "/tomcat",
+                registry.getConfigHome(8080), home, "fingerprint", "id",
+                42));
+        ContainerRegistry.Entry entry = registry.get(8080);
+        assertEquals(8080, entry.getPort());
+        assertEquals("tomcat7x", entry.getContainerId());
+        assertEquals("/tomcat", entry.getHome());
+        assertEquals(registry.getConfigHome(8080).getAbsoluteFile(), entry
+                .getConfigHome());
+        assertEquals(home.getAbsoluteFile(), entry.getFedoraHome());
+        assertEquals("fingerprint", entry.getFingerprint());
+        assertEquals("id", entry.getInstanceId());
+        assertEquals(42, entry.getPid());
+        assertNull(registry.get(8081));
+
+        // entries of earlier versions lack FEDORA_HOME
+        registry.put(new ContainerRegistry.Entry(8081, "tomcat7x", "/tomcat",
+                registry.getConfigHome(8081), null, "fingerprint", "id", -1));
+        assertNull(registry.get(8081).getFedoraHome());
+
+        registry.remove(8080);
+        assertNull(registry.get(8080));
+        assertEquals(8081, registry.get(8081).getPort());
+    }
+
+    @Test
+    public void testLock() throws Exception {
+        final ContainerRegistry registry =
+                new ContainerRegistry(tmp.newFolder());
+        FileLock lock = registry.lock(8080);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // other ports are not affected
+            FileLock other = registry.lock(8081);
+            ContainerRegistry.release(other);
+
+            // another thread waits for the lock to be released
+            Future<FileLock> waiting =
+                    executor.submit(new Callable<FileLock>() {
+
+                        public FileLock call() throws IOException {
+                            return registry.lock(8080);
+                        }
+                    });
+            try {
+                waiting.get(200, TimeUnit.MILLISECONDS);
+                fail("locked twice");
+            } catch (TimeoutException e) {
+                // expected
+            }
+            ContainerRegistry.release(lock);
+            lock = waiting.get(5, TimeUnit.SECONDS);
+            assertTrue(lock.isValid());
+        } finally {
+            ContainerRegistry.release(lock);
+            executor.shutdownNow();
+        }
+        assertFalse(lock.isValid());
+    }
+
+    @Test
+    public void testIsAlive() throws Exception {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        long pid = Long.parseLong(name.substring(0, name.indexOf('@')));
+        assertTrue(ContainerRegistry.isAlive(pid));
+        // an unknown pid does not prove the process is gone
+        assertTrue(ContainerRegistry.isAlive(-1));
+        if (new File("/proc").isDirectory()) {
+            assertFalse(ContainerRegistry.isAlive(Integer.MAX_VALUE));
+        }
+    }
+
+    @Test
+    public void testIsHealthy() throws Exception {
+        HttpServer server =
+                HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        for (final int status : new int[] {200, 302, 401, 500}) {
+            server.createContext("/" + status, new HttpHandler() {
+
+                public void handle(HttpExchange exchange) throws IOException {
+                    exchange.sendResponseHeaders(status, -1);
+                    exchange.close();
+                }
+            });
+        }
+        server.start();
+        String url = "http://localhost:" + server.getAddress().getPort() + "/";
+        try {
+            assertTrue(ContainerRegistry.isHealthy(url + 200, 5000));
+            assertTrue(ContainerRegistry.isHealthy(url + 302, 5000));
+            // an authentication challenge means the application is up
+            assertTrue(ContainerRegistry.isHealthy(url + 401, 5000));
+            assertFalse(ContainerRegistry.isHealthy(url + 500, 5000));
+        } finally {
+            server.stop(0);
+        }
+        assertFalse(ContainerRegistry.isHealthy(url + 200, 5000));
+    }
+}
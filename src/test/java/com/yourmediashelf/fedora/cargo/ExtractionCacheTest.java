@@ -0,0 +1,196 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.yourmediashelf.fedora.cargo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ExtractionCacheTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testGet() throws Exception {
+        File zip = zip();
+        CountingExtractor extractor = new CountingExtractor();
+        File cacheDir = tmp.newFolder("cache");
+        ExtractionCache cache = new ExtractionCache(cacheDir, extractor, null);
+
+        File entry = cache.get("g:a:zip:1", zip);
+        assertEquals(1, extractor.count.get());
+        assertEquals("config", FileUtils.readFileToString(new File(entry,
+                "server/config/a.xml"), "UTF-8"));
+        assertFalse(isWritable(new File(entry, "server/config/a.xml")));
+
+        // a hit extracts nothing; other coordinates are another entry
+        assertEquals(entry, cache.get("g:a:zip:1", zip));
+        assertEquals(1, extractor.count.get());
+        assertFalse(entry.equals(cache.get("g:b:zip:1", zip)));
+        assertEquals(2, extractor.count.get());
+        assertEquals(2, cacheDir.list().length);
+    }
+
+    @Test
+    public void testGetRace() throws Exception {
+        File zip = zip();
+        File cacheDir = tmp.newFolder("cache");
+        // another build populates the entry while this one extracts
+        ArchiveExtractor racing = new ArchiveExtractor(1, null) {
+
+            @Override
+            public Result extract(File zipFile, File destDir)
+                    throws IOException {
+                String name = destDir.getName();
+                File entry =
+                        new File(destDir.getParentFile(), name.substring(0,
+                                name.indexOf(".tmp-")));
+                super.extract(zipFile, entry);
+                return super.extract(zipFile, destDir);
+            }
+        };
+
+        File entry =
+                new ExtractionCache(cacheDir, racing, null).get("g:a:zip:1",
+                        zip);
+        assertTrue(new File(entry, "server/config/a.xml").isFile());
+        assertEquals(Arrays.asList(entry.getName()), Arrays.asList(cacheDir
+                .list()));
+    }
+
+    @Test
+    public void testMaterialize() throws Exception {
+        File zip = zip();
+        ExtractionCache cache =
+                new ExtractionCache(tmp.newFolder("cache"),
+                        new ArchiveExtractor(1, null), null);
+        File entry = cache.get("g:a:zip:1", zip);
+        String before = Checksums.sha1Tree(entry);
+        File dest = tmp.newFolder("dest");
+
+        for (int i = 0; i < 2; i++) {
+            // materializing again restores the copies
+            cache.materialize(entry, dest, Arrays.asList("data/"));
+            assertTrue(isSameFile(entry, dest, "server/config/a.xml"));
+            assertFalse(isSameFile(entry, dest, "data/b.txt"));
+            assertTrue(isWritable(new File(dest, "data/b.txt")));
+            assertEquals("data", FileUtils.readFileToString(new File(dest,
+                    "data/b.txt"), "UTF-8"));
+            FileUtils.writeStringToFile(new File(dest, "data/b.txt"), "x",
+                    "UTF-8");
+        }
+        assertEquals(before, Checksums.sha1Tree(entry));
+
+        // extracting over the materialized tree replaces the links
+        new ArchiveExtractor(2, null).extract(zip, dest);
+        assertFalse(isSameFile(entry, dest, "server/config/a.xml"));
+        assertEquals(before, Checksums.sha1Tree(entry));
+    }
+
+    @Test
+    public void testMaterializeLinkFallback() throws Exception {
+        // links cannot cross file systems
+        Path shm = Paths.get("/dev/shm");
+        File entry =
+                new ExtractionCache(tmp.newFolder("cache"),
+                        new ArchiveExtractor(1, null), null).get("g:a:zip:1",
+                        zip());
+        assumeTrue(Files.isDirectory(shm) &&
+                !Files.getFileStore(shm).equals(
+                        Files.getFileStore(entry.toPath())));
+        File dest = Files.createTempDirectory(shm, "materialize").toFile();
+        try {
+            ExtractionCache cache = new ExtractionCache(null, null, null);
+            cache.materialize(entry, dest);
+            assertFalse(isSameFile(entry, dest, "server/config/a.xml"));
+            assertTrue(isWritable(new File(dest, "server/config/a.xml")));
+
+            FileUtils.cleanDirectory(dest);
+            cache.materialize(entry, dest,
+                    Arrays.<String> asList("data/"), true);
+            assertTrue(Files.isSymbolicLink(new File(dest,
+                    "server/config/a.xml").toPath()));
+            assertFalse(Files.isSymbolicLink(new File(dest, "data/b.txt")
+                    .toPath()));
+        } finally {
+            FileUtils.deleteQuietly(dest);
+        }
+    }
+
+    private static boolean isSameFile(File a, File b, String path)
+            throws IOException {
+        return Files.isSameFile(new File(a, path).toPath(), new File(b, path)
+                .toPath());
+    }
+
+    // File.canWrite is always true for root
+    private static boolean isWritable(File file) throws IOException {
+        return Files.getPosixFilePermissions(file.toPath()).contains(
+                PosixFilePermission.OWNER_WRITE);
+    }
+
+    private File zip() throws IOException {
+        File zip = tmp.newFile();
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+        try {
+            out.putNextEntry(new ZipEntry("server/config/a.xml"));
+            out.write("config".getBytes("UTF-8"));
+            out.putNextEntry(new ZipEntry("data/b.txt"));
+            out.write("data".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return zip;
+    }
+
+    private static class CountingExtractor extends ArchiveExtractor {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        CountingExtractor() {
+            super(1, null);
+        }
+
+        @Override
+        public Result extract(File zipFile, File destDir) throws IOException {
+            count.incrementAndGet();
+            return super.extract(zipFile, destDir);
+        }
+    }
+}
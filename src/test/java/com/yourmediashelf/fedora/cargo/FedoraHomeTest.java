@@ -19,15 +19,49 @@
 
 package com.yourmediashelf.fedora.cargo;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.yourmediashelf.fedora.cargo.fcfg.ServerConfiguration;
+import com.yourmediashelf.fedora.cargo.fcfg.ServerConfigurationParser;
 
 public class FedoraHomeTest {
 
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
     @Test
     public void test() throws Exception {
         InputStream testProps =
@@ -46,4 +80,520 @@ public class FedoraHomeTest {
         FedoraHomeMojo.applyFilters(testProps, baseProps);
     }
 
+    @Test
+    public void testApplyFilters() throws Exception {
+        Properties lookup = new Properties();
+        lookup.setProperty("fedora.home", "${base}/fedora");
+        lookup.setProperty("base", "/opt");
+        lookup.setProperty("a", "${b}");
+        lookup.setProperty("b", "${a}");
+        lookup.setProperty("self", "self.key");
+
+        Properties source = new Properties();
+        source.setProperty("nested", "${fedora.home}/data:${base}");
+        source.setProperty("unresolved", "${no.such.property}/x");
+        source.setProperty("cycle", "${a}");
+        source.setProperty("self.key", "${self}");
+        source.setProperty("unterminated", "x/${base");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        source.store(out, null);
+
+        Properties filtered =
+                FedoraHomeMojo.applyFilters(new ByteArrayInputStream(out
+                        .toByteArray()), lookup);
+        assertEquals("/opt/fedora/data:/opt", filtered.getProperty("nested"));
+        assertEquals("${no.such.property}/x", filtered
+                .getProperty("unresolved"));
+        assertEquals("${a}", filtered.getProperty("cycle"));
+        assertEquals("${self}", filtered.getProperty("self.key"));
+        assertEquals("x/${base", filtered.getProperty("unterminated"));
+    }
+
+    @Test
+    public void testInstall() throws Exception {
+        File home = newFedoraHome();
+        FedoraHome fh = new FedoraHome(getInstallOptions(home));
+        assertFalse(fh.isInstalled());
+        fh.install();
+        assertTrue(fh.isInstalled());
+
+        String fcfg =
+                FileUtils.readFileToString(new File(home,
+                        "server/config/fedora.fcfg"), "UTF-8");
+        assertTrue(fcfg.contains("name=\"fedoraServerPort\" value=\"9090\""));
+        String akubra =
+                FileUtils.readFileToString(new File(home,
+                        "server/config/spring/akubra-llstore.xml"), "UTF-8");
+        assertTrue(!akubra.contains("/tmp/objectStore"));
+        String security =
+                FileUtils.readFileToString(new File(home,
+                        "server/config/spring/web/security.xml"), "UTF-8");
+        assertTrue(security.contains("ref=\"AuthFilterJAAS\""));
+        assertTrue(!security.contains("/BUG"));
+        String testConfig =
+                FileUtils.readFileToString(new File(home,
+                        "server/config/spring/test-config.xml"), "UTF-8");
+        assertTrue(testConfig.contains("\n  <bean id=\"testBean\""));
+        assertTrue(!testConfig.contains("TESTONLY"));
+    }
+
+    @Test
+    public void testOverlayInstall() throws Exception {
+        File base = tmp.newFolder("base");
+        FileUtils.copyDirectory(getFixture(), base);
+        String before = Checksums.sha1Tree(base);
+        File home = tmp.newFolder("fedora-home");
+        new ExtractionCache(null, null, null).materialize(base, home,
+                Collections.singleton("data/"), true);
+        new FedoraHome(getInstallOptions(home)).install();
+
+        // rewritten files were replaced, the rest is still linked
+        assertEquals(before, Checksums.sha1Tree(base));
+        String akubra = "server/config/spring/akubra-llstore.xml";
+        assertFalse(FileUtils.contentEquals(new File(base, akubra), new File(
+                home, akubra)));
+        String pdp = "server/config/spring/fesl/module/fesl-pdp.xml";
+        assertTrue(Files.isSameFile(new File(base, pdp).toPath(), new File(
+                home, pdp).toPath()));
+    }
+
+    @Test
+    public void testBatchInstall() throws Exception {
+        File template = tmp.newFolder("template");
+        FileUtils.copyDirectory(getFixture(), template);
+        File derby = new File(tmp.getRoot(), "derby");
+        File mysql = new File(tmp.getRoot(), "mysql");
+
+        Properties defaults = new Properties();
+        defaults.putAll(getInstallProperties(derby));
+        defaults.remove(InstallOptions.FEDORA_HOME);
+        StringWriter manifest = new StringWriter();
+        defaults.store(manifest, null);
+        manifest.write("[derby]\nfedora.home=" + derby.getPath() + "\n");
+        manifest.write("[mysql]\nfedora.home=" + mysql.getPath() + "\n" +
+                "database=mysql\n" +
+                "database.jdbcURL=jdbc:mysql://localhost/fedora3\n");
+        File file = tmp.newFile("homes.manifest");
+        FileUtils.writeStringToFile(file, manifest.toString(), "ISO-8859-1");
+
+        FedoraHomeBatch batch = new FedoraHomeBatch(2, template);
+        batch.load(file);
+        List<FedoraHomeBatch.Outcome> outcomes = batch.run();
+        assertEquals(2, outcomes.size());
+        assertEquals("derby", outcomes.get(0).getName());
+        assertEquals("mysql", outcomes.get(1).getName());
+        for (FedoraHomeBatch.Outcome outcome : outcomes) {
+            assertTrue(String.valueOf(outcome.getError()), outcome
+                    .isSuccess());
+        }
+        assertEquals("localDerbyPool", parseFcfg(
+                new File(derby, "server/config/fedora.fcfg"))
+                .getModuleConfiguration(
+                        "org.fcrepo.server.storage.DOManager")
+                .getParameter("storagePool"));
+        assertEquals("localMySQLPool", parseFcfg(
+                new File(mysql, "server/config/fedora.fcfg"))
+                .getModuleConfiguration(
+                        "org.fcrepo.server.storage.DOManager")
+                .getParameter("storagePool"));
+
+        try {
+            batch.add("again", Collections.singletonMap(
+                    InstallOptions.FEDORA_HOME, derby.getPath()));
+            fail("installs may not share a FEDORA_HOME");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBatchInstallIsolation() throws Exception {
+        String pdp = "server/config/spring/fesl/module/fesl-pdp.xml";
+        File dir = tmp.newFolder("template");
+        FileUtils.copyDirectory(getFixture(), dir);
+        for (File template : new File[] {dir, zipFixture("")}) {
+            File a = new File(tmp.getRoot(), "a-" + template.getName());
+            File b = new File(tmp.getRoot(), "b-" + template.getName());
+            FedoraHomeBatch batch = new FedoraHomeBatch(2, template);
+            batch.add("a", getInstallProperties(a));
+            batch.add("b", getInstallProperties(b));
+            for (FedoraHomeBatch.Outcome outcome : batch.run()) {
+                assertTrue(String.valueOf(outcome.getError()), outcome
+                        .isSuccess());
+            }
+            String before = FileUtils.readFileToString(new File(b, pdp));
+
+            // an in-place write, as by an editor that preserves links
+            boolean written;
+            try {
+                FileUtils.writeStringToFile(new File(a, pdp), "<!-- -->",
+                        true);
+                written = true;
+            } catch (IOException e) {
+                // a read-only file linked from the extracted zip
+                written = false;
+            }
+            if (template.isDirectory()) {
+                assertTrue(written);
+                assertFalse(Files.isSameFile(new File(a, pdp).toPath(),
+                        new File(dir, pdp).toPath()));
+                assertEquals(FileUtils.readFileToString(new File(
+                        getFixture(), pdp)), FileUtils.readFileToString(
+                        new File(dir, pdp)));
+            } else {
+                assertFalse(Files.getPosixFilePermissions(
+                        new File(a, pdp).toPath()).contains(
+                        PosixFilePermission.OWNER_WRITE));
+                // root may write regardless of permissions
+                if (written) {
+                    continue;
+                }
+            }
+            assertEquals(before, FileUtils.readFileToString(new File(b, pdp)));
+        }
+    }
+
+    @Test
+    public void testBatchOutput() throws Exception {
+        File template = tmp.newFolder("template");
+        FileUtils.copyDirectory(getFixture(), template);
+        FedoraHomeBatch batch = new FedoraHomeBatch(2, template);
+        for (String name : new String[] {"a", "b"}) {
+            batch.add(name, getInstallProperties(new File(tmp.getRoot(),
+                    name)));
+        }
+        PrintStream out = System.out;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured, true));
+        try {
+            batch.run();
+            System.out.println("after");
+        } finally {
+            System.setOut(out);
+        }
+
+        List<String> lines =
+                Arrays.asList(captured.toString().split("\r?\n"));
+        assertTrue(lines.contains("[a] \tConfiguring fedora.fcfg"));
+        assertTrue(lines.contains("[b] \tConfiguring fedora.fcfg"));
+        for (String line : lines.subList(0, lines.size() - 1)) {
+            assertTrue(line, line.startsWith("[a] ") ||
+                    line.startsWith("[b] "));
+        }
+        // the output is restored once the installs are done
+        assertEquals("after", lines.get(lines.size() - 1));
+    }
+
+    @Test
+    public void testIncrementalInstall() throws Exception {
+        File home = newFedoraHome();
+        File fcfg = new File(home, "server/config/fedora.fcfg");
+        File security = new File(home, "server/config/spring/web/security.xml");
+
+        new FedoraHome(getInstallOptions(home)).install();
+        String installed = FileUtils.readFileToString(security, "UTF-8");
+        fcfg.setLastModified(0);
+
+        // unchanged inputs: nothing is rewritten
+        new FedoraHome(getInstallOptions(home)).install();
+        assertEquals(0, fcfg.lastModified());
+
+        // a restored template is configured again
+        FileUtils.copyFile(new File(getFixture(),
+                "server/config/spring/web/security.xml"), security);
+        new FedoraHome(getInstallOptions(home)).install();
+        assertEquals(installed, FileUtils.readFileToString(security, "UTF-8"));
+        assertEquals(0, fcfg.lastModified());
+
+        // changed options: fedora.fcfg is configured again
+        Map<String, String> props = getInstallProperties(home);
+        props.put(InstallOptions.TOMCAT_HTTP_PORT, "9191");
+        new FedoraHome(new InstallOptions(props)).install();
+        assertTrue(fcfg.lastModified() != 0);
+    }
+
+    @Test
+    public void testReinstallFromCache() throws Exception {
+        File entry = tmp.newFolder("entry");
+        FileUtils.copyDirectory(getFixture(), entry);
+        ExtractionCache cache = new ExtractionCache(null, null, null);
+        for (boolean overlay : new boolean[] {false, true}) {
+            File home = tmp.newFolder("fedora-home-" + overlay);
+            File fcfg = new File(home, "server/config/fedora.fcfg");
+            File security =
+                    new File(home, "server/config/spring/web/security.xml");
+            assertFalse(new FedoraHome(getInstallOptions(home)).isCurrent(
+                    entry.getName()));
+            FedoraHomeMojo.install(new FedoraHome(getInstallOptions(home)),
+                    cache, entry, home, overlay);
+            assertTrue(new FedoraHome(getInstallOptions(home)).isCurrent(
+                    entry.getName()));
+            String installed = FileUtils.readFileToString(security, "UTF-8");
+            fcfg.setLastModified(0);
+            security.setLastModified(0);
+
+            // the configured files are neither restored nor rewritten
+            FedoraHomeMojo.install(new FedoraHome(getInstallOptions(home)),
+                    cache, entry, home, overlay);
+            assertEquals(0, fcfg.lastModified());
+            assertEquals(0, security.lastModified());
+            assertEquals(installed, FileUtils.readFileToString(security,
+                    "UTF-8"));
+
+            // changed options: the files are restored and configured again
+            Map<String, String> props = getInstallProperties(home);
+            props.put(InstallOptions.TOMCAT_HTTP_PORT, "9191");
+            assertFalse(new FedoraHome(new InstallOptions(props)).isCurrent(
+                    entry.getName()));
+            FedoraHomeMojo.install(new FedoraHome(new InstallOptions(props)),
+                    cache, entry, home, overlay);
+            assertTrue(fcfg.lastModified() != 0);
+            assertTrue(FileUtils.readFileToString(fcfg, "UTF-8").contains(
+                    "name=\"fedoraServerPort\" value=\"9191\""));
+        }
+    }
+
+    @Test
+    public void testConfigStepDependencies() throws Exception {
+        File home = newFedoraHome();
+        Map<String, String> props = getInstallProperties(home);
+        props.put(InstallOptions.FESL_AUTHZ_ENABLED, "true");
+        Map<String, ConfigStep> steps = new HashMap<String, ConfigStep>();
+        List<ConfigStep> list =
+                new FedoraHome(new InstallOptions(props)).getConfigSteps();
+        for (ConfigStep step : list) {
+            steps.put(step.getName(), step);
+        }
+        InstallPipeline pipeline =
+                new InstallPipeline(list, new InstallState(home,
+                        new InstallOptions(props)), false);
+
+        assertTrue(pipeline.getDependencies(steps.get("fedora.fcfg"))
+                .isEmpty());
+        assertTrue(pipeline.getDependencies(steps.get("security.xml"))
+                .isEmpty());
+        Set<ConfigStep> testConfigDeps =
+                pipeline.getDependencies(steps.get("spring test configs"));
+        assertTrue(testConfigDeps.contains(steps.get("akubra-llstore.xml")));
+        assertTrue(testConfigDeps.contains(steps.get("security.xml")));
+        assertFalse(testConfigDeps.contains(steps.get("fedora.fcfg")));
+    }
+
+    @Test
+    public void testCopyFESLConfigs() throws Exception {
+        File home = newFedoraHome();
+        Map<String, String> props = getInstallProperties(home);
+        props.put(InstallOptions.FESL_AUTHZ_ENABLED, "true");
+        new FedoraHome(new InstallOptions(props)).install();
+
+        File src =
+                new File(home,
+                        "server/config/spring/fesl/web/fesl-security.xml");
+        File copy =
+                new File(home, "server/config/spring/web/fesl-security.xml");
+        assertTrue(FileUtils.contentEquals(src, copy));
+        assertTrue(FileUtils.contentEquals(new File(home,
+                "server/config/spring/fesl/module/fesl-pdp.xml"), new File(
+                home, "server/config/spring/fesl-pdp.xml")));
+
+        // an up-to-date copy is left alone, a stale one replaced
+        FileCopier copier = new FileCopier(2);
+        assertFalse(copier.copy(src, copy));
+        FileUtils.writeStringToFile(copy, "stale", "UTF-8");
+        assertTrue(copier.copy(src, copy));
+        assertTrue(FileUtils.contentEquals(src, copy));
+        assertEquals(1, copier.getSkipped());
+        assertEquals(1, copier.getCopied());
+    }
+
+    @Test
+    public void testPerformanceProfile() throws Exception {
+        File home = newFedoraHome();
+        Map<String, String> props = getInstallProperties(home);
+        props.put(InstallOptions.PERFORMANCE_PROFILE,
+                PerformanceProfile.CI_FAST);
+        props.put(PerformanceProfile.OVERRIDE_PREFIX +
+                "datastore.localDerbyPool:maxIdle", "7");
+        new FedoraHome(new InstallOptions(props)).install();
+
+        ServerConfiguration config = parseFcfg(new File(home,
+                "server/config/fedora.fcfg"));
+        assertEquals("true", config.getModuleConfiguration(
+                "org.fcrepo.server.resourceIndex.ResourceIndex").getParameter(
+                "syncUpdates"));
+        assertEquals("7", config.getDatastoreConfiguration("localDerbyPool")
+                .getParameter("maxIdle"));
+        assertEquals("1", config.getDatastoreConfiguration(
+                "localMulgaraTriplestore").getParameter(
+                "autoFlushDormantSeconds"));
+
+        // the values are sized for the machine
+        Map<String, String> small =
+                new PerformanceProfile(PerformanceProfile.THROUGHPUT, 1,
+                        256L << 20).getProperties("p");
+        Map<String, String> large =
+                new PerformanceProfile(PerformanceProfile.THROUGHPUT, 16,
+                        4096L << 20).getProperties("p");
+        assertEquals("20", small.get("datastore.p:maxActive"));
+        assertEquals("128", large.get("datastore.p:maxActive"));
+        assertEquals("512", small.get(
+                "module.org.fcrepo.server.storage.DOManager:readerCacheSize"));
+        assertEquals("5000", large.get(
+                "module.org.fcrepo.server.storage.DOManager:readerCacheSize"));
+
+        // the heap is that of the JVM Fedora runs in, if known
+        assertEquals(512L << 20, PerformanceProfile.parseSize("512m"));
+        assertEquals(2L << 30, PerformanceProfile.parseSize("2G"));
+        assertEquals(1024, PerformanceProfile.parseSize("1024"));
+        props.put(InstallOptions.PERFORMANCE_PROFILE,
+                PerformanceProfile.THROUGHPUT);
+        props.put(InstallOptions.PERFORMANCE_HEAP, "4g");
+        assertEquals("5000", PerformanceProfile.forOptions(
+                new InstallOptions(props)).getProperties("p").get(
+                "module.org.fcrepo.server.storage.DOManager:readerCacheSize"));
+        props.put(InstallOptions.PERFORMANCE_HEAP, "256m");
+        assertEquals("512", PerformanceProfile.forOptions(
+                new InstallOptions(props)).getProperties("p").get(
+                "module.org.fcrepo.server.storage.DOManager:readerCacheSize"));
+    }
+
+    @Test
+    public void testZipDistribution() throws Exception {
+        File fixture = getFixture();
+        File archive = zipFixture("fedora-home/");
+
+        String base = "/server/fedora-internal-use/config/fedora-base.fcfg";
+        File fcfg = new File(fixture, base);
+        ZipDistribution dist =
+                new ZipDistribution(archive, "fedora-home", 4 * fcfg.length());
+        try {
+            assertTrue(dist.contains(base));
+            assertFalse(dist.contains("/server"));
+            assertFalse(dist.contains("missing"));
+
+            // templates are read straight from the archive, and cached
+            InputStream in = dist.get(base);
+            assertNotNull(new ServerConfigurationParser(in).parse()
+                    .getModuleConfiguration(
+                            "org.fcrepo.server.storage.DOManager"));
+            assertEquals(1, dist.getCachedEntries());
+            assertTrue(IOUtils.contentEquals(new FileInputStream(fcfg), dist
+                    .get(base)));
+            assertTrue(IOUtils.contentEquals(new FileInputStream(fcfg), dist
+                    .getURL(base).openStream()));
+            assertEquals(null, dist.getURL("missing"));
+        } finally {
+            dist.close();
+        }
+    }
+
+    @Test
+    public void testPipelineFailFast() throws Exception {
+        File home = newFedoraHome();
+        final Set<String> ran =
+                Collections.synchronizedSet(new HashSet<String>());
+        List<ConfigStep> steps = new ArrayList<ConfigStep>();
+        steps.add(new TestStep("a", new File(home, "a"), ran, true));
+        steps.add(new TestStep("b", new File(home, "b"), ran, true));
+        steps.add(new TestStep("a2", new File(home, "a"), ran, false));
+        try {
+            new InstallPipeline(steps, new InstallState(home,
+                    getInstallOptions(home)), false).run(2);
+            fail("expected InstallationFailedException");
+        } catch (InstallationFailedException e) {
+            assertEquals(1, e.getSuppressed().length);
+        }
+        // a2 depends on a, which failed
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b")),
+                ran);
+    }
+
+    /**
+     * @return a zip of the fixture, its entries prefixed with prefix
+     */
+    private File zipFixture(String prefix) throws Exception {
+        File fixture = getFixture();
+        File archive = File.createTempFile("fedora-home", ".zip", tmp
+                .getRoot());
+        ZipOutputStream out =
+                new ZipOutputStream(new FileOutputStream(archive));
+        try {
+            for (File f : FileUtils.listFiles(fixture, null, true)) {
+                out.putNextEntry(new ZipEntry(prefix +
+                        f.getAbsolutePath().substring(
+                                fixture.getAbsolutePath().length() + 1)
+                                .replace(File.separatorChar, '/')));
+                FileUtils.copyFile(f, out);
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return archive;
+    }
+
+    private File getFixture() throws Exception {
+        return new File(getClass().getClassLoader().getResource("fedora-home")
+                .toURI());
+    }
+
+    private static ServerConfiguration parseFcfg(File file) throws Exception {
+        InputStream in = new FileInputStream(file);
+        try {
+            return new ServerConfigurationParser(in).parse();
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private File newFedoraHome() throws Exception {
+        File home = tmp.newFolder("fedora-home");
+        FileUtils.copyDirectory(getFixture(), home);
+        return home;
+    }
+
+    private Map<String, String> getInstallProperties(File home)
+            throws Exception {
+        Properties lookup = new Properties();
+        lookup.setProperty("fedora.home", home.getAbsolutePath());
+        lookup.setProperty("fedora.port", "9090");
+        Properties props =
+                FedoraHomeMojo.applyFilters(getClass().getClassLoader()
+                        .getResourceAsStream("test-install.properties"), lookup);
+        props.setProperty(InstallOptions.TEST_SPRING_CONFIGS, "true");
+        return new HashMap<String, String>(FedoraHome.loadMap(props));
+    }
+
+    private InstallOptions getInstallOptions(File home) throws Exception {
+        return new InstallOptions(getInstallProperties(home));
+    }
+
+    private static class TestStep extends ConfigStep {
+
+        private final File output;
+
+        private final Set<String> ran;
+
+        private final boolean fail;
+
+        TestStep(String name, File output, Set<String> ran, boolean fail) {
+            super(name);
+            this.output = output;
+            this.ran = ran;
+            this.fail = fail;
+        }
+
+        @Override
+        public List<File> getOutputs() {
+            return Collections.singletonList(output);
+        }
+
+        @Override
+        public void run() throws InstallationFailedException {
+            ran.add(getName());
+            if (fail) {
+                throw new InstallationFailedException(getName() + " failed");
+            }
+        }
+    }
 }
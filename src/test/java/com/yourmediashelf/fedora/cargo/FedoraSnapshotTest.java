@@ -0,0 +1,202 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FedoraSnapshotTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testKey() throws Exception {
+        File home = newFedoraHome();
+        File war = tmp.newFile("fedora.war");
+        FileUtils.writeStringToFile(war, "war");
+        String key = FedoraSnapshot.key(home, war);
+        assertEquals(key, FedoraSnapshot.key(home, war));
+
+        // Fedora's runtime state is not part of the key
+        write(home, "data/objectStore/a", "object");
+        assertEquals(key, FedoraSnapshot.key(home, war));
+
+        FileUtils.writeStringToFile(war, "another war");
+        String warKey = FedoraSnapshot.key(home, war);
+        assertNotEquals(key, warKey);
+
+        write(home, "server/config/fedora.fcfg", "<server/>");
+        assertNotEquals(warKey, FedoraSnapshot.key(home, war));
+    }
+
+    @Test
+    public void testCreateRestore() throws Exception {
+        File home = newFedoraHome();
+        write(home, "data/objectStore/info%3Afedora%2Ffedora-system", "o");
+        write(home, "data/resourceIndex/tripleStore.dat", "triples");
+        write(home, "derby/fedora3/seg0/c10.dat", "table");
+        write(home, "derby/fedora3/service.properties", "derby");
+        String data = Checksums.sha1Tree(new File(home, "data"));
+        String derby = Checksums.sha1Tree(new File(home, "derby"));
+        String config = Checksums.sha1Tree(new File(home, "server"));
+
+        FedoraSnapshot snapshots =
+                new FedoraSnapshot(tmp.newFolder("snapshots"), 0, null);
+        assertTrue(snapshots.isEmpty());
+        assertFalse(snapshots.exists("key"));
+        snapshots.create("key", home);
+        assertTrue(snapshots.exists("key"));
+        assertFalse(snapshots.isEmpty());
+
+        // Fedora changes its state, and the configuration changes
+        write(home, "data/objectStore/info%3Afedora%2Ffedora-system", "o2");
+        write(home, "data/objectStore/demo%3A1", "ingested");
+        FileUtils.deleteDirectory(new File(home, "derby/fedora3/seg0"));
+        write(home, "server/config/extra.xml", "<extra/>");
+        String changedConfig = Checksums.sha1Tree(new File(home, "server"));
+        assertNotEquals(config, changedConfig);
+
+        ArchiveExtractor extractor = new ArchiveExtractor(2, null);
+        assertFalse(snapshots.restore("other", home, extractor));
+        assertTrue(snapshots.restore("key", home, extractor));
+        assertEquals(data, Checksums.sha1Tree(new File(home, "data")));
+        assertEquals(derby, Checksums.sha1Tree(new File(home, "derby")));
+        assertFalse(new File(home, "data/objectStore/demo%3A1").exists());
+        // only the snapshot directories are restored
+        assertEquals(changedConfig, Checksums.sha1Tree(new File(home,
+                "server")));
+    }
+
+    @Test
+    public void testRetain() throws Exception {
+        File dir = tmp.newFolder("snapshots");
+        File home = newFedoraHome();
+        write(home, "data/a", "a");
+        FedoraSnapshot snapshots = new FedoraSnapshot(dir, 2, null);
+        snapshots.create("1", home);
+        snapshots.create("2", home);
+        setAge(dir, "1", 3);
+        setAge(dir, "2", 2);
+        // restoring marks a snapshot as recently used
+        snapshots.restore("1", home, new ArchiveExtractor(1, null));
+        snapshots.create("3", home);
+        assertEquals(new HashSet<String>(Arrays.asList("1.zip", "3.zip")),
+                new HashSet<String>(Arrays.asList(dir.list())));
+
+        // 0 keeps them all
+        snapshots = new FedoraSnapshot(dir, 0, null);
+        snapshots.create("4", home);
+        snapshots.create("5", home);
+        assertEquals(4, dir.list().length);
+    }
+
+    @Test
+    public void testSnapshotMojo() throws Exception {
+        File home = newFedoraHome();
+        write(home, "data/objectStore/a", "object");
+        File war = tmp.newFile("fedora.war");
+        TestSnapshotMojo mojo = new TestSnapshotMojo(war);
+        mojo.fedoraHomeDir = home;
+        mojo.snapshotDir = tmp.newFolder("snapshots");
+        mojo.snapshotRetain = 3;
+
+        mojo.doExecute();
+        assertEquals(1, mojo.stopped);
+        String key = FedoraSnapshot.key(home, war);
+        assertTrue(mojo.getSnapshots().exists(key));
+
+        // up to date: the container is not stopped again
+        mojo.doExecute();
+        assertEquals(1, mojo.stopped);
+
+        // a container that may not be stopped is not snapshotted
+        FileUtils.writeStringToFile(war, "another war");
+        mojo.stoppable = false;
+        mojo.doExecute();
+        assertFalse(mojo.getSnapshots().exists(FedoraSnapshot.key(home, war)));
+    }
+
+    private File newFedoraHome() throws Exception {
+        File home = tmp.newFolder();
+        FileUtils.copyDirectory(new File(getClass().getClassLoader()
+                .getResource("fedora-home").toURI()), home);
+        return home;
+    }
+
+    private static void write(File home, String path, String content)
+            throws Exception {
+        FileUtils.writeStringToFile(new File(home, path), content);
+    }
+
+    private static void setAge(File dir, String key, int minutes) {
+        assertTrue(new File(dir, key + ".zip").setLastModified(System
+                .currentTimeMillis() -
+                minutes * 60000L));
+    }
+
+    /**
+     * Runs fedora-snapshot without a container: stopping it only counts.
+     */
+    private static class TestSnapshotMojo extends FedoraSnapshotMojo {
+
+        private final File war;
+
+        private boolean stoppable = true;
+
+        private int stopped;
+
+        TestSnapshotMojo(File war) {
+            this.war = war;
+        }
+
+        @Override
+        protected File getWarFile() {
+            return war;
+        }
+
+        @Override
+        protected boolean runStopped(Callable<Void> task)
+                throws MojoExecutionException {
+            if (!stoppable) {
+                return false;
+            }
+            stopped++;
+            try {
+                task.call();
+            } catch (Exception e) {
+                throw new MojoExecutionException(e.getMessage(), e);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MarkerRewriterTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testRewrite() throws Exception {
+        MarkerRewriter rewriter =
+                new MarkerRewriter().replace("${x}", "y").unwrap(
+                        "<!-- TESTONLY", "/TESTONLY -->").delete(
+                        "<!-- BUG", "/BUG -->", false);
+        assertEquals("a y b\n\n<bean/>\n c", rewrite(rewriter,
+                "a ${x} b<!-- BUG <x/> /BUG -->\n<!-- TESTONLY" +
+                        "\n<bean/>\n/TESTONLY --> c"));
+    }
+
+    @Test
+    public void testUnterminatedBlock() throws Exception {
+        // a later match of another rule, inside and after the block
+        MarkerRewriter rewriter =
+                new MarkerRewriter().delete("<B", "B>", false).replace("X",
+                        "Y").unwrap("<T", "T>");
+        String content = "1<B X <T 2 T> X";
+        assertEquals("1<B Y  2  Y", rewrite(rewriter, content));
+        assertEquals(regex(content), rewrite(rewriter, content));
+
+        // a terminated block of the same rule before it
+        rewriter = new MarkerRewriter().delete("<B", "B>", false);
+        assertEquals("12<B 3", rewrite(rewriter, "1<B x B>2<B 3"));
+    }
+
+    @Test
+    public void testFirstOnly() throws Exception {
+        MarkerRewriter rewriter = new MarkerRewriter().delete("<B", "B>", true);
+        assertEquals("12<B y B>3", rewrite(rewriter, "1<B x B>2<B y B>3"));
+    }
+
+    @Test
+    public void testEmptyBlock() throws Exception {
+        // a block needs at least one byte between its delimiters
+        MarkerRewriter rewriter =
+                new MarkerRewriter().delete("<B", "B>", false);
+        String content = "1<BB>2";
+        assertEquals(content, rewrite(rewriter, content));
+
+        // so the close delimiter right after the open one is content
+        content = "1<BB>2B>3";
+        assertEquals("13", rewrite(rewriter, content));
+        assertEquals(Pattern.compile("(?s)<B(.+?)B>").matcher(content)
+                .replaceAll(""), rewrite(rewriter, content));
+    }
+
+    @Test
+    public void testNoMatch() throws Exception {
+        MarkerRewriter rewriter =
+                new MarkerRewriter().replace("${x}", "y").delete("<B", "B>",
+                        false);
+        for (String content : new String[] {"no markers", "1<B 2"}) {
+            File dir = tmp.newFolder();
+            File file = new File(dir, "f.xml");
+            FileUtils.writeStringToFile(file, content, "UTF-8");
+            file.setLastModified(0);
+
+            assertFalse(rewriter.rewrite(file));
+            assertEquals(content, FileUtils.readFileToString(file, "UTF-8"));
+            assertEquals(0, file.lastModified());
+            assertEquals(1, dir.list().length);
+        }
+
+        File file = tmp.newFile();
+        FileUtils.writeStringToFile(file, "${x}", "UTF-8");
+        assertTrue(rewriter.rewrite(file));
+    }
+
+    private String rewrite(MarkerRewriter rewriter, String content)
+            throws Exception {
+        File file = tmp.newFile();
+        FileUtils.writeStringToFile(file, content, "UTF-8");
+        rewriter.rewrite(file);
+        return FileUtils.readFileToString(file, "UTF-8");
+    }
+
+    /**
+     * Applies the regular expressions equivalent to the rules of
+     * testUnterminatedBlock.
+     */
+    private static String regex(String content) {
+        content = Pattern.compile("(?s)<B(.+?)B>").matcher(content)
+                .replaceAll("");
+        content = content.replace("X", "Y");
+        Matcher m = Pattern.compile("(?s)<T(.+?)T>").matcher(content);
+        return m.replaceAll("$1");
+    }
+}
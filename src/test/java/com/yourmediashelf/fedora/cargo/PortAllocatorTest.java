@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PortAllocatorTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testAllocate() throws Exception {
+        File dir = tmp.newFolder();
+        PortAllocator allocator = new PortAllocator(dir);
+        int port = allocator.allocate();
+        int other = allocator.allocate();
+        try {
+            assertNotEquals(port, other);
+            assertTrue(new File(dir, port + ".lock").isFile());
+            // the port is free to bind until the container does
+            new ServerSocket(port).close();
+            // but not to reserve again, by this or another allocator
+            assertFalse(allocator.reserve(port));
+            assertFalse(new PortAllocator(dir).reserve(port));
+        } finally {
+            PortAllocator.release(port);
+            PortAllocator.release(other);
+        }
+        assertTrue(allocator.reserve(port));
+        PortAllocator.release(port);
+    }
+
+    @Test
+    public void testReserveConflict() throws Exception {
+        File dir = tmp.newFolder();
+        PortAllocator allocator = new PortAllocator(dir);
+        int port = allocator.allocate();
+        PortAllocator.release(port);
+
+        // a reservation held elsewhere
+        FileChannel channel =
+                new RandomAccessFile(new File(dir, port + ".lock"), "rw")
+                        .getChannel();
+        FileLock lock = channel.lock();
+        try {
+            assertFalse(allocator.reserve(port));
+        } finally {
+            lock.release();
+            channel.close();
+        }
+        assertTrue(allocator.reserve(port));
+        PortAllocator.release(port);
+    }
+
+    @Test
+    public void testReserveAll() throws Exception {
+        File dir = tmp.newFolder();
+        PortAllocator allocator = new PortAllocator(dir);
+        int a = allocator.allocate();
+        int b = allocator.allocate();
+        int taken = allocator.allocate();
+        PortAllocator.release(a);
+        PortAllocator.release(b);
+        try {
+            // the ports reserved before the conflict are released again
+            assertFalse(allocator.reserveAll(a, b, taken));
+            assertTrue(allocator.reserve(a));
+            assertTrue(allocator.reserve(b));
+            PortAllocator.release(a);
+            PortAllocator.release(b);
+        } finally {
+            PortAllocator.release(taken);
+        }
+        assertTrue(allocator.reserveAll(a, b, taken));
+        for (int port : new int[] {a, b, taken}) {
+            PortAllocator.release(port);
+        }
+    }
+
+    @Test
+    public void testRelease() throws Exception {
+        File dir = tmp.newFolder();
+        PortAllocator allocator = new PortAllocator(dir);
+        int port = allocator.allocate();
+        PortAllocator.release(port);
+        // a second release, or one of a port never reserved, is harmless
+        PortAllocator.release(port);
+        PortAllocator.release(0);
+        assertTrue(allocator.reserve(port));
+        PortAllocator.release(port);
+    }
+}
@@ -0,0 +1,225 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class ReadinessMonitorTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private HttpServer server;
+
+    private String url;
+
+    /** the number of the probe that first succeeds */
+    private final AtomicInteger readyAt =
+            new AtomicInteger(Integer.MAX_VALUE);
+
+    private final List<Long> probes =
+            Collections.synchronizedList(new ArrayList<Long>());
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/describe", new HttpHandler() {
+
+            public void handle(HttpExchange exchange) throws IOException {
+                probes.add(System.currentTimeMillis());
+                exchange.sendResponseHeaders(
+                        probes.size() >= readyAt.get() ? 200 : 503, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        url = "http://localhost:" + server.getAddress().getPort() +
+                "/describe";
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testBackoff() throws Exception {
+        readyAt.set(5);
+        long start = System.currentTimeMillis();
+        Map<String, Long> phases =
+                new ReadinessMonitor(url, null, 0, 30000, null).await(start);
+        assertEquals(5, probes.size());
+        // without any output, the whole wait is Fedora init
+        assertEquals(Collections.singleton("Fedora init"), phases.keySet());
+
+        // 100, 200, 400 and 800 ms between the probes
+        long previous = 0;
+        for (int i = 1; i < probes.size(); i++) {
+            long interval = probes.get(i) - probes.get(i - 1);
+            assertTrue("interval " + i + " was " + interval + " ms",
+                    interval >= 100 << (i - 1) && interval > previous);
+            previous = interval;
+        }
+    }
+
+    @Test
+    public void testMarkers() throws Exception {
+        final File log = tmp.newFile("container.log");
+        FileUtils.writeStringToFile(log, "from a previous run\n");
+        final long offset = log.length();
+        Thread container = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    append(log, "JVM up\n");
+                    Thread.sleep(200);
+                    append(log, "INFO: " +
+                            ReadinessMonitor.TOMCAT_INIT_MARKER + " 42 ms\n");
+                    Thread.sleep(200);
+                    // a marker split across writes is still seen
+                    append(log, "INFO: Server ");
+                    Thread.sleep(100);
+                    append(log, "startup in 300 ms\n");
+                    Thread.sleep(1500);
+                    readyAt.set(probes.size() + 3);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        long start = System.currentTimeMillis();
+        container.start();
+        Map<String, Long> phases =
+                new ReadinessMonitor(url, log, offset, 30000, null)
+                        .await(start);
+        container.join();
+
+        assertArrayEquals(ReadinessMonitor.PHASES, phases.keySet().toArray());
+        long total = 0;
+        for (long duration : phases.values()) {
+            total += duration;
+        }
+        assertTrue(total <= System.currentTimeMillis() - start);
+        assertTrue(phases.get("Tomcat init") >= 150);
+        assertTrue(phases.get("WAR deploy") >= 250);
+
+        // once Tomcat has started, probes are back at the shortest interval
+        int n = probes.size();
+        assertTrue(probes.get(n - 1) - probes.get(n - 2) < 500);
+        assertTrue(probes.get(n - 2) - probes.get(n - 3) < 500);
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        long start = System.currentTimeMillis();
+        try {
+            new ReadinessMonitor(url, null, 0, 1000, null).await(start);
+            fail("Fedora never answers");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(url));
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("waited " + elapsed + " ms",
+                elapsed >= 1000 && elapsed < 3000);
+        assertFalse(probes.isEmpty());
+    }
+
+    @Test
+    public void testLiveness() throws Exception {
+        final AtomicInteger checks = new AtomicInteger();
+        ReadinessMonitor monitor =
+                new ReadinessMonitor(url, null, 0, 60000, null);
+        monitor.setLiveness(new ReadinessMonitor.Liveness() {
+
+            public boolean isAlive() {
+                return checks.incrementAndGet() < 3;
+            }
+        });
+        long start = System.currentTimeMillis();
+        try {
+            monitor.await(start);
+            fail("the container exited");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("exited"));
+        }
+        assertEquals(3, checks.get());
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void testForInstance() throws Exception {
+        if (!new File("/proc").isDirectory()) {
+            return;
+        }
+        // a JVM that never appears is only assumed alive for a while
+        ReadinessMonitor.Liveness never =
+                ReadinessMonitor.forInstance(UUID.randomUUID().toString(),
+                        200);
+        assertTrue(never.isAlive());
+        Thread.sleep(300);
+        assertFalse(never.isAlive());
+
+        String id = UUID.randomUUID().toString();
+        ReadinessMonitor.Liveness liveness =
+                ReadinessMonitor.forInstance(id, 60000);
+        assertTrue(liveness.isAlive());
+        // the property is passed as sh's $0, so that it is on the command line
+        Process process = new ProcessBuilder("sh", "-c", "sleep 60",
+                "-D" + ContainerRegistry.INSTANCE_PROPERTY + "=" + id).start();
+        try {
+            // finds the pid, then checks it
+            assertTrue(liveness.isAlive());
+            assertTrue(liveness.isAlive());
+        } finally {
+            process.destroy();
+            process.waitFor();
+        }
+        assertFalse(liveness.isAlive());
+    }
+
+    private static void append(File file, String s) throws IOException {
+        FileUtils.writeStringToFile(file, s, true);
+    }
+}
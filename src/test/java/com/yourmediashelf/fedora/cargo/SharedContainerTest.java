@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.yourmediashelf.fedora.cargo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.codehaus.cargo.container.LocalContainer;
+import org.junit.Test;
+
+public class SharedContainerTest {
+
+    @Test
+    public void testGetStoppable() {
+        SharedContainer shared = SharedContainer.get("testGetStoppable");
+        assertSame(shared, SharedContainer.get("testGetStoppable"));
+        assertFalse(shared.isActive());
+        assertNull(shared.getStoppable("owner"));
+
+        LocalContainer container = newContainer();
+        shared.started(container, "fingerprint", "owner", 2);
+        assertTrue(shared.isActive());
+        // only the owner, whose FEDORA_HOME the container serves, may stop it
+        assertSame(container, shared.getStoppable("owner"));
+        assertNull(shared.getStoppable("other"));
+
+        // and only until another module relies on it
+        shared.attached();
+        assertNull(shared.getStoppable("owner"));
+
+        assertEquals(1, shared.release());
+        assertEquals(0, shared.release());
+        assertFalse(shared.isActive());
+        assertNull(shared.getStoppable("owner"));
+
+        // a container started again may be stopped again
+        shared.started(container, "fingerprint", "owner", 1);
+        assertSame(container, shared.getStoppable("owner"));
+        assertEquals(0, shared.release());
+    }
+
+    private static LocalContainer newContainer() {
+        return (LocalContainer) Proxy.newProxyInstance(
+                SharedContainerTest.class.getClassLoader(),
+                new Class<?>[] {LocalContainer.class},
+                new InvocationHandler() {
+
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) {
+                        throw new UnsupportedOperationException(method
+                                .getName());
+                    }
+                });
+    }
+}
@@ -0,0 +1,376 @@
+/**
+ * Copyright (C) 2012 MediaShelf <http://www.yourmediashelf.com/>
+ *
+ * This file is part of fedora-cargo-plugin.
+ *
+ * fedora-cargo-plugin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * fedora-cargo-plugin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with fedora-cargo-plugin.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.yourmediashelf.fedora.cargo.fcfg;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ServerConfigurationTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final String FCFG =
+            "fedora-home/server/fedora-internal-use/config/fedora-base.fcfg";
+
+    @Test
+    public void testCopy() throws Exception {
+        ServerConfiguration config = parse(getFcfg());
+        ServerConfiguration copy = config.copy();
+        String serialized = serialize(config);
+
+        // same output as the serialize-then-reparse round trip
+        assertEquals(serialized, serialize(copy));
+        assertEquals(serialize(parse(serialized.getBytes("UTF-8"))),
+                serialize(copy));
+
+        // the copy is independent of the original
+        copy.setParameterValue("fedoraServerPort", "9999", true);
+        copy.getModuleConfiguration("org.fcrepo.server.storage.DOManager")
+                .setParameterValue("readerCacheSize", "1", true);
+        copy.getDatastoreConfiguration("localDerbyPool").setParameterValue(
+                "maxActive", "1", true);
+        copy.getParameter("fedoraServerPort", Parameter.class)
+                .getProfileValues().put("test", "x");
+        assertEquals(serialized, serialize(config));
+    }
+
+    @Test
+    public void testApplyProperties() throws Exception {
+        ServerConfiguration config = parse(getFcfg());
+        String role = "org.fcrepo.server.storage.DOManager";
+        ModuleConfiguration module = config.getModuleConfiguration(role);
+
+        Properties props = new Properties();
+        props.setProperty("server:fedoraServerPort", " 9999 ");
+        props.setProperty("module." + role + ":readerCacheSize", "1");
+        props.setProperty("module.new.Role:a", "b");
+        props.setProperty("datastore.localDerbyPool:maxActive", "2");
+        props.setProperty("datastore.newPool:c", "d");
+        props.setProperty("module.new.Role:ignored", " ");
+        config.applyProperties(props);
+
+        assertEquals("9999", config.getParameter("fedoraServerPort"));
+        assertSame(module, config.getModuleConfiguration(role));
+        assertEquals("1", module.getParameter("readerCacheSize"));
+        assertEquals("b", config.getModuleConfiguration("new.Role")
+                .getParameter("a"));
+        assertNull(config.getModuleConfiguration("new.Role").getParameter(
+                "ignored"));
+        assertEquals("2", config.getDatastoreConfiguration("localDerbyPool")
+                .getParameter("maxActive"));
+        assertEquals("d", config.getDatastoreConfiguration("newPool")
+                .getParameter("c"));
+
+        // the lookups follow changes made through the lists
+        config.getModuleConfigurations().remove(module);
+        assertNull(config.getModuleConfiguration(role));
+        ModuleConfiguration replacement =
+                new ModuleConfiguration(new ArrayList<Parameter>(), role,
+                        "y", null);
+        config.getModuleConfigurations().add(0, replacement);
+        assertSame(replacement, config.getModuleConfiguration(role));
+        config.getModuleConfigurations().add(module);
+        assertSame(replacement, config.getModuleConfiguration(role));
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        byte[] fcfg = getFcfg();
+        String original = serialize(parse(fcfg));
+        File a = tmp.newFile("a.fcfg");
+        File b = tmp.newFile("b.fcfg");
+        FileUtils.writeByteArrayToFile(a, fcfg);
+        FileUtils.writeByteArrayToFile(b, fcfg);
+
+        // identical content at different paths is parsed once
+        ServerConfigurationCache cache = new ServerConfigurationCache();
+        ServerConfiguration view = cache.get(a);
+        ServerConfiguration other = cache.get(b);
+        assertEquals(1, cache.getParses());
+        assertEquals(original, serialize(view));
+
+        // views are independent of each other and of the template
+        String role = "org.fcrepo.server.storage.DOManager";
+        String removed = "org.fcrepo.server.search.FieldSearch";
+        Properties props = new Properties();
+        props.setProperty("server:fedoraServerPort", "9999");
+        props.setProperty("module." + role + ":readerCacheSize", "1");
+        props.setProperty("datastore.localDerbyPool:maxActive", "2");
+        view.applyProperties(props);
+        view.getModuleConfigurations().remove(
+                view.getModuleConfiguration(removed));
+        view.getModuleConfigurations().get(0).setClassName("x");
+        assertEquals(original, serialize(other));
+        assertEquals(original, serialize(cache.get(a)));
+
+        ServerConfiguration expected = parse(fcfg);
+        expected.applyProperties(props);
+        expected.getModuleConfigurations().remove(
+                expected.getModuleConfiguration(removed));
+        expected.getModuleConfigurations().get(0).setClassName("x");
+        assertEquals(serialize(expected), serialize(view));
+        assertEquals(serialize(expected), serialize(view.copy()));
+        assertEquals(1, cache.getParses());
+
+        // a changed file is parsed again
+        FileUtils.writeStringToFile(a, new String(fcfg, "UTF-8") + "\n",
+                "UTF-8");
+        assertEquals(original, serialize(cache.get(a)));
+        assertEquals(2, cache.getParses());
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        byte[] fcfg = getFcfg();
+        ServerConfiguration config = parse(fcfg);
+        byte[] snapshot = snapshot(config);
+        assertTrue(snapshot.length < fcfg.length);
+
+        // equivalent to the XML round trip, and stable
+        ServerConfiguration read = readSnapshot(snapshot);
+        assertEquals(serialize(config), serialize(read));
+        assertEquals(serialize(parse(serialize(config).getBytes("UTF-8"))),
+                serialize(read));
+        assertArrayEquals(snapshot, snapshot(read));
+
+        // views are written as they are, not as their template is
+        ServerConfigurationCache cache = new ServerConfigurationCache();
+        File file = tmp.newFile("fedora-base.fcfg");
+        FileUtils.writeByteArrayToFile(file, fcfg);
+        ServerConfiguration view = cache.get(file);
+        view.setParameterValue("fedoraServerPort", "9999", true);
+        view.getModuleConfiguration("org.fcrepo.server.storage.DOManager")
+                .setClassName("x");
+        assertEquals(serialize(view), serialize(readSnapshot(snapshot(view))));
+
+        // snapshots back the cache across processes
+        File dir = tmp.newFolder("snapshots");
+        cache = new ServerConfigurationCache();
+        cache.setDirectory(dir);
+        String expected = serialize(cache.get(file));
+        assertEquals(1, cache.getParses());
+        cache = new ServerConfigurationCache();
+        cache.setDirectory(dir);
+        assertEquals(expected, serialize(cache.get(file)));
+        assertEquals(0, cache.getParses());
+
+        // a corrupt snapshot is parsed again
+        File[] snapshots = dir.listFiles();
+        assertEquals(1, snapshots.length);
+        byte[] corrupt = Arrays.copyOf(snapshot, snapshot.length);
+        Arrays.fill(corrupt, 8, 12, (byte) 0xff);
+        FileUtils.writeByteArrayToFile(snapshots[0], corrupt);
+        cache = new ServerConfigurationCache();
+        cache.setDirectory(dir);
+        assertEquals(expected, serialize(cache.get(file)));
+        assertEquals(1, cache.getParses());
+    }
+
+    @Test
+    public void testSnapshotEncoding() throws Exception {
+        List<Parameter> params = new ArrayList<Parameter>();
+        Map<String, String> profileValues = new HashMap<String, String>();
+        profileValues.put("dev", "<dev>");
+        params.add(new Parameter("a", "x<y & '\u00e9'", true, " \n see ",
+                profileValues));
+        params.add(new Parameter("b", new String("shared"), false, null,
+                null));
+        params.add(new Parameter("c", null, false, null,
+                new HashMap<String, String>()));
+        List<ModuleConfiguration> modules =
+                new ArrayList<ModuleConfiguration>();
+        modules.add(new ModuleConfiguration(Collections
+                .singletonList(new Parameter("d", new String("shared"),
+                        false, null, null)), "r", "c", null));
+        ServerConfiguration config =
+                new ServerConfiguration("s", params, modules,
+                        new ArrayList<DatastoreConfiguration>());
+
+        // null profile values are not serializable as XML, so compare fields
+        ServerConfiguration read = readSnapshot(snapshot(config));
+        assertEquals("s", read.getClassName());
+        assertEquals("c", read.getModuleConfiguration("r").getClassName());
+        Parameter a = read.getParameter("a", Parameter.class);
+        assertEquals(" \n see ", a.getComment());
+        assertEquals("x<y & '\u00e9'", a.getValue());
+        assertTrue(a.getIsFilePath());
+        assertEquals(profileValues, a.getProfileValues());
+        assertNull(read.getParameter("b", Parameter.class).getProfileValues());
+        assertNull(read.getParameter("c"));
+        // repeated strings are read as a single instance
+        assertSame(read.getParameter("b"), read.getModuleConfiguration("r")
+                .getParameter("d"));
+
+        byte[] snapshot = snapshot(config);
+        snapshot[7] = (byte) (ServerConfigurationSnapshot.VERSION + 1);
+        try {
+            readSnapshot(snapshot);
+            fail("read a snapshot of another version");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("version"));
+        }
+        try {
+            readSnapshot(Arrays.copyOf(snapshot(config), 20));
+            fail("read a truncated snapshot");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // corrupt counts and lengths are not allocated
+        byte[] header = Arrays.copyOf(snapshot(config), 8);
+        byte[] huge = {(byte) 0xff, (byte) 0xff, (byte) 0xff, 0x7f};
+        for (byte[] corrupt : new byte[][] {huge, {1, huge[0], huge[1],
+                huge[2], huge[3]}}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(header);
+            out.write(corrupt);
+            try {
+                readSnapshot(out.toByteArray());
+                fail("read a corrupt snapshot");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("exceeds"));
+            }
+        }
+
+        // a count that terminates with a negative value is rejected
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header);
+        out.write(new byte[] {(byte) 0xff, (byte) 0xff, (byte) 0xff,
+                (byte) 0xff, 0x0f, 0, 0});
+        try {
+            readSnapshot(out.toByteArray());
+            fail("read a negative count");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("Malformed"));
+        }
+    }
+
+    @Test
+    public void testSerialize() throws Exception {
+        List<Parameter> params = new ArrayList<Parameter>();
+        Map<String, String> profileValues = new HashMap<String, String>();
+        profileValues.put("dev", "<dev>");
+        params.add(new Parameter("a", "x<y & 'z'", true, " \n\tsee \"a\"\n ",
+                profileValues));
+        List<ModuleConfiguration> modules =
+                new ArrayList<ModuleConfiguration>();
+        modules.add(new ModuleConfiguration(new ArrayList<Parameter>(), "r",
+                "c", "\n  module comment\n  "));
+        ServerConfiguration config =
+                new ServerConfiguration("s", params, modules,
+                        new ArrayList<DatastoreConfiguration>());
+
+        String nl = System.getProperty("line.separator");
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + nl +
+                "<server xmlns=\"http://www.fedora.info/definitions/1/0/config/\" class=\"s\">" +
+                nl + "  <param name=\"a\" value=\"x&lt;y &amp; &apos;z&apos;\"" +
+                " isFilePath=\"true\" devvalue=\"&lt;dev&gt;\">\n" +
+                "    <comment>see &quot;a&quot;</comment>\n  </param>" + nl +
+                "  <module role=\"r\" class=\"c\">" + nl +
+                "    <comment>module comment</comment>" + nl + "  </module>" +
+                nl + "</server>" + nl, serialize(config));
+    }
+
+    @Test
+    public void testConcurrentParse() throws Exception {
+        final byte[] fcfg = getFcfg();
+        final String expected = serialize(parse(fcfg));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 0; i < 32; i++) {
+                results.add(executor.submit(new Callable<String>() {
+
+                    @Override
+                    public String call() throws Exception {
+                        return serialize(parse(fcfg));
+                    }
+                }));
+            }
+            for (Future<String> result : results) {
+                assertEquals(expected, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private byte[] getFcfg() throws IOException {
+        InputStream in = getClass().getClassLoader().getResourceAsStream(FCFG);
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private static ServerConfiguration parse(byte[] fcfg) throws IOException {
+        return new ServerConfigurationParser(new ByteArrayInputStream(fcfg))
+                .parse();
+    }
+
+    private static byte[] snapshot(ServerConfiguration config)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ServerConfigurationSnapshot.write(config, out);
+        return out.toByteArray();
+    }
+
+    private static ServerConfiguration readSnapshot(byte[] snapshot)
+            throws IOException {
+        return ServerConfigurationSnapshot.read(new ByteArrayInputStream(
+                snapshot));
+    }
+
+    private static String serialize(ServerConfiguration config)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        config.serialize(out);
+        return new String(out.toByteArray(), "UTF-8");
+    }
+}